@@ -0,0 +1,106 @@
+package com.akqa.test.henrikpettersen;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-operation latency of PIN checks and withdrawals, under a success heavy
+ * mix and a decline heavy mix. Run with "-prof gc" to see the allocation rate
+ * of each path: the outcome path should not allocate at all, while the throwing
+ * path allocates an AtmException for every decline.
+ * 
+ * The mix is a fixed cycle of 16 operations, so every run does the same work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AtmOperationBenchmark {
+    
+    private static final int CYCLE = 16;
+    
+    //success: 1 in 16 operations is declined, decline: 15 in 16 are declined
+    @Param({ "success", "decline" })
+    public String mix;
+    
+    private Atm atm;
+    private Session[] sessions = new Session[CYCLE];
+    private Action[] withdrawals = new Action[CYCLE];
+    private int next;
+    
+    @Setup
+    public void setup(){
+        atm = new Atm();
+        
+        //More cash than the benchmark can take out, so the ATM never runs dry
+        atm.setAtmBalance(Long.MAX_VALUE / 2);
+        int declines = mix.equals("success") ? 1 : CYCLE - 1;
+        
+        for (int i = 0; i < CYCLE; i++){
+            Session session = new Session();
+            session.setAccountNumber(Integer.toString(10000000 + i));
+            session.setExpectedPin("1234");
+            session.setBalance(Long.MAX_VALUE / 4);
+            session.setOverdraft(0);
+            
+            boolean decline = i < declines;
+            session.setEnteredPin(decline ? "4321" : "1234");
+            
+            //Declined withdrawals alternate between too much for the ATM and
+            //too much for the account
+            long amount = !decline ? 10 : (i % 2 == 0 ? Long.MAX_VALUE : Long.MAX_VALUE / 3);
+            sessions[i] = session;
+            withdrawals[i] = Action.createWithdrawal(amount);
+        }
+    }
+    
+    @Benchmark
+    public boolean isPinValid(){
+        return atm.isPinValid(sessions[nextIndex()]);
+    }
+    
+    @Benchmark
+    public ErrorCode verifyPin(){
+        try {
+            atm.verifyPin(sessions[nextIndex()]);
+            return null;
+        } catch (AtmException e) {
+            return e.getErrorCode();
+        }
+    }
+    
+    @Benchmark
+    public long withdrawOutcome(){
+        int i = nextIndex();
+        return atm.withdraw(sessions[i], withdrawals[i]);
+    }
+    
+    @Benchmark
+    public long withdrawThrowing(){
+        int i = nextIndex();
+        try {
+            return atm.withdrawFunds(sessions[i], withdrawals[i]);
+        } catch (AtmException e) {
+            return e.getErrorCode().ordinal();
+        }
+    }
+    
+    private int nextIndex(){
+        int i = next;
+        next = (i + 1) & (CYCLE - 1);
+        return i;
+    }
+}
@@ -0,0 +1,57 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Writes input files for the benchmarks, in the format read by InputFileReader.
+ * The same seed always gives the same file.
+ */
+final class BenchmarkInputs {
+    
+    private BenchmarkInputs(){
+    }
+    
+    /**
+     * Writes an input file to a temporary file, which is deleted on exit
+     * @param sessions The number of sessions in the file
+     * @param seed The random seed
+     * @return The input file
+     */
+    static Path write(int sessions, long seed) throws IOException{
+        Path path = Files.createTempFile("atm-benchmark", ".txt");
+        path.toFile().deleteOnExit();
+        Random random = new Random(seed);
+        
+        BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII);
+        try {
+            writer.write("#Total cash in ATM\n");
+            writer.write(Long.toString(Long.MAX_VALUE / 2));
+            writer.write("\n\n");
+            for (int i = 0; i < sessions; i++){
+                int pin = 1000 + random.nextInt(9000);
+                int enteredPin = random.nextInt(10) == 0 ? (pin + 1) : pin;
+                writer.write("#Session " + i + "\n");
+                writer.write((10000000 + random.nextInt(90000000)) + " " + pin + " " + enteredPin + "\n");
+                writer.write(random.nextInt(1000) + " " + random.nextInt(200) + "\n");
+                int actions = 1 + random.nextInt(5);
+                for (int a = 0; a < actions; a++){
+                    if (random.nextInt(10) < 3){
+                        writer.write("B\n");
+                    }
+                    else{
+                        writer.write("W " + (1 + random.nextInt(600)) + "\n");
+                    }
+                }
+                writer.write("\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return path;
+    }
+}
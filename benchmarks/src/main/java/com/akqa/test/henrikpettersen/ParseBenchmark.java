@@ -0,0 +1,92 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing throughput of the input file readers, across input sizes, including
+ * the binary format. The text reader is the parser behind
+ * InputFileReader.readFile; readFile itself is measured on the bundled input
+ * file, as it only reads classpath resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    
+    @Param({ "1000", "100000", "1000000" })
+    public int sessions;
+    
+    private Path input;
+    private Path binaryInput;
+    
+    @Setup(Level.Trial)
+    public void createInput() throws IOException{
+        input = BenchmarkInputs.write(sessions, 42);
+        binaryInput = Files.createTempFile("atm-benchmark", ".atmb");
+        binaryInput.toFile().deleteOnExit();
+        BinarySessionWriter.convert(input, binaryInput);
+    }
+    
+    @Benchmark
+    public void textReader(Blackhole blackhole) throws IOException{
+        SessionReader reader = new SessionReader(Files.newBufferedReader(input, StandardCharsets.US_ASCII));
+        try {
+            while (reader.hasNext()){
+                blackhole.consume(reader.next());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    @Benchmark
+    public void mappedReader(Blackhole blackhole) throws IOException{
+        MappedSessionReader reader = MappedSessionReader.open(input);
+        try {
+            while (reader.hasNext()){
+                blackhole.consume(reader.next());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    @Benchmark
+    public void binaryReader(Blackhole blackhole) throws IOException{
+        BinarySessionReader reader = BinarySessionReader.open(binaryInput);
+        try {
+            while (reader.hasNext()){
+                blackhole.consume(reader.next());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object readFileBundled(){
+        return new InputFileReader("input.txt").readFile();
+    }
+}
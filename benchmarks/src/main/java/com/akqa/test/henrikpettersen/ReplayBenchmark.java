@@ -0,0 +1,90 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end replay of an input file, as Atm.main does it: parse, run every
+ * session, and format the results. The results are written to a channel that
+ * throws them away, so the benchmark does not measure the terminal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+    
+    @Param({ "100000" })
+    public int sessions;
+    
+    @Param({ "1", "4" })
+    public int threads;
+    
+    private Path input;
+    private NullChannel channel = new NullChannel();
+    
+    @Setup(Level.Trial)
+    public void createInput() throws IOException{
+        input = BenchmarkInputs.write(sessions, 42);
+    }
+    
+    @Benchmark
+    public long replay() throws IOException{
+        Atm atm = new Atm();
+        MappedSessionReader reader = MappedSessionReader.open(input);
+        try {
+            atm.setAtmBalance(reader.getAtmBalance());
+            if (threads > 1){
+                new ParallelSessionRunner(atm, threads, true).run(reader, Channels.newOutputStream(channel));
+            }
+            else{
+                ResultSink results = new BufferedResultSink(channel);
+                while (reader.hasNext()){
+                    atm.performActions(reader.next(), results);
+                }
+                results.flush();
+            }
+        } finally {
+            reader.close();
+        }
+        return channel.written;
+    }
+    
+    /**
+     * Counts the bytes written to it, and throws them away
+     */
+    private static class NullChannel implements WritableByteChannel {
+        long written;
+        
+        public int write(ByteBuffer src){
+            int length = src.remaining();
+            src.position(src.limit());
+            written += length;
+            return length;
+        }
+        public boolean isOpen(){
+            return true;
+        }
+        public void close(){
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures short runs of the ATM from the command line, where starting the JVM
+ * and loading classes takes most of the time. JMH measures code inside one JVM,
+ * so this starts a new JVM for every run instead.
+ *
+ * Each input size is run in three ways:
+ *  - default: java -jar
+ *  - archive: java -jar with the class data sharing archive built by
+ *    "mvn -Pcds package"
+ *  - launcher: the atm launcher built alongside the archive, which also uses
+ *    faster starting JVM settings
+ * For each run it times the first byte of results on standard output (time to
+ * first result), and the JVM exiting (wall time), and checks the results are the
+ * same every way. The ways take turns, round by round, so a slower spell on the
+ * machine falls on all of them alike, and the first rounds are not counted, as
+ * they fill the page cache. The inputs are written by BenchmarkInputs with a
+ * fixed seed, so every run of the benchmark uses the same inputs.
+ *
+ * Run with:
+ *  java -cp target/benchmarks.jar com.akqa.test.henrikpettersen.StartupBenchmark
+ *      [--runs N] [--warmup N] [--sessions N,N,...] {ATM target directory}
+ */
+public class StartupBenchmark {
+
+    private static final String[] MODES = {"default", "archive", "launcher"};
+
+    public static void main(String[] args) throws IOException, InterruptedException{
+        int runs = 30;
+        int warmup = 3;
+        int[] sizes = {1, 10, 1000};
+        Path target = null;
+        for (int i = 0; i < args.length; i++){
+            String arg = args[i];
+            if (arg.equals("--runs")){
+                runs = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("--warmup")){
+                warmup = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("--sessions")){
+                String[] values = args[++i].split(",");
+                sizes = new int[values.length];
+                for (int v = 0; v < values.length; v++){
+                    sizes[v] = Integer.parseInt(values[v]);
+                }
+            }
+            else if (arg.startsWith("--")){
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else{
+                target = Paths.get(arg);
+            }
+        }
+        if (target == null){
+            throw new IllegalArgumentException("Missing ATM target directory");
+        }
+        Path jar = target.resolve("henrikpettersen-1.0.jar").toAbsolutePath();
+        Path archive = target.resolve("henrikpettersen-1.0.jsa").toAbsolutePath();
+        Path launcher = target.resolve("atm").toAbsolutePath();
+        if (!Files.exists(archive) || !Files.exists(launcher)){
+            throw new IllegalArgumentException("No archive in " + target + ", build it with mvn -Pcds package");
+        }
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        //Fail rather than quietly measure without the archive if it does not map
+        List<String> check = new ArrayList<String>(Arrays.asList(java, "-XX:SharedArchiveFile=" + archive,
+                "-Xshare:on", "-jar", jar.toString()));
+        run(check);
+
+        System.out.println("startup: runs=" + runs + " warmup=" + warmup + " java=" + System.getProperty("java.version"));
+        for (int sessions : sizes){
+            Path input = BenchmarkInputs.write(sessions, 42);
+            List<List<String>> commands = new ArrayList<List<String>>();
+            commands.add(Arrays.asList(java, "-jar", jar.toString(), input.toString()));
+            commands.add(Arrays.asList(java, "-XX:SharedArchiveFile=" + archive, "-Xshare:auto",
+                    "-jar", jar.toString(), input.toString()));
+            commands.add(Arrays.asList("sh", launcher.toString(), input.toString()));
+
+            long[][] firstResult = new long[MODES.length][runs];
+            long[][] wall = new long[MODES.length][runs];
+            byte[] expected = null;
+            for (int round = 0; round < warmup + runs; round++){
+                for (int m = 0; m < MODES.length; m++){
+                    Run run = run(commands.get(m));
+                    if (expected == null){
+                        expected = run.output;
+                    }
+                    else if (!Arrays.equals(expected, run.output)){
+                        throw new IllegalStateException("The " + MODES[m] + " run gave different results");
+                    }
+                    if (round >= warmup){
+                        firstResult[m][round - warmup] = run.firstResultNanos;
+                        wall[m][round - warmup] = run.wallNanos;
+                    }
+                }
+            }
+            for (int m = 0; m < MODES.length; m++){
+                System.out.println("startup_mode sessions=" + sessions + " mode=" + MODES[m]
+                        + " first_result_ms_p50=" + millis(percentile(firstResult[m], 50))
+                        + " first_result_ms_p90=" + millis(percentile(firstResult[m], 90))
+                        + " wall_ms_p50=" + millis(percentile(wall[m], 50))
+                        + " wall_ms_p90=" + millis(percentile(wall[m], 90))
+                        + " wall_cut_pct=" + (100 - 100 * percentile(wall[m], 50) / percentile(wall[0], 50)));
+            }
+            Files.delete(input);
+        }
+    }
+
+    /**
+     * Starts a JVM, and times it until the first byte of its standard output,
+     * and until it exits
+     */
+    private static Run run(List<String> command) throws IOException, InterruptedException{
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        builder.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+        Run run = new Run();
+        long start = System.nanoTime();
+        Process process = builder.start();
+        InputStream in = process.getInputStream();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int read;
+        while ((read = in.read(buffer)) >= 0){
+            if (output.size() == 0 && read > 0){
+                run.firstResultNanos = System.nanoTime() - start;
+            }
+            output.write(buffer, 0, read);
+        }
+        int exit = process.waitFor();
+        run.wallNanos = System.nanoTime() - start;
+        if (exit != 0){
+            throw new IllegalStateException("Exit code " + exit + " from " + command);
+        }
+        run.output = output.toByteArray();
+        return run;
+    }
+
+    private static long percentile(long[] values, int percent){
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    private static String millis(long nanos){
+        return String.format("%.1f", nanos / 1e6);
+    }
+
+    private static final class Run {
+        long firstResultNanos;
+        long wallNanos;
+        byte[] output;
+    }
+}
@@ -0,0 +1,400 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Holds the balance and overdraft facility of every account seen by the ATM, so
+ * that later sessions for the same account see the withdrawals made by earlier
+ * ones.
+ *
+ * Accounts are keyed by their account number as a long, in open addressing hash
+ * tables made of parallel long arrays. Only account numbers made of digits,
+ * without leading zeros, that fit in a long can be held, so that each account
+ * number has exactly one key: "0012345" would otherwise share the balance of
+ * "12345". See isValidAccount. There is no object per account, so millions
+ * of accounts take a few tens of bytes each. The accounts are split across a fixed
+ * number of segments, each with its own lock, so sessions running on different
+ * threads rarely wait for each other.
+ *
+ * The ledger can be saved to and loaded from a compact binary snapshot:
+ *  - The magic number and format version (ints)
+ *  - The number of blocks (int)
+ *  - For each block: the number of accounts in the block (int), then for each 
+ *    account: account number, balance, overdraft (longs)
+ * Each block is one segment, written under the segment's lock, so a snapshot can
+ * be taken while sessions are running. Version 1 snapshots, which hold a single
+ * account count followed by every account, can still be loaded.
+ *
+ * If a journal is set, every withdrawal is appended to it while the account's
+ * segment is still locked, so the journal holds each account's changes in the
+ * order they were made.
+ */
+public class AccountLedger {
+
+    private static final int MAGIC = 0x41544d4c; //"ATML"
+    private static final int VERSION = 2;
+
+    //The largest account number the ledger can hold
+    private static final String MAX_ACCOUNT = Long.toString(Long.MAX_VALUE);
+
+    //Must be a power of two
+    private static final int SEGMENTS = 64;
+    private static final int SEGMENT_SHIFT = 64 - Integer.numberOfTrailingZeros(SEGMENTS);
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private volatile WithdrawalJournal journal;
+
+    public AccountLedger(){
+        for (int i = 0; i < SEGMENTS; i++){
+            segments[i] = new Segment();
+        }
+    }
+
+    public WithdrawalJournal getJournal(){
+        return journal;
+    }
+
+    public void setJournal(WithdrawalJournal journal){
+        this.journal = journal;
+    }
+
+    /**
+     * Converts an account number into the key used by the ledger
+     * @param accountNumber The account number from the session
+     * @return the account number as a long
+     * @throws IllegalArgumentException If the account number cannot be held by
+     * the ledger, see isValidAccount
+     */
+    public static long accountKey(String accountNumber){
+        if (!isValidAccount(accountNumber)){
+            throw new IllegalArgumentException("Account number must be digits without leading zeros: " + accountNumber);
+        }
+        return Long.parseLong(accountNumber);
+    }
+
+    /**
+     * @param accountNumber The account number from the session
+     * @return true if the account number is made of digits, without leading
+     * zeros or a sign, and fits in a long, so the ledger can hold it
+     */
+    public static boolean isValidAccount(String accountNumber){
+        int length = accountNumber.length();
+        if (length == 0 || length > MAX_ACCOUNT.length() || (length > 1 && accountNumber.charAt(0) == '0')){
+            return false;
+        }
+        for (int i = 0; i < length; i++){
+            char c = accountNumber.charAt(i);
+            if (c < '0' || c > '9'){
+                return false;
+            }
+        }
+        //Numbers of the same length compare like their digits
+        return length < MAX_ACCOUNT.length() || accountNumber.compareTo(MAX_ACCOUNT) <= 0;
+    }
+
+    /**
+     * Called at the start of a session. If the ledger has not seen the account
+     * before, it is added with the balance and overdraft from the session.
+     * Otherwise the session is updated with the balance and overdraft held in
+     * the ledger.
+     * @param session One ATM operation by a single customer
+     */
+    public void open(Session session){
+        long account = accountKey(session.getAccountNumber());
+        segmentFor(account).open(account, session);
+    }
+
+    /**
+     * Withdraws money from the session's account, if the balance plus overdraft
+     * facility held in the ledger covers it. The session is updated with the new
+     * balance and overdraft
+     * @param session One ATM operation by a single customer
+     * @param amount The amount to withdraw
+     * @return false if the account does not have enough funds available
+     */
+    public boolean withdraw(Session session, long amount){
+        long account = accountKey(session.getAccountNumber());
+        return segmentFor(account).withdraw(account, session, amount, journal);
+    }
+
+    /**
+     * Updates the session with the latest balance and overdraft held in the ledger
+     * @param session One ATM operation by a single customer
+     */
+    public void refresh(Session session){
+        long account = accountKey(session.getAccountNumber());
+        segmentFor(account).refresh(account, session);
+    }
+
+    /**
+     * Sets the balance and overdraft of an account, adding the account if the
+     * ledger has not seen it before. Used when replaying a journal
+     * @param account The account number
+     * @param balance The account balance
+     * @param overdraft The overdraft facility
+     */
+    void set(long account, long balance, long overdraft){
+        segmentFor(account).put(account, balance, overdraft);
+    }
+
+    /**
+     * @return The number of accounts in the ledger
+     */
+    public long size(){
+        long size = 0;
+        for (Segment segment : segments){
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes a snapshot of the ledger to a file. The snapshot is written to a
+     * temporary file first, and then moved into place, so the file is never
+     * left half written. Sessions should not be running while the ledger is saved
+     * @param path The snapshot file
+     * @throws IOException If the snapshot could not be written
+     */
+    public void save(Path path) throws IOException{
+        Path parent = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            OutputStream os = Files.newOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+                writeTo(out);
+                out.flush();
+            } finally {
+                os.close();
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Writes the snapshot format described above
+     * @param out Where the snapshot is written
+     * @throws IOException If the snapshot could not be written
+     */
+    void writeTo(DataOutputStream out) throws IOException{
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(SEGMENTS);
+        for (Segment segment : segments){
+            segment.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads a ledger from a snapshot written by save
+     * @param path The snapshot file
+     * @return The ledger held in the snapshot
+     * @throws IOException If the snapshot could not be read, or is not a ledger snapshot
+     */
+    public static AccountLedger load(Path path) throws IOException{
+        InputStream is = Files.newInputStream(path);
+        try {
+            return readFrom(new DataInputStream(new BufferedInputStream(is, 1 << 16)));
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads the snapshot format described above
+     * @param in Where the snapshot is read from
+     * @return The ledger held in the snapshot
+     * @throws IOException If the snapshot could not be read, or is not a ledger snapshot
+     */
+    static AccountLedger readFrom(DataInputStream in) throws IOException{
+        AccountLedger ledger = new AccountLedger();
+        if (in.readInt() != MAGIC){
+            throw new IOException("Not an account ledger snapshot");
+        }
+        int version = in.readInt();
+        if (version == 1){
+            ledger.readAccounts(in, in.readLong());
+        }
+        else if (version == VERSION){
+            int blocks = in.readInt();
+            for (int i = 0; i < blocks; i++){
+                ledger.readAccounts(in, in.readInt());
+            }
+        }
+        else{
+            throw new IOException("Unsupported account ledger snapshot version: " + version);
+        }
+        return ledger;
+    }
+
+    private void readAccounts(DataInputStream in, long count) throws IOException{
+        for (long i = 0; i < count; i++){
+            long account = in.readLong();
+            long balance = in.readLong();
+            long overdraft = in.readLong();
+            set(account, balance, overdraft);
+        }
+    }
+
+    private Segment segmentFor(long account){
+        return segments[(int) (hash(account) >>> SEGMENT_SHIFT)];
+    }
+
+    /**
+     * Spreads the bits of the account number, as account numbers are often
+     * handed out in sequence
+     */
+    static long hash(long key){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * One open addressing hash table, using linear probing. All access is
+     * synchronized on the segment
+     */
+    private static final class Segment {
+        static final long EMPTY = Long.MIN_VALUE;
+
+        long[] keys;
+        long[] balances;
+        long[] overdrafts;
+        int size;
+
+        Segment(){
+            allocate(16);
+        }
+
+        synchronized void open(long account, Session session){
+            int slot = find(account);
+            if (keys[slot] == EMPTY){
+                insert(slot, account, session.getBalance(), session.getOverdraft());
+            }
+            else{
+                session.setBalance(balances[slot]);
+                session.setOverdraft(overdrafts[slot]);
+            }
+        }
+
+        synchronized boolean withdraw(long account, Session session, long amount, WithdrawalJournal journal){
+            int slot = find(account);
+            if (keys[slot] == EMPTY){
+                throw new IllegalStateException("Account not open: " + account);
+            }
+
+            //Available funds = current account balance + overdraft facility
+            if (balances[slot] + overdrafts[slot] < amount){
+                return false;
+            }
+            long newBalance = balances[slot] - amount;
+
+            //If the new account balance is now negative,
+            //we need to dip into the overdraft
+            if (newBalance < 0){
+                overdrafts[slot] += newBalance;
+            }
+            balances[slot] = newBalance;
+            if (journal != null){
+                journal.append(account, amount, newBalance, overdrafts[slot]);
+            }
+
+            session.setBalance(newBalance);
+            session.setOverdraft(overdrafts[slot]);
+            return true;
+        }
+
+        synchronized void refresh(long account, Session session){
+            int slot = find(account);
+            if (keys[slot] != EMPTY){
+                session.setBalance(balances[slot]);
+                session.setOverdraft(overdrafts[slot]);
+            }
+        }
+
+        synchronized void put(long account, long balance, long overdraft){
+            int slot = find(account);
+            if (keys[slot] == EMPTY){
+                insert(slot, account, balance, overdraft);
+            }
+            else{
+                balances[slot] = balance;
+                overdrafts[slot] = overdraft;
+            }
+        }
+
+        synchronized void writeTo(DataOutputStream out) throws IOException{
+            out.writeInt(size);
+            for (int slot = 0; slot < keys.length; slot++){
+                if (keys[slot] != EMPTY){
+                    out.writeLong(keys[slot]);
+                    out.writeLong(balances[slot]);
+                    out.writeLong(overdrafts[slot]);
+                }
+            }
+        }
+
+        /**
+         * @return The slot holding the account, or the empty slot where it belongs
+         */
+        private int find(long account){
+            int mask = keys.length - 1;
+            int slot = (int) hash(account) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != account){
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void insert(int slot, long account, long balance, long overdraft){
+            keys[slot] = account;
+            balances[slot] = balance;
+            overdrafts[slot] = overdraft;
+            size++;
+
+            //Keep the table at most three quarters full
+            if (size * 4 > keys.length * 3){
+                grow();
+            }
+        }
+
+        private void grow(){
+            long[] oldKeys = keys;
+            long[] oldBalances = balances;
+            long[] oldOverdrafts = overdrafts;
+            allocate(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++){
+                if (oldKeys[i] != EMPTY){
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    balances[slot] = oldBalances[i];
+                    overdrafts[slot] = oldOverdrafts[i];
+                }
+            }
+        }
+
+        private void allocate(int capacity){
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            balances = new long[capacity];
+            overdrafts = new long[capacity];
+        }
+    }
+}
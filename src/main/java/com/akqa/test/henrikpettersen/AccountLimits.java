@@ -0,0 +1,371 @@
+package com.akqa.test.henrikpettersen;
+
+import java.time.Clock;
+import java.util.Arrays;
+
+/**
+ * Per account limits on top of the balance and overdraft checks:
+ *  - the most that can be withdrawn in a calendar day (UTC)
+ *  - the most withdrawals that can be made in a sliding window of time
+ *  - a lockout once the wrong pin has been entered too many times in a row
+ *
+ * The window count is a sliding window counter: the withdrawals made in the
+ * current window, plus those made in the previous window weighted by how much
+ * of it still overlaps the sliding window. This holds two counts per account
+ * rather than a time for every withdrawal, and is exact whenever withdrawals are
+ * spread evenly over the previous window.
+ *
+ * As in AccountLedger, accounts are kept in open addressing hash tables of
+ * parallel long arrays, split across segments with a lock each. An account's
+ * entry expires once its day is over, its windows have passed and any lockout
+ * has ended, and expired entries are cleared out before a segment grows, so
+ * the memory held is bounded by the accounts active in the last day.
+ *
+ * A limit of 0 turns that limit off.
+ */
+public class AccountLimits {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    //Must be a power of two
+    private static final int SEGMENTS = 64;
+    private static final int SEGMENT_SHIFT = 64 - Integer.numberOfTrailingZeros(SEGMENTS);
+
+    private final long maxDailyAmount;
+    private final int maxWithdrawals;
+    private final long windowMillis;
+    private final int maxPinFailures;
+    private final long lockoutMillis;
+    private final Clock clock;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * @param maxDailyAmount The most an account can withdraw in a day
+     * @param maxWithdrawals The most withdrawals an account can make in a window
+     * @param windowMillis The length of the sliding window
+     * @param maxPinFailures The number of wrong pins in a row that lock an account
+     * @param lockoutMillis How long an account stays locked
+     * @param clock The time withdrawals and pin failures are made at
+     */
+    public AccountLimits(long maxDailyAmount, int maxWithdrawals, long windowMillis,
+            int maxPinFailures, long lockoutMillis, Clock clock){
+        if (maxWithdrawals > 0 && windowMillis <= 0){
+            throw new IllegalArgumentException("The withdrawal window must be positive");
+        }
+        this.maxDailyAmount = maxDailyAmount;
+        this.maxWithdrawals = maxWithdrawals;
+        this.windowMillis = windowMillis;
+        this.maxPinFailures = maxPinFailures;
+        this.lockoutMillis = lockoutMillis;
+        this.clock = clock;
+        for (int i = 0; i < SEGMENTS; i++){
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Parses limits given as a comma separated list of {name}={value}, where the
+     * names are daily, count, window (seconds), pin-failures and lockout
+     * (seconds), for example daily=1000,count=5,window=3600,pin-failures=3
+     * @param spec The limits
+     * @return The limits, using the system clock
+     * @throws IllegalArgumentException If the limits could not be parsed
+     */
+    public static AccountLimits parse(String spec){
+        long daily = 0;
+        int count = 0;
+        long window = 3600;
+        int pinFailures = 0;
+        long lockout = 24 * 60 * 60;
+        for (String limit : spec.split(",")){
+            String[] parts = limit.trim().split("=");
+            if (parts.length != 2){
+                throw new IllegalArgumentException("Limit must be {name}={value}: " + limit);
+            }
+            long value = Long.parseLong(parts[1]);
+            if (parts[0].equals("daily")){
+                daily = value;
+            }
+            else if (parts[0].equals("count")){
+                count = (int) value;
+            }
+            else if (parts[0].equals("window")){
+                window = value;
+            }
+            else if (parts[0].equals("pin-failures")){
+                pinFailures = (int) value;
+            }
+            else if (parts[0].equals("lockout")){
+                lockout = value;
+            }
+            else{
+                throw new IllegalArgumentException("Unknown limit: " + parts[0]);
+            }
+        }
+        return new AccountLimits(daily, count, window * 1000, pinFailures, lockout * 1000, Clock.systemUTC());
+    }
+
+    /**
+     * Records a pin check for the account. A wrong pin counts towards the lockout,
+     * and a right pin clears the count, unless the account is already locked
+     * @param accountNumber The account number from the session
+     * @param pinValid Whether the pin entered was right
+     * @return false if the account is locked, in which case the session is
+     * reported as ACCOUNT_ERR
+     */
+    public boolean checkPin(String accountNumber, boolean pinValid){
+        if (maxPinFailures <= 0){
+            return pinValid;
+        }
+        long account = AccountLedger.accountKey(accountNumber);
+        return segmentFor(account).checkPin(account, pinValid, clock.millis());
+    }
+
+    /**
+     * Counts a withdrawal against the account's limits, if it is within them
+     * @param accountNumber The account number from the session
+     * @param amount The amount to withdraw
+     * @return false if the withdrawal would break a limit, in which case nothing
+     * is counted
+     */
+    public boolean acquire(String accountNumber, long amount){
+        if (maxDailyAmount <= 0 && maxWithdrawals <= 0){
+            return true;
+        }
+        long account = AccountLedger.accountKey(accountNumber);
+        return segmentFor(account).acquire(account, amount, clock.millis());
+    }
+
+    /**
+     * Takes back a withdrawal counted by acquire, which was then declined
+     * @param accountNumber The account number from the session
+     * @param amount The amount counted
+     */
+    public void release(String accountNumber, long amount){
+        if (maxDailyAmount <= 0 && maxWithdrawals <= 0){
+            return;
+        }
+        long account = AccountLedger.accountKey(accountNumber);
+        segmentFor(account).release(account, amount, clock.millis());
+    }
+
+    /**
+     * @return The number of accounts held, including any that have expired but
+     * not been cleared out yet
+     */
+    public long size(){
+        long size = 0;
+        for (Segment segment : segments){
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(long account){
+        return segments[(int) (AccountLedger.hash(account) >>> SEGMENT_SHIFT)];
+    }
+
+    /**
+     * One open addressing hash table, using linear probing. All access is
+     * synchronized on the segment
+     */
+    private final class Segment {
+        static final long EMPTY = Long.MIN_VALUE;
+
+        long[] keys;
+        //The day, and the amount withdrawn on it
+        long[] days;
+        long[] dailyAmounts;
+        //The start of the current window, and the withdrawals in it and the one before
+        long[] windowStarts;
+        long[] windowCounts;
+        long[] previousCounts;
+        //The wrong pins in a row, and the end of the lockout
+        long[] pinFailures;
+        long[] lockedUntil;
+        //When the entry holds nothing that still matters
+        long[] expiries;
+        int size;
+
+        Segment(){
+            allocate(16);
+        }
+
+        synchronized boolean checkPin(long account, boolean pinValid, long now){
+            int slot = find(account);
+            if (keys[slot] == EMPTY){
+                if (pinValid){
+                    return true;
+                }
+                slot = insert(slot, account, now);
+            }
+            if (lockedUntil[slot] > now){
+                return false;
+            }
+            if (pinValid){
+                pinFailures[slot] = 0;
+                return true;
+            }
+            if (++pinFailures[slot] >= maxPinFailures){
+                pinFailures[slot] = 0;
+                lockedUntil[slot] = now + lockoutMillis;
+            }
+            expiries[slot] = Math.max(expiries[slot], now + lockoutMillis);
+            return false;
+        }
+
+        synchronized boolean acquire(long account, long amount, long now){
+            int slot = find(account);
+            if (keys[slot] == EMPTY){
+                slot = insert(slot, account, now);
+            }
+            advance(slot, now);
+            if (maxDailyAmount > 0 && dailyAmounts[slot] + amount > maxDailyAmount){
+                return false;
+            }
+            if (maxWithdrawals > 0 && windowCount(slot, now) + 1 > maxWithdrawals){
+                return false;
+            }
+            dailyAmounts[slot] += amount;
+            windowCounts[slot]++;
+            expiries[slot] = Math.max(expiries[slot],
+                    Math.max((days[slot] + 1) * DAY_MILLIS, windowStarts[slot] + 2 * windowMillis));
+            return true;
+        }
+
+        synchronized void release(long account, long amount, long now){
+            int slot = find(account);
+            if (keys[slot] == EMPTY){
+                return;
+            }
+            //Only take it back if the day and window have not moved on since
+            if (days[slot] == now / DAY_MILLIS){
+                dailyAmounts[slot] = Math.max(dailyAmounts[slot] - amount, 0);
+            }
+            if (windowMillis > 0 && windowStarts[slot] == now - now % windowMillis){
+                windowCounts[slot] = Math.max(windowCounts[slot] - 1, 0);
+            }
+        }
+
+        synchronized long size(){
+            return size;
+        }
+
+        /**
+         * Moves the account's day and window forward to the current time
+         */
+        private void advance(int slot, long now){
+            long day = now / DAY_MILLIS;
+            if (days[slot] != day){
+                days[slot] = day;
+                dailyAmounts[slot] = 0;
+            }
+            if (windowMillis > 0){
+                long start = now - now % windowMillis;
+                if (windowStarts[slot] != start){
+                    //The window just ended becomes the previous one, unless more
+                    //than one window has passed
+                    previousCounts[slot] = (start - windowStarts[slot] == windowMillis) ? windowCounts[slot] : 0;
+                    windowCounts[slot] = 0;
+                    windowStarts[slot] = start;
+                }
+            }
+        }
+
+        /**
+         * @return The withdrawals in the sliding window ending now, rounded up
+         */
+        private long windowCount(int slot, long now){
+            long overlap = windowMillis - (now - windowStarts[slot]);
+            return windowCounts[slot] + (previousCounts[slot] * overlap + windowMillis - 1) / windowMillis;
+        }
+
+        /**
+         * @return The slot holding the account, or the empty slot where it belongs
+         */
+        private int find(long account){
+            int mask = keys.length - 1;
+            int slot = (int) AccountLedger.hash(account) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != account){
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Adds an account with nothing counted yet
+         * @return The slot now holding the account, which moves if the table is rebuilt
+         */
+        private int insert(int slot, long account, long now){
+            //Keep the table at most three quarters full, clearing out expired
+            //accounts before growing
+            if ((size + 1) * 4 > keys.length * 3){
+                rebuild(now);
+                slot = find(account);
+            }
+            keys[slot] = account;
+            days[slot] = now / DAY_MILLIS;
+            dailyAmounts[slot] = 0;
+            windowStarts[slot] = (windowMillis > 0) ? now - now % windowMillis : 0;
+            windowCounts[slot] = 0;
+            previousCounts[slot] = 0;
+            pinFailures[slot] = 0;
+            lockedUntil[slot] = 0;
+            expiries[slot] = now;
+            size++;
+            return slot;
+        }
+
+        /**
+         * Copies the accounts that have not expired into a new table, twice the
+         * size if they still fill more than half of the old one
+         */
+        private void rebuild(long now){
+            long[] oldKeys = keys;
+            long[] oldDays = days;
+            long[] oldDailyAmounts = dailyAmounts;
+            long[] oldWindowStarts = windowStarts;
+            long[] oldWindowCounts = windowCounts;
+            long[] oldPreviousCounts = previousCounts;
+            long[] oldPinFailures = pinFailures;
+            long[] oldLockedUntil = lockedUntil;
+            long[] oldExpiries = expiries;
+            int live = 0;
+            for (int i = 0; i < oldKeys.length; i++){
+                if (oldKeys[i] != EMPTY && oldExpiries[i] > now){
+                    live++;
+                }
+            }
+            allocate((live * 2 > oldKeys.length) ? oldKeys.length * 2 : oldKeys.length);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++){
+                if (oldKeys[i] != EMPTY && oldExpiries[i] > now){
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    days[slot] = oldDays[i];
+                    dailyAmounts[slot] = oldDailyAmounts[i];
+                    windowStarts[slot] = oldWindowStarts[i];
+                    windowCounts[slot] = oldWindowCounts[i];
+                    previousCounts[slot] = oldPreviousCounts[i];
+                    pinFailures[slot] = oldPinFailures[i];
+                    lockedUntil[slot] = oldLockedUntil[i];
+                    expiries[slot] = oldExpiries[i];
+                    size++;
+                }
+            }
+        }
+
+        private void allocate(int capacity){
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            days = new long[capacity];
+            dailyAmounts = new long[capacity];
+            windowStarts = new long[capacity];
+            windowCounts = new long[capacity];
+            previousCounts = new long[capacity];
+            pinFailures = new long[capacity];
+            lockedUntil = new long[capacity];
+            expiries = new long[capacity];
+        }
+    }
+}
@@ -73,6 +73,25 @@ public class Action {
         return new Action(type);
     }
     
+    /**
+     * Returns a new withdrawal Action for the given amount
+     * @param amount The amount to withdraw
+     * @return a withdrawal Action instance
+     */
+    public static Action createWithdrawal(long amount){
+        Action action = new Action(Type.WIHTDRAWAL);
+        action.setAmount(amount);
+        return action;
+    }
+    
+    /**
+     * Returns a new balance enquiry Action
+     * @return a balance enquiry Action instance
+     */
+    public static Action createBalanceEnquiry(){
+        return new Action(Type.BALANCE_ENQUIRY);
+    }
+    
     public Type getType() {
         return type;
     }
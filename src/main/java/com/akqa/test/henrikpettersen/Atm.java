@@ -1,6 +1,25 @@
 package com.akqa.test.henrikpettersen;
 
+import java.io.IOException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * You are tasked with developing software for an ATM machine. The software is responsible 
@@ -28,69 +47,738 @@ public class Atm {
     //Contains the information on the atm session we want to run through this atm
     private static final String INPUT_FILE = "input.txt";
     
-    //The amount of money available to the ATM
-    private long atmBalance;
+    //How often a followed input file is checked, if no change is reported
+    private static final long FOLLOW_POLL_MILLIS = 100;
+    
+    //The number of pin checks cached with --hashed-pins, and for how long
+    private static final int PIN_CACHE_SIZE = 1 << 16;
+    private static final long PIN_CACHE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    
+    //The amount of money available to the ATM. Sessions may be run on several
+    //threads at once, so cash is only ever taken out with compare-and-set
+    private final AtomicLong atmBalance = new AtomicLong();
     
     public long getAtmBalance(){
-        return atmBalance;
+        return atmBalance.get();
     }
     
     public void setAtmBalance(long atmBalance){
-        this.atmBalance = atmBalance;
+        this.atmBalance.set(atmBalance);
+    }
+    
+    //The balances of all accounts seen so far. If not set, every session uses 
+    //the balance and overdraft given with it in the input file
+    private AccountLedger ledger;
+    private AccountLimits limits;
+    private TransactionHistory history;
+    
+    public AccountLedger getLedger(){
+        return ledger;
+    }
+    
+    public void setLedger(AccountLedger ledger){
+        this.ledger = ledger;
+    }
+    
+    public AccountLimits getLimits(){
+        return limits;
+    }
+    
+    /**
+     * @param limits The daily, withdrawal count and pin lockout limits checked 
+     * for each account, or null for none
+     */
+    public void setLimits(AccountLimits limits){
+        this.limits = limits;
+    }
+    
+    public TransactionHistory getHistory(){
+        return history;
+    }
+    
+    /**
+     * @param history Where every action and failed pin check is recorded, or null
+     */
+    public void setHistory(TransactionHistory history){
+        this.history = history;
+    }
+    
+    //The notes held by the ATM. If set, a withdrawal is only dispensed if 
+    //the notes left can make up the exact amount
+    private CashCassettes cassettes;
+    
+    public CashCassettes getCassettes(){
+        return cassettes;
+    }
+    
+    /**
+     * Loads the ATM with notes. The ATM balance becomes the value of the notes
+     * @param cassettes The notes held by the ATM, or null to only count cash
+     */
+    public void setCassettes(CashCassettes cassettes){
+        this.cassettes = cassettes;
+        if (cassettes != null){
+            atmBalance.set(cassettes.getTotal());
+        }
+    }
+    
+    //Counts and times every operation. If not set, nothing is recorded
+    private AtmMetrics metrics;
+    
+    public AtmMetrics getMetrics(){
+        return metrics;
+    }
+    
+    public void setMetrics(AtmMetrics metrics){
+        this.metrics = metrics;
+    }
+    
+    //Checks the entered pins. If not set, the pins are compared as plain text
+    private PinVerifier pinVerifier;
+    
+    public PinVerifier getPinVerifier(){
+        return pinVerifier;
+    }
+    
+    public void setPinVerifier(PinVerifier pinVerifier){
+        this.pinVerifier = pinVerifier;
     }
     
-    public static void main( String[] args )
+    public static void main( String[] args ) throws IOException
     {
         Atm atm = new Atm();
+        Options options = Options.parse(args);
+        if (options.getShards() > 1){
+            runShards(options);
+            return;
+        }
+        
+        //Load the account balances left by the last run, if there are any
+        Path ledgerPath = null;
+        if (options.getLedgerPath() != null){
+            ledgerPath = Paths.get(options.getLedgerPath());
+            atm.setLedger(Files.exists(ledgerPath) ? AccountLedger.load(ledgerPath) : new AccountLedger());
+        }
         
-        //Read in all the session configurations first
-        InputFileReader myFileReader = new InputFileReader(INPUT_FILE);
-        myFileReader.readFile();
+        //A directory or glob of input files is parsed on several threads
+        if (options.getInputPath() != null && DirectoryIngest.isPattern(options.getInputPath())){
+            runIngest(atm, options);
+            if (ledgerPath != null){
+                atm.getLedger().save(ledgerPath);
+            }
+            return;
+        }
         
-        atm.setAtmBalance(myFileReader.getAtmBalance());        
-        //printDebug(myFileReader.getSessions());
+        //Stream the sessions from the input file, so that only one session 
+        //is held in memory at any time. If a file is given on the command line
+        //it is read from the filesystem, otherwise the bundled input file is used
+        SessionSource sessions = openSessions(options);
+        ScheduledExecutorService metricsTimer = null;
+        WithdrawalJournal journal = null;
+        ReplayCheckpoint checkpoint = null;
+        FileChannel outputFile = null;
+        try {
+            atm.setAtmBalance(sessions.getAtmBalance());
+            if (options.getCassettes() != null){
+                atm.setCassettes(CashCassettes.parse(options.getCassettes(), options.getMaxWithdrawal()));
+            }
+            if (options.getLimits() != null){
+                atm.setLimits(AccountLimits.parse(options.getLimits()));
+            }
+            if (options.getHistoryPath() != null){
+                atm.setHistory(new TransactionHistory(Paths.get(options.getHistoryPath())));
+            }
+            if (options.isHashedPins()){
+                atm.setPinVerifier(newHashedPinVerifier());
+            }
+            
+            //Carry on from the last checkpoint: skip the sessions already run,
+            //and put back the cash and the results as they were
+            ReplayCheckpoint.State resumeFrom = null;
+            if (options.getCheckpointPath() != null){
+                Path checkpointPath = Paths.get(options.getCheckpointPath());
+                Path inputPath = (options.getInputPath() != null) ? Paths.get(options.getInputPath()) : null;
+                if (options.isResume()){
+                    resumeFrom = ReplayCheckpoint.load(checkpointPath);
+                }
+                if (resumeFrom != null){
+                    sessions = ReplayCheckpoint.skip(sessions, inputPath, resumeFrom);
+                    atm.setAtmBalance(resumeFrom.getAtmBalance());
+                }
+                checkpoint = new ReplayCheckpoint(checkpointPath, options.getCheckpointEvery(), inputPath, resumeFrom);
+            }
+            
+            //Results are only printed once the withdrawals behind them are 
+            //journaled, so none of them can be lost by a crash
+            WritableByteChannel output = new FileOutputStream(FileDescriptor.out).getChannel();
+            if (options.getOutputPath() != null){
+                outputFile = openOutput(Paths.get(options.getOutputPath()), 
+                        (resumeFrom != null) ? resumeFrom.getOutputPosition() : 0);
+                output = outputFile;
+            }
+            if (checkpoint != null){
+                output = checkpoint.track(output, outputFile);
+            }
+            if (options.getJournalPath() != null){
+                journal = openJournal(atm, Paths.get(options.getJournalPath()), options.getSnapshotEvery());
+                output = journal.guard(output);
+            }
+            if (options.getMetricsFormat() != null){
+                atm.setMetrics(new AtmMetrics(atm));
+                if (options.getMetricsInterval() > 0){
+                    metricsTimer = atm.getMetrics().startReporting(System.err, 
+                            options.getMetricsFormat(), options.getMetricsInterval());
+                }
+            }
+            
+            if (options.isColumnar()){
+                //Load every session into a columnar store first, then run them
+                ResultSink results = new BufferedResultSink(output);
+                try {
+                    atm.performActions(SessionStore.load(sessions), results);
+                } finally {
+                    results.flush();
+                }
+            }
+            else if (options.isPipeline()){
+                //Check pins on several threads, and run the actions in order
+                SessionPipeline pipeline = new SessionPipeline(atm, options.getThreads());
+                ScheduledExecutorService pipelineTimer = null;
+                if (options.getMetricsFormat() != null && options.getMetricsInterval() > 0){
+                    pipelineTimer = pipeline.startReporting(System.err, options.getMetricsInterval());
+                }
+                try {
+                    pipeline.run(sessions, output);
+                } finally {
+                    if (pipelineTimer != null){
+                        pipelineTimer.shutdown();
+                    }
+                }
+                if (options.getMetricsFormat() != null){
+                    System.err.print(pipeline.describe());
+                }
+            }
+            else if (options.getThreads() > 1){
+                //Spread the sessions across several threads
+                new ParallelSessionRunner(atm, options.getThreads(), options.isOrdered())
+                        .run(sessions, Channels.newOutputStream(output));
+            }
+            else{
+                //Run each session from the input file through the ATM as soon as 
+                //it has been parsed. The results are buffered, and written out
+                //in large batches
+                final ResultSink results = new BufferedResultSink(output);
+                if (sessions instanceof FollowingSessionReader){
+                    //Write out the results whenever the ATM is waiting for the 
+                    //next session to be appended
+                    ((FollowingSessionReader) sessions).setIdleListener(new Runnable() {
+                        public void run(){
+                            results.flush();
+                        }
+                    });
+                }
+                try {
+                    if (checkpoint != null){
+                        while (sessions.hasNext()){
+                            atm.performActions(sessions.next(), results);
+                            checkpoint.sessionDone(sessions, atm, results);
+                        }
+                        checkpoint.checkpoint(sessions, atm, results);
+                    }
+                    else if (atm.getPinVerifier() instanceof HashedPinVerifier && !(sessions instanceof FollowingSessionReader)){
+                        //Work out the pin hashes of the next sessions while each one runs
+                        atm.performActions(sessions, (HashedPinVerifier) atm.getPinVerifier(), 
+                                Runtime.getRuntime().availableProcessors() * 4, results);
+                    }
+                    else{
+                        while (sessions.hasNext()){
+                            atm.performActions(sessions.next(), results);
+                        }
+                    }
+                } finally {
+                    results.flush();
+                }
+            }
+        } finally {
+            sessions.close();
+            if (metricsTimer != null){
+                metricsTimer.shutdown();
+            }
+            if (journal != null){
+                journal.close();
+            }
+            if (atm.getHistory() != null){
+                atm.getHistory().close();
+            }
+            if (atm.getPinVerifier() instanceof HashedPinVerifier){
+                ((HashedPinVerifier) atm.getPinVerifier()).close();
+            }
+            if (checkpoint != null){
+                checkpoint.close();
+            }
+            if (outputFile != null){
+                outputFile.close();
+            }
+        }
         
-        //Run each session from the input file through the ATM
-        for (Session session : myFileReader.getSessions()){
-            atm.performActions(session);
+        if (atm.getMetrics() != null){
+            atm.getMetrics().dump(System.err, options.getMetricsFormat());
+        }
+        if (ledgerPath != null){
+            atm.getLedger().save(ledgerPath);
         }
     }
     
+    /**
+     * Runs the sessions from every input file in a directory or glob, either
+     * merged through the ATM in file order, or each file through an ATM of its own
+     * @param atm The ATM, with the ledger if there is one
+     * @param options The command line options
+     */
+    private static void runIngest(Atm atm, Options options) throws IOException{
+        int threads = (options.getThreads() > 1) ? options.getThreads() : Runtime.getRuntime().availableProcessors();
+        DirectoryIngest ingest = new DirectoryIngest(DirectoryIngest.resolve(options.getInputPath()), threads);
+        if (options.getLimits() != null){
+            atm.setLimits(AccountLimits.parse(options.getLimits()));
+        }
+        if (options.getMetricsFormat() != null){
+            atm.setMetrics(new AtmMetrics(atm));
+        }
+        if (options.getHistoryPath() != null){
+            atm.setHistory(new TransactionHistory(Paths.get(options.getHistoryPath())));
+        }
+        if (options.isHashedPins()){
+            atm.setPinVerifier(newHashedPinVerifier());
+        }
+        try {
+            if (options.getPerFileOutput() != null){
+                ingest.runPerFile(Paths.get(options.getPerFileOutput()));
+            }
+            else{
+                WritableByteChannel output = (options.getOutputPath() != null) 
+                        ? openOutput(Paths.get(options.getOutputPath()), 0) : new FileOutputStream(FileDescriptor.out).getChannel();
+                try {
+                    ingest.runMerged(atm, output);
+                } finally {
+                    if (options.getOutputPath() != null){
+                        output.close();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running input files", e);
+        } finally {
+            if (atm.getHistory() != null){
+                atm.getHistory().close();
+            }
+            if (atm.getPinVerifier() instanceof HashedPinVerifier){
+                ((HashedPinVerifier) atm.getPinVerifier()).close();
+            }
+        }
+        if (atm.getMetrics() != null){
+            atm.getMetrics().dump(System.err, options.getMetricsFormat());
+        }
+    }
+    
+    /**
+     * Runs the sessions across several worker processes, each holding the 
+     * accounts of one shard
+     * @param options The command line options
+     */
+    private static void runShards(Options options) throws IOException{
+        SessionSource sessions = openSessions(options);
+        WritableByteChannel output = null;
+        try {
+            output = (options.getOutputPath() != null) 
+                    ? openOutput(Paths.get(options.getOutputPath()), 0) : new FileOutputStream(FileDescriptor.out).getChannel();
+            new ShardCoordinator(options.getShards(), options.getLedgerPath())
+                    .run(sessions, Channels.newOutputStream(output));
+        } finally {
+            sessions.close();
+            if (output != null && options.getOutputPath() != null){
+                output.close();
+            }
+        }
+    }
+    
+    /**
+     * Opens a results file, keeping the results already written to it up to a
+     * position, and dropping any after it
+     * @param path The results file
+     * @param position The number of bytes to keep, 0 for a new run
+     * @return The file, positioned at its end
+     * @throws IOException If the file could not be opened, or is shorter than the position
+     */
+    private static FileChannel openOutput(Path path, long position) throws IOException{
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < position){
+                throw new IOException("Results file is shorter than the checkpoint: " + path);
+            }
+            channel.truncate(position);
+            channel.position(position);
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * @return A verifier for hashed pins, with one thread per core
+     */
+    private static HashedPinVerifier newHashedPinVerifier(){
+        return new HashedPinVerifier(Runtime.getRuntime().availableProcessors(), 
+                PIN_CACHE_SIZE, PIN_CACHE_MILLIS, Clock.systemUTC());
+    }
+    
+    /**
+     * Recovers the ATM cash and account balances from the journal directory, if it
+     * holds a journal, and starts journaling every withdrawal made by the ATM
+     * @param atm The ATM, with the cash from the input file
+     * @param directory The journal directory
+     * @param snapshotEvery How many withdrawals to journal between snapshots
+     * @return The open journal
+     * @throws IOException If the journal could not be read or opened
+     */
+    private static WithdrawalJournal openJournal(Atm atm, Path directory, long snapshotEvery) throws IOException{
+        WithdrawalJournal.Recovery recovery = WithdrawalJournal.recover(directory);
+        long lastSequence = 0;
+        if (recovery != null){
+            atm.setAtmBalance(recovery.getCash());
+            atm.setLedger(recovery.getLedger());
+            lastSequence = recovery.getLastSequence();
+        }
+        else if (atm.getLedger() == null){
+            //Withdrawals are journaled by the ledger
+            atm.setLedger(new AccountLedger());
+        }
+        WithdrawalJournal journal = new WithdrawalJournal(directory, atm.getLedger(), 
+                atm.getAtmBalance(), lastSequence, snapshotEvery);
+        atm.getLedger().setJournal(journal);
+        return journal;
+    }
+    
+    /**
+     * Opens the input file named on the command line, or the bundled input
+     * file if none was given. The file may be in the text format, or the binary
+     * format written by BinarySessionWriter
+     * @param options The command line options
+     * @return The sessions to run through the ATM
+     * @throws IOException If the input file could not be opened
+     */
+    private static SessionSource openSessions(Options options) throws IOException{
+        if (options.isFollow()){
+            return followSessions(Paths.get(options.getInputPath()));
+        }
+        if (options.getInputPath() != null){
+            Path path = Paths.get(options.getInputPath());
+            if (BinarySessionReader.isBinary(path)){
+                return BinarySessionReader.open(path);
+            }
+            return MappedSessionReader.open(path);
+        }
+        return new InputFileReader(INPUT_FILE).openSessions();
+    }
+    
+    /**
+     * Follows an input file that is still being written. Stopping the program
+     * stops following the file, and waits for the sessions already read to finish,
+     * so that the ledger is still saved and the journal closed
+     * @param path The input file
+     * @return The sessions, as they are appended to the file
+     * @throws IOException If the input file could not be opened
+     */
+    private static SessionSource followSessions(Path path) throws IOException{
+        final FollowingSessionReader reader = new FollowingSessionReader(path, FOLLOW_POLL_MILLIS);
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run(){
+                reader.stop();
+                try {
+                    main.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return reader;
+    }
+    
     /**
      * Each session has a set of actions (Withdrawal, Balance Inquiry) that needs
      * to be run on this ATM. For a single session, this method will execute all
-     * its associated actions
+     * its associated actions. May be called from several threads at once, as 
+     * long as each session is only run on one thread.
+     * 
+     * Declined operations are reported as outcomes rather than exceptions, so
+     * running a session does not allocate anything per action.
      * @param session One ATM operation by a single customer
+     * @param results Where the results are written
      */
-    private void performActions(Session session){
+    void performActions(Session session, ResultSink results){
+        performActions(session, isPinValid(session), results);
+    }
+    
+    /**
+     * Runs every session through the ATM in order, with the pins of the sessions
+     * after the one running checked on the verifier's pool in the meantime, so
+     * slow pin hashes are worked out on several threads. The results are the 
+     * same as running each session in turn
+     * @param sessions The sessions to run
+     * @param verifier The ATM's pin verifier
+     * @param ahead The most sessions whose pins are checked ahead
+     * @param results Where the results are written
+     */
+    void performActions(Iterator<Session> sessions, HashedPinVerifier verifier, int ahead, ResultSink results){
+        Deque<Session> pending = new ArrayDeque<Session>();
+        Deque<Future<Boolean>> checks = new ArrayDeque<Future<Boolean>>();
+        while (true){
+            while (pending.size() < ahead && sessions.hasNext()){
+                Session session = sessions.next();
+                pending.add(session);
+                checks.add(verifier.verifyAsync(session));
+            }
+            if (pending.isEmpty()){
+                return;
+            }
+            performActions(pending.remove(), getPinCheck(checks.remove()), results);
+        }
+    }
+    
+    private static boolean getPinCheck(Future<Boolean> check){
         try {
-            verifyPin(session);
-            for (Action action : session.getActions()){
-                try {
-                    if (action.isBalanceEnquiry()){
-                        displayBalance(session);
-                    }
-                    else if (action.isWithdrawal()){
-                        withdrawFundsAndDisplayBalance(session, action);
-                    }
-                    else{
-                        throw new RuntimeException("Action is not supported in ATM! This should never happen.");
-                    }
-                } catch (AtmException e) {
-                    System.out.println(e.getErrorCode());
+            return check.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking a pin", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error checking a pin", e.getCause());
+        }
+    }
+    
+    /**
+     * Runs a session whose pin has already been checked, see SessionPipeline
+     * @param session One ATM operation by a single customer
+     * @param pinValid The result of isPinValid for the session
+     * @param results Where the results are written
+     */
+    void performActions(Session session, boolean pinValid, ResultSink results){
+        if (!openSession(session, pinValid)){
+            results.error(ErrorCode.ACCOUNT_ERR);
+            return;
+        }
+        if (performActionsInBulk(session, results)){
+            return;
+        }
+        List<Action> actions = session.getActions();
+        for (int i = 0; i < actions.size(); i++){
+            Outcome.report(performAction(session, actions.get(i)), results);
+        }
+    }
+    
+    /**
+     * Runs every action of a session at once, if none of its withdrawals would 
+     * be declined. The checks are run against local copies of the ATM cash and
+     * the account, the total is taken out of the ATM in one go, and the balances
+     * are worked out again as the results are written. The results are the same
+     * as running each action in turn.
+     * 
+     * Only used without a ledger, cassettes, limits or history, where the 
+     * account and the cash are plain numbers, and nothing is recorded per action
+     * @param session One ATM operation by a single customer, already opened
+     * @param results Where the results are written
+     * @return false if a withdrawal would be declined, or the cash ran out in the
+     * meantime, in which case nothing has been done and the actions must be run 
+     * one at a time
+     */
+    private boolean performActionsInBulk(Session session, ResultSink results){
+        if (ledger != null || cassettes != null || limits != null || history != null){
+            return false;
+        }
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        List<Action> actions = session.getActions();
+        long cash = atmBalance.get();
+        long balance = session.getBalance();
+        long overdraft = session.getOverdraft();
+        long total = 0;
+        for (int i = 0; i < actions.size(); i++){
+            Action action = actions.get(i);
+            if (action.isWithdrawal()){
+                //The same checks as withdraw, in the same order
+                long amount = action.getAmount();
+                if (amount > cash - total || balance + overdraft < amount){
+                    return false;
                 }
+                balance -= amount;
+                overdraft = getOverdraftAfter(overdraft, balance);
+                total += amount;
             }
-        } catch (AtmException e) {
-            System.out.println(e.getErrorCode());
+            else if (!action.isBalanceEnquiry()){
+                return false;
+            }
+        }
+        if (total != 0 && reserveCash(total) == CashCassettes.NO_NOTES){
+            return false;
         }
+        
+        //Every action succeeds, so replay the balances into the results
+        long nanos = (metrics != null) ? (System.nanoTime() - start) / Math.max(actions.size(), 1) : 0;
+        balance = session.getBalance();
+        overdraft = session.getOverdraft();
+        for (int i = 0; i < actions.size(); i++){
+            Action action = actions.get(i);
+            if (action.isWithdrawal()){
+                balance -= action.getAmount();
+                overdraft = getOverdraftAfter(overdraft, balance);
+                if (metrics != null){
+                    metrics.recordWithdrawal(balance, nanos);
+                }
+            }
+            else if (metrics != null){
+                metrics.recordBalanceEnquiry(nanos);
+            }
+            results.balance(balance);
+        }
+        session.setBalance(balance);
+        session.setOverdraft(overdraft);
+        return true;
     }
     
     /**
-     * Available funds = current account balance + overdraft facility
+     * Starts a session: checks the pin, and picks up the account balance from 
+     * the ledger if there is one. Only if this returns true may the session's 
+     * actions be run with performAction
      * @param session One ATM operation by a single customer
+     * @return false if the pin is incorrect, or the account number cannot be held
+     * by the ledger, limits or history, which is reported as ACCOUNT_ERR
      */
-    private long getAvailableFunds(Session session){
-        return session.getBalance() + session.getOverdraft();
+    boolean openSession(Session session){
+        return openSession(session, isPinValid(session));
+    }
+    
+    private boolean openSession(Session session, boolean pinValid){
+        if ((ledger != null || limits != null || history != null)
+                && !AccountLedger.isValidAccount(session.getAccountNumber())){
+            //The account could not be told apart from another, see AccountLedger
+            return false;
+        }
+        if (limits != null){
+            //A locked account is turned away even with the right pin
+            pinValid = limits.checkPin(session.getAccountNumber(), pinValid);
+        }
+        if (!pinValid){
+            if (metrics != null){
+                metrics.recordPinFailure();
+            }
+            if (history != null){
+                history.recordPinFailure(session);
+            }
+            return false;
+        }
+        if (ledger != null){
+            ledger.open(session);
+        }
+        return true;
+    }
+    
+    /**
+     * Runs a single action for a session that has been opened with openSession
+     * @param session One ATM operation by a single customer
+     * @param action A withdrawal or balance enquiry
+     * @return The account balance, or ATM_ERR, FUNDS_ERR or LIMIT_ERR packed as an Outcome
+     */
+    long performAction(Session session, Action action){
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        if (action.isBalanceEnquiry()){
+            long balance = getBalance(session);
+            if (metrics != null){
+                metrics.recordBalanceEnquiry(System.nanoTime() - start);
+            }
+            if (history != null){
+                history.record(session, action, balance);
+            }
+            return balance;
+        }
+        else if (action.isWithdrawal()){
+            long outcome = withdraw(session, action);
+            if (metrics != null){
+                metrics.recordWithdrawal(outcome, System.nanoTime() - start);
+            }
+            if (history != null){
+                history.record(session, action, outcome);
+            }
+            return outcome;
+        }
+        else{
+            throw new RuntimeException("Action is not supported in ATM! This should never happen.");
+        }
+    }
+    
+    /**
+     * Runs every session in a session store through the ATM, in order
+     * @param store The sessions to run
+     * @param results Where the results are written
+     */
+    void performActions(SessionStore store, ResultSink results){
+        for (int i = 0; i < store.size(); i++){
+            performActions(store, i, results);
+        }
+    }
+    
+    /**
+     * Runs one session from a session store, working directly on the store's
+     * arrays, with the same results as running the equivalent Session object
+     * @param store Holds the session
+     * @param index The session to run
+     * @param results Where the results are written
+     */
+    void performActions(SessionStore store, int index, ResultSink results){
+        if (ledger != null || limits != null || history != null || pinVerifier != null){
+            //The ledger, limits, history and pin verifier work on sessions, so run a copy of this one
+            Session session = store.getSession(index);
+            performActions(session, results);
+            store.setBalance(index, session.getBalance());
+            store.setOverdraft(index, session.getOverdraft());
+            return;
+        }
+        if (!store.isPinValid(index)){
+            if (metrics != null){
+                metrics.recordPinFailure();
+            }
+            results.error(ErrorCode.ACCOUNT_ERR);
+            return;
+        }
+        long balance = store.getBalance(index);
+        long overdraft = store.getOverdraft(index);
+        int end = store.getActionEnd(index);
+        for (int a = store.getActionStart(index); a < end; a++){
+            long start = (metrics != null) ? System.nanoTime() : 0;
+            byte type = store.getActionType(a);
+            if (type == SessionStore.BALANCE_ENQUIRY){
+                if (metrics != null){
+                    metrics.recordBalanceEnquiry(System.nanoTime() - start);
+                }
+                results.balance(balance);
+            }
+            else if (type == SessionStore.WITHDRAWAL){
+                long outcome = withdraw(balance, overdraft, store.getAmount(a));
+                if (!Outcome.isError(outcome)){
+                    overdraft = getOverdraftAfter(overdraft, outcome);
+                    balance = outcome;
+                }
+                if (metrics != null){
+                    metrics.recordWithdrawal(outcome, System.nanoTime() - start);
+                }
+                Outcome.report(outcome, results);
+            }
+            else{
+                throw new RuntimeException("Action is not supported in ATM! This should never happen.");
+            }
+        }
+        store.setBalance(index, balance);
+        store.setOverdraft(index, overdraft);
     }
     
     /**
@@ -99,10 +787,23 @@ public class Atm {
      * @throws AtmException If expected pin != entered pin
      */
     public void verifyPin(Session session) throws AtmException{
-        if (!session.getExpectedPin().equals(session.getEnteredPin())){
+        if (!isPinValid(session)){
             throw new AtmException(ErrorCode.ACCOUNT_ERR);
         }
     }
+    
+    /**
+     * Compares the user entered pin, to the pin associated with the account,
+     * using the pin verifier if one is set
+     * @param session One ATM operation by a single customer
+     * @return false If expected pin != entered pin
+     */
+    public boolean isPinValid(Session session){
+        if (pinVerifier != null){
+            return pinVerifier.verify(session);
+        }
+        return session.getExpectedPin().equals(session.getEnteredPin());
+    }
 
     /**
      * Withdraws money from the session's account, and displays the new balance.
@@ -115,36 +816,214 @@ public class Atm {
      * @throws AtmException If the ATM or account does not have enough funds available
      */
     public void withdrawFundsAndDisplayBalance(Session session, Action action) throws AtmException{
-        //Check to see if the ATM has enough funds to dispense
-        if(action.getAmount() > atmBalance){
-            throw new AtmException(ErrorCode.ATM_ERR);
-        }
+        withdrawFunds(session, action);
         
-        //Check to see if the session account balance has enough funds available
-        if (getAvailableFunds(session) < action.getAmount()){
-            throw new AtmException(ErrorCode.FUNDS_ERR);
+        //Print the new account balance
+        displayBalance(session);
+    }
+    
+    /**
+     * Withdraws money from the session's account, as for withdrawFundsAndDisplayBalance,
+     * but returns the new balance instead of printing it.
+     * @param session One ATM operation by a single customer
+     * @param action A withdrawal action, contains the amount to withdraw
+     * @return The new account balance
+     * @throws AtmException If the ATM or account does not have enough funds available
+     */
+    long withdrawFunds(Session session, Action action) throws AtmException{
+        long outcome = withdraw(session, action);
+        if (Outcome.isError(outcome)){
+            throw new AtmException(Outcome.errorCode(outcome));
+        }
+        return outcome;
+    }
+    
+    /**
+     * Withdraws money from the session's account. This is the same withdrawal as
+     * withdrawFunds, but a declined withdrawal is returned as an outcome instead
+     * of being thrown, so that nothing is allocated.
+     * 
+     * The check that the ATM holds enough cash and the update of the ATM balance
+     * happen in one compare-and-set, so two threads can never both take the 
+     * last of the cash.
+     * 
+     * @param session One ATM operation by a single customer
+     * @param action A withdrawal action, contains the amount to withdraw
+     * @return The new account balance, or ATM_ERR, FUNDS_ERR or LIMIT_ERR packed 
+     * as an Outcome
+     */
+    public long withdraw(Session session, Action action){
+        if (limits != null){
+            return withdrawWithinLimits(session, action);
+        }
+        if (ledger != null){
+            return withdrawFromLedger(session, action);
         }
         
-        //Assertion: We have enough money in the ATM and the session account to perform
-        //this withdrawal
-     
-        //Update the balance of the ATM
-        atmBalance -= action.getAmount();
-        
-        //Get the new session account balance
-        long newBalance = session.getBalance() - action.getAmount();
+        long newBalance = withdraw(session.getBalance(), session.getOverdraft(), action.getAmount());
+        if (!Outcome.isError(newBalance)){
+            //If the new session account balance is now negative, 
+            //we need to dip into the overdraft
+            session.setOverdraft(getOverdraftAfter(session.getOverdraft(), newBalance));
+            
+            //Update the account balance
+            session.setBalance(newBalance);
+        }
+        return newBalance;
+    }
+    
+    /**
+     * Withdraws money from the session's account, if the account's limits allow
+     * it. The withdrawal is counted against the limits first, and taken back if
+     * the withdrawal is then declined
+     * @param session One ATM operation by a single customer
+     * @param action A withdrawal action, contains the amount to withdraw
+     * @return The new account balance, or ATM_ERR, FUNDS_ERR or LIMIT_ERR packed 
+     * as an Outcome
+     */
+    private long withdrawWithinLimits(Session session, Action action){
+        if (!limits.acquire(session.getAccountNumber(), action.getAmount())){
+            return Outcome.error(ErrorCode.LIMIT_ERR);
+        }
+        long outcome;
+        if (ledger != null){
+            outcome = withdrawFromLedger(session, action);
+        }
+        else{
+            outcome = withdraw(session.getBalance(), session.getOverdraft(), action.getAmount());
+            if (!Outcome.isError(outcome)){
+                session.setOverdraft(getOverdraftAfter(session.getOverdraft(), outcome));
+                session.setBalance(outcome);
+            }
+        }
+        if (Outcome.isError(outcome)){
+            limits.release(session.getAccountNumber(), action.getAmount());
+        }
+        return outcome;
+    }
+    
+    /**
+     * Checks a withdrawal against the ATM cash and the account's available funds,
+     * and takes the cash out of the ATM. The account itself is left for the 
+     * caller to update, using the returned balance and getOverdraftAfter
+     * @param balance The current account balance
+     * @param overdraft The current overdraft facility
+     * @param amount The amount to withdraw
+     * @return The new account balance, or ATM_ERR or FUNDS_ERR packed as an Outcome
+     */
+    private long withdraw(long balance, long overdraft, long amount){
+        //Check to see if the ATM has enough funds to dispense
+        if(amount > atmBalance.get()){
+            return Outcome.error(ErrorCode.ATM_ERR);
+        }
         
-        //If the new session account balance is now negative, 
-        //we need to dip into the overdraft
-        if (newBalance < 0){
-            session.setOverdraft(session.getOverdraft() + newBalance);
+        //Check to see if the account has enough funds available:
+        //Available funds = current account balance + overdraft facility
+        if (balance + overdraft < amount){
+            return Outcome.error(ErrorCode.FUNDS_ERR);
         }
         
-        //Update the account balance
-        session.setBalance(newBalance);
+        //Update the balance of the ATM. Another thread may have taken cash out
+        //since the check above, in which case the ATM is now short
+        if (reserveCash(amount) == CashCassettes.NO_NOTES){
+            return Outcome.error(ErrorCode.ATM_ERR);
+        }
         
-        //Print the new account balance
-        displayBalance(session);
+        //Assertion: We have enough money in the ATM and the account to perform
+        //this withdrawal
+        return balance - amount;
+    }
+    
+    /**
+     * If the new account balance is negative, the overdraft facility is reduced 
+     * by the amount the account is overdrawn
+     * @param overdraft The overdraft facility before the withdrawal
+     * @param newBalance The account balance after the withdrawal
+     * @return The overdraft facility after the withdrawal
+     */
+    private static long getOverdraftAfter(long overdraft, long newBalance){
+        return (newBalance < 0) ? overdraft + newBalance : overdraft;
+    }
+    
+    /**
+     * Withdraws money from the session's account held in the ledger. The ATM
+     * cash and the account's available funds are checked first, so that a
+     * withdrawal the account cannot cover never holds cash another withdrawal
+     * needs. The cash is then taken out of the ATM, and put back if the account
+     * was drawn down in the meantime, so that the ledger never needs to be
+     * rolled back
+     * @param session One ATM operation by a single customer
+     * @param action A withdrawal action, contains the amount to withdraw
+     * @return The new account balance, or ATM_ERR or FUNDS_ERR packed as an Outcome
+     */
+    private long withdrawFromLedger(Session session, Action action){
+        if (action.getAmount() > atmBalance.get()){
+            return Outcome.error(ErrorCode.ATM_ERR);
+        }
+        ledger.refresh(session);
+        if (session.getBalance() + session.getOverdraft() < action.getAmount()){
+            return Outcome.error(ErrorCode.FUNDS_ERR);
+        }
+        long notes = reserveCash(action.getAmount());
+        if (notes == CashCassettes.NO_NOTES){
+            return Outcome.error(ErrorCode.ATM_ERR);
+        }
+        if (!ledger.withdraw(session, action.getAmount())){
+            returnCash(action.getAmount(), notes);
+            return Outcome.error(ErrorCode.FUNDS_ERR);
+        }
+        return session.getBalance();
+    }
+    
+    /**
+     * Returns the account balance, from the ledger if there is one
+     * @param session One ATM operation by a single customer
+     */
+    private long getBalance(Session session){
+        if (ledger != null){
+            ledger.refresh(session);
+        }
+        return session.getBalance();
+    }
+    
+    /**
+     * Takes cash out of the ATM, if it holds at least that amount. If the ATM
+     * holds notes, the notes must make up the exact amount
+     * @param amount The amount to take out
+     * @return The notes taken out of the cassettes, 0 if the ATM has no cassettes,
+     * or NO_NOTES if the ATM cannot dispense the amount, in which case the ATM 
+     * balance is unchanged
+     */
+    private long reserveCash(long amount){
+        if (cassettes != null){
+            long notes = cassettes.dispense(amount);
+            if (notes != CashCassettes.NO_NOTES){
+                atmBalance.addAndGet(-amount);
+            }
+            return notes;
+        }
+        long current;
+        do {
+            current = atmBalance.get();
+            if (amount > current){
+                return CashCassettes.NO_NOTES;
+            }
+        } while (!atmBalance.compareAndSet(current, current - amount));
+        return 0;
+    }
+    
+    /**
+     * Puts cash taken out by reserveCash back into the ATM
+     * @param amount The amount taken out
+     * @param notes The notes returned by reserveCash
+     */
+    private void returnCash(long amount, long notes){
+        //The balance goes up first, so it is never below the value of the 
+        //notes and never turns a withdrawal away early
+        atmBalance.addAndGet(amount);
+        if (cassettes != null){
+            cassettes.restock(notes);
+        }
     }
     
     /**
@@ -9,6 +9,9 @@ package com.akqa.test.henrikpettersen;
  * Throws an exception for ACCOUNT_ERR, FUNDS_ERR, and ATM_ERR. The enum ErrorCode
  * keeps track if which one of these problems where encountered
  *
+ * The ATM itself reports these problems as an Outcome, which does not allocate.
+ * This exception is only thrown by the methods that keep the older API, such as
+ * verifyPin and withdrawFundsAndDisplayBalance.
  */
 public class AtmException extends Exception {
     
@@ -0,0 +1,180 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives an AtmServer from many terminal connections at once, and reports the
+ * number of actions answered per second and the latency of each answer.
+ *
+ * Each connection runs its sessions one after the other, and waits for the
+ * answer to each action before sending the next, as a real terminal would.
+ * One session in ten is sent with the wrong PIN. The same seed always sends
+ * the same sessions.
+ *
+ * Run with:
+ *  java com.akqa.test.henrikpettersen.AtmLoadGenerator [--host H] [--port P]
+ *      [--connections N] [--sessions N] [--seed N]
+ */
+public class AtmLoadGenerator {
+
+    private final String host;
+    private final int port;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong answers = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public AtmLoadGenerator(String host, int port){
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws InterruptedException{
+        String host = "localhost";
+        int port = 9000;
+        int connections = 100;
+        int sessions = 1000;
+        long seed = 1;
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("--host")){
+                host = args[++i];
+            }
+            else if (args[i].equals("--port")){
+                port = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("--connections")){
+                connections = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("--sessions")){
+                sessions = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("--seed")){
+                seed = Long.parseLong(args[++i]);
+            }
+            else{
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        AtmLoadGenerator generator = new AtmLoadGenerator(host, port);
+        long nanos = generator.run(connections, sessions, seed);
+        System.out.print(generator.report(nanos));
+    }
+
+    /**
+     * Runs every connection to the end
+     * @param connections The number of terminal connections, each on its own thread
+     * @param sessions The number of sessions sent on each connection
+     * @param seed The random seed
+     * @return How long the run took, in nanoseconds
+     */
+    public long run(int connections, final int sessions, long seed) throws InterruptedException{
+        final CountDownLatch done = new CountDownLatch(connections);
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++){
+            final long connectionSeed = seed * 31 + i;
+            threads[i] = new Thread(new Runnable() {
+                public void run(){
+                    try {
+                        runConnection(sessions, new Random(connectionSeed));
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "atm-load-" + i);
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads){
+            thread.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    public long getAnswers(){
+        return answers.get();
+    }
+
+    public long getErrors(){
+        return errors.get();
+    }
+
+    /**
+     * @param nanos How long the run took
+     * @return The throughput and latency of the run, as text
+     */
+    public String report(long nanos){
+        long[] counts = latency.getCounts();
+        double seconds = nanos / 1e9;
+        return "answers: " + answers.get() + "\n"
+                + "connection_errors: " + errors.get() + "\n"
+                + "seconds: " + seconds + "\n"
+                + "answers_per_second: " + (long) (answers.get() / seconds) + "\n"
+                + "latency_ns: p50=" + LatencyHistogram.percentile(counts, 50)
+                + " p99=" + LatencyHistogram.percentile(counts, 99)
+                + " p999=" + LatencyHistogram.percentile(counts, 99.9) + "\n";
+    }
+
+    private void runConnection(int sessions, Random random) throws IOException{
+        Socket socket = new Socket(host, port);
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            for (int s = 0; s < sessions; s++){
+                int pin = 1000 + random.nextInt(9000);
+                boolean wrongPin = random.nextInt(10) == 0;
+                send(out, (10000000 + random.nextInt(90000000)) + " " + pin + " " + (wrongPin ? pin + 1 : pin) + "\n");
+
+                //The server answers a wrong PIN as soon as it has the balance line
+                String funds = random.nextInt(1000) + " " + random.nextInt(200) + "\n";
+                if (wrongPin){
+                    request(out, in, funds);
+                }
+                else{
+                    send(out, funds);
+                    int actions = 1 + random.nextInt(5);
+                    for (int a = 0; a < actions; a++){
+                        request(out, in, random.nextInt(10) < 3 ? "B\n" : "W " + (1 + random.nextInt(600)) + "\n");
+                    }
+                }
+                send(out, "\n");
+            }
+            out.flush();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void send(OutputStream out, String text) throws IOException{
+        out.write(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Sends a line, and waits for the answer line
+     */
+    private void request(OutputStream out, InputStream in, String text) throws IOException{
+        long start = System.nanoTime();
+        send(out, text);
+        out.flush();
+        int b;
+        while ((b = in.read()) != '\n'){
+            if (b < 0){
+                throw new IOException("Connection closed by server");
+            }
+        }
+        latency.record(System.nanoTime() - start);
+        answers.incrementAndGet();
+    }
+}
@@ -0,0 +1,204 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the ATM has done, and how long it took:
+ *  - The number of withdrawals and balance enquiries
+ *  - The number of each ErrorCode returned
+ *  - A latency histogram for withdrawals and one for balance enquiries
+ *  - The ATM cash level, now and at the start of the run
+ * 
+ * The counters are striped, so sessions running on several threads can record
+ * at the same time without contending. Recording does not allocate. When the
+ * ATM has no metrics set, nothing is recorded, and the only cost is a null check.
+ * 
+ * A snapshot can be written as text or as JSON, at the end of a run or on a timer.
+ */
+public class AtmMetrics {
+    
+    public enum Format {
+        TEXT, JSON
+    }
+    
+    private final Atm atm;
+    private final long startCash;
+    
+    private final LongAdder withdrawals = new LongAdder();
+    private final LongAdder balanceEnquiries = new LongAdder();
+    private final LongAdder[] errors = new LongAdder[ErrorCode.values().length];
+    private final LatencyHistogram withdrawalLatency = new LatencyHistogram();
+    private final LatencyHistogram balanceEnquiryLatency = new LatencyHistogram();
+    
+    /**
+     * @param atm The ATM whose cash level is reported
+     */
+    public AtmMetrics(Atm atm){
+        this.atm = atm;
+        this.startCash = atm.getAtmBalance();
+        for (int i = 0; i < errors.length; i++){
+            errors[i] = new LongAdder();
+        }
+    }
+    
+    /**
+     * @param outcome The outcome of the withdrawal
+     * @param nanos How long the withdrawal took
+     */
+    public void recordWithdrawal(long outcome, long nanos){
+        withdrawals.increment();
+        withdrawalLatency.record(nanos);
+        if (Outcome.isError(outcome)){
+            errors[Outcome.errorCode(outcome).ordinal()].increment();
+        }
+    }
+    
+    /**
+     * @param nanos How long the balance enquiry took
+     */
+    public void recordBalanceEnquiry(long nanos){
+        balanceEnquiries.increment();
+        balanceEnquiryLatency.record(nanos);
+    }
+    
+    /**
+     * A session was turned away because the pin was incorrect
+     */
+    public void recordPinFailure(){
+        errors[ErrorCode.ACCOUNT_ERR.ordinal()].increment();
+    }
+    
+    public long getWithdrawals(){
+        return withdrawals.sum();
+    }
+    
+    public long getBalanceEnquiries(){
+        return balanceEnquiries.sum();
+    }
+    
+    public long getErrors(ErrorCode errorCode){
+        return errors[errorCode.ordinal()].sum();
+    }
+    
+    public LatencyHistogram getWithdrawalLatency(){
+        return withdrawalLatency;
+    }
+    
+    public LatencyHistogram getBalanceEnquiryLatency(){
+        return balanceEnquiryLatency;
+    }
+    
+    /**
+     * Writes a snapshot of the metrics. The counters keep counting while the 
+     * snapshot is taken, so the figures may be a few operations apart
+     * @param out Where the snapshot is written
+     * @param format Text or JSON
+     */
+    public void dump(PrintStream out, Format format){
+        if (format == Format.JSON){
+            out.println(toJson());
+        }
+        else{
+            out.print(toText());
+        }
+        out.flush();
+    }
+    
+    /**
+     * Writes a snapshot of the metrics every period, on a daemon thread, until
+     * the returned executor is shut down
+     * @param out Where the snapshots are written
+     * @param format Text or JSON
+     * @param periodSeconds How often to write a snapshot
+     * @return The executor writing the snapshots
+     */
+    public ScheduledExecutorService startReporting(final PrintStream out, final Format format, long periodSeconds){
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "atm-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            public void run(){
+                dump(out, format);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        return timer;
+    }
+    
+    String toText(){
+        StringBuilder text = new StringBuilder();
+        text.append("withdrawals: ").append(getWithdrawals()).append('\n');
+        text.append("balance_enquiries: ").append(getBalanceEnquiries()).append('\n');
+        for (ErrorCode errorCode : ErrorCode.values()){
+            text.append(errorCode).append(": ").append(getErrors(errorCode)).append('\n');
+        }
+        text.append("atm_cash: ").append(atm.getAtmBalance()).append('\n');
+        text.append("atm_cash_start: ").append(startCash).append('\n');
+        appendText(text, "withdrawal_latency", withdrawalLatency);
+        appendText(text, "balance_enquiry_latency", balanceEnquiryLatency);
+        return text.toString();
+    }
+    
+    private void appendText(StringBuilder text, String name, LatencyHistogram histogram){
+        long[] counts = histogram.getCounts();
+        text.append(name).append("_ns: p50=").append(LatencyHistogram.percentile(counts, 50))
+            .append(" p99=").append(LatencyHistogram.percentile(counts, 99))
+            .append(" p999=").append(LatencyHistogram.percentile(counts, 99.9))
+            .append(" total=").append(histogram.getTotalNanos()).append('\n');
+        for (int i = 0; i < counts.length; i++){
+            if (counts[i] > 0){
+                text.append("  <=").append(LatencyHistogram.upperBound(i)).append(": ").append(counts[i]).append('\n');
+            }
+        }
+    }
+    
+    String toJson(){
+        StringBuilder json = new StringBuilder();
+        json.append("{\"withdrawals\":").append(getWithdrawals());
+        json.append(",\"balance_enquiries\":").append(getBalanceEnquiries());
+        json.append(",\"errors\":{");
+        for (ErrorCode errorCode : ErrorCode.values()){
+            if (errorCode.ordinal() > 0){
+                json.append(',');
+            }
+            json.append('"').append(errorCode).append("\":").append(getErrors(errorCode));
+        }
+        json.append("},\"atm_cash\":").append(atm.getAtmBalance());
+        json.append(",\"atm_cash_start\":").append(startCash);
+        json.append(",\"latency_ns\":{");
+        appendJson(json, "withdrawal", withdrawalLatency);
+        json.append(',');
+        appendJson(json, "balance_enquiry", balanceEnquiryLatency);
+        json.append("}}");
+        return json.toString();
+    }
+    
+    private void appendJson(StringBuilder json, String name, LatencyHistogram histogram){
+        long[] counts = histogram.getCounts();
+        json.append('"').append(name).append("\":{");
+        json.append("\"p50\":").append(LatencyHistogram.percentile(counts, 50));
+        json.append(",\"p99\":").append(LatencyHistogram.percentile(counts, 99));
+        json.append(",\"p999\":").append(LatencyHistogram.percentile(counts, 99.9));
+        json.append(",\"total\":").append(histogram.getTotalNanos());
+        json.append(",\"buckets\":{");
+        boolean first = true;
+        for (int i = 0; i < counts.length; i++){
+            if (counts[i] > 0){
+                if (!first){
+                    json.append(',');
+                }
+                json.append('"').append(LatencyHistogram.upperBound(i)).append("\":").append(counts[i]);
+                first = false;
+            }
+        }
+        json.append("}}");
+    }
+}
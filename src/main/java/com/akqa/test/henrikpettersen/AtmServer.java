@@ -0,0 +1,395 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves one ATM to many terminal front-ends over TCP. Each terminal sends
+ * sessions in the same text format as the input file, without the ATM balance
+ * at the top:
+ *  - The account number, correct PIN and entered PIN, on one line
+ *  - The current balance and overdraft facility, on the next line
+ *  - Then one action per line, W {amount} or B
+ *  - A blank line marks the end of the session
+ *
+ * The server answers each action with a line holding the remaining balance, or
+ * the error code. If the PIN is incorrect, the server answers ACCOUNT_ERR as
+ * soon as the balance line arrives, and ignores the actions of that session.
+ *
+ * Connections are spread across a fixed number of event loops, each a single
+ * thread with a non-blocking selector, so a few threads serve tens of thousands
+ * of connections. The ATM cash is shared by all connections.
+ *
+ * Run with:
+ *  java com.akqa.test.henrikpettersen.AtmServer [--port P] [--cash N]
+ *      [--loops N] [--ledger FILE] [--metrics text|json]
+ */
+public class AtmServer implements Closeable {
+
+    //Lines longer than this are not part of the protocol, and close the connection
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    //Stop reading from a connection while this much output is waiting to be sent
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private final Atm atm;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    /**
+     * Starts the server
+     * @param atm The ATM the terminals use
+     * @param port The port to listen on, or 0 for any free port
+     * @param loopCount The number of event loop threads
+     * @throws IOException If the server socket could not be opened
+     */
+    public AtmServer(Atm atm, int port, int loopCount) throws IOException{
+        this.atm = atm;
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++){
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        acceptor = new Thread(new Runnable() {
+            public void run(){
+                accept();
+            }
+        }, "atm-server-acceptor");
+        acceptor.start();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException{
+        int port = 9000;
+        long cash = 0;
+        int loopCount = Runtime.getRuntime().availableProcessors();
+        String ledgerFile = null;
+        AtmMetrics.Format metricsFormat = null;
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("--port")){
+                port = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("--cash")){
+                cash = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("--loops")){
+                loopCount = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("--ledger")){
+                ledgerFile = args[++i];
+            }
+            else if (args[i].equals("--metrics")){
+                metricsFormat = AtmMetrics.Format.valueOf(args[++i].toUpperCase());
+            }
+            else{
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        final Atm atm = new Atm();
+        atm.setAtmBalance(cash);
+        final Path ledgerPath = (ledgerFile != null) ? Paths.get(ledgerFile) : null;
+        if (ledgerPath != null){
+            atm.setLedger(Files.exists(ledgerPath) ? AccountLedger.load(ledgerPath) : new AccountLedger());
+        }
+        final AtmMetrics.Format format = metricsFormat;
+        if (format != null){
+            atm.setMetrics(new AtmMetrics(atm));
+        }
+
+        final AtmServer server = new AtmServer(atm, port, loopCount);
+        System.err.println("ATM server listening on port " + server.getPort());
+
+        //Save the ledger and write the metrics when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run(){
+                try {
+                    server.close();
+                    if (ledgerPath != null){
+                        atm.getLedger().save(ledgerPath);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (format != null){
+                    atm.getMetrics().dump(System.err, format);
+                }
+            }
+        });
+        server.acceptor.join();
+    }
+
+    /**
+     * @return The port the server is listening on
+     */
+    public int getPort(){
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections, and closes every open connection
+     */
+    public void close() throws IOException{
+        running = false;
+        server.close();
+        for (EventLoop loop : loops){
+            loop.selector.wakeup();
+        }
+        try {
+            acceptor.join();
+            for (EventLoop loop : loops){
+                loop.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accepts connections, and hands them to the event loops in turn
+     */
+    private void accept(){
+        int next = 0;
+        while (running){
+            try {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.pending.add(channel);
+                loop.selector.wakeup();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (running){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A single thread serving its share of the connections
+     */
+    private class EventLoop extends Thread {
+        final Selector selector;
+        final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+        EventLoop(int index) throws IOException{
+            super("atm-server-loop-" + index);
+            this.selector = Selector.open();
+        }
+
+        public void run(){
+            try {
+                while (running){
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null){
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new Connection(channel, key));
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()){
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()){
+                                connection.write();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            //A broken connection or a malformed session only
+                            //affects that terminal
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()){
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private enum State {
+        ACCOUNT, FUNDS, ACTIONS, SKIP
+    }
+
+    /**
+     * One terminal connection. Reads lines, runs them through the ATM as they
+     * arrive, and buffers the results until the socket can take them
+     */
+    private class Connection implements WritableByteChannel {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(8192);
+        private final byte[] line = new byte[MAX_LINE_LENGTH];
+        private int lineLength;
+        private ByteBuffer out = ByteBuffer.allocate(1024);
+        private final BufferedResultSink results = new BufferedResultSink(this, 1024);
+
+        private State state = State.ACCOUNT;
+        private Session session;
+
+        Connection(SocketChannel channel, SelectionKey key){
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException{
+            in.clear();
+            int read = channel.read(in);
+            if (read < 0){
+                close();
+                return;
+            }
+            in.flip();
+            while (in.hasRemaining()){
+                byte b = in.get();
+                if (b == '\n'){
+                    processLine(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1).trim());
+                    lineLength = 0;
+                }
+                else{
+                    if (lineLength == MAX_LINE_LENGTH){
+                        throw new IllegalStateException("Line too long");
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            results.flush();
+            write();
+        }
+
+        private void processLine(String text){
+            if (text.startsWith("#")){
+                return;
+            }
+            switch (state){
+            case ACCOUNT:
+                //Any extra blank lines between sessions are ignored
+                if (!text.isEmpty()){
+                    String[] acctElements = text.split("\\s+");
+                    session = new Session();
+                    session.setAccountNumber(acctElements[0]);
+                    session.setExpectedPin(acctElements[1]);
+                    session.setEnteredPin(acctElements[2]);
+                    state = State.FUNDS;
+                }
+                break;
+            case FUNDS:
+                String[] fundsElements = text.split("\\s+");
+                session.setBalance(Long.parseLong(fundsElements[0]));
+                session.setOverdraft(Long.parseLong(fundsElements[1]));
+                if (atm.openSession(session)){
+                    state = State.ACTIONS;
+                }
+                else{
+                    results.error(ErrorCode.ACCOUNT_ERR);
+                    state = State.SKIP;
+                }
+                break;
+            case ACTIONS:
+                if (text.isEmpty()){
+                    state = State.ACCOUNT;
+                }
+                else{
+                    String[] wdrElements = text.split("\\s+");
+                    Action action = Action.createAction(wdrElements[0]);
+                    if (action.isWithdrawal()){
+                        action.setAmount(Long.parseLong(wdrElements[1]));
+                    }
+                    Outcome.report(atm.performAction(session, action), results);
+                }
+                break;
+            case SKIP:
+                if (text.isEmpty()){
+                    state = State.ACCOUNT;
+                }
+                break;
+            }
+        }
+
+        /**
+         * Sends as much of the buffered output as the socket will take, and
+         * stops reading from a terminal that is not reading its results
+         */
+        void write() throws IOException{
+            out.flip();
+            channel.write(out);
+            out.compact();
+
+            int interest = SelectionKey.OP_READ;
+            if (out.position() > 0){
+                interest |= SelectionKey.OP_WRITE;
+                if (out.position() >= MAX_PENDING_OUTPUT){
+                    interest &= ~SelectionKey.OP_READ;
+                }
+            }
+            key.interestOps(interest);
+        }
+
+        /**
+         * Called by the result sink: appends the formatted results to the output
+         * waiting to be sent
+         */
+        public int write(ByteBuffer src){
+            int length = src.remaining();
+            if (out.remaining() < length){
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            out.put(src);
+            return length;
+        }
+
+        public boolean isOpen(){
+            return channel.isOpen();
+        }
+
+        public void close(){
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
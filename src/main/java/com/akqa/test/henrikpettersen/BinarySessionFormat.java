@@ -0,0 +1,41 @@
+package com.akqa.test.henrikpettersen;
+
+/**
+ * A compact binary encoding of the ATM input file. It holds the same data as the
+ * text format described in InputFileReader, without the comments:
+ *  - The magic number "ATMB" and a format version byte
+ *  - The total cash held in the ATM (signed varint)
+ *  - Zero or more sessions, up to the end of the file. Each session consists of:
+ *     + The account number, correct PIN and entered PIN, each as a length byte
+ *       followed by that many ASCII characters
+ *     + The customer's current balance and overdraft facility (signed varints)
+ *     + The number of actions (unsigned varint)
+ *     + Each action as a type byte, 'W' or 'B'. A withdrawal is followed by the
+ *       amount (signed varint)
+ * 
+ * Varints use 7 bits per byte, lowest bits first, with the top bit set on every
+ * byte but the last. Signed values are zigzag encoded first, so that small 
+ * negative numbers stay short.
+ */
+final class BinarySessionFormat {
+    
+    static final byte[] MAGIC = { 'A', 'T', 'M', 'B' };
+    static final byte VERSION = 1;
+    
+    static final byte WITHDRAWAL = 'W';
+    static final byte BALANCE_ENQUIRY = 'B';
+    
+    //Account numbers and PINs are written with a single length byte
+    static final int MAX_FIELD_LENGTH = 255;
+    
+    private BinarySessionFormat(){
+    }
+    
+    static long zigzag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    static long unzigzag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,201 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams sessions from a file in the binary format described in 
+ * BinarySessionFormat. There is nothing to search for or convert, so decoding
+ * a session is a few byte reads per field.
+ */
+public class BinarySessionReader implements SessionSource {
+    private final InputStream in;
+    private final byte[] buffer = new byte[1 << 16];
+    private int position;
+    private int limit;
+    private long atmBalance;
+    
+    public BinarySessionReader(InputStream in) throws IOException{
+        this.in = in;
+        for (byte b : BinarySessionFormat.MAGIC){
+            if (readByte() != b){
+                throw new IOException("Not a binary session file");
+            }
+        }
+        int version = readByte();
+        if (version != BinarySessionFormat.VERSION){
+            throw new IOException("Unsupported binary session format version: " + version);
+        }
+        atmBalance = readSigned();
+    }
+    
+    /**
+     * Opens a binary session file on the filesystem
+     * @param path The binary session file
+     * @return A reader returning one session at a time from the file
+     * @throws IOException If the file could not be opened, or is not a binary session file
+     */
+    public static BinarySessionReader open(Path path) throws IOException{
+        InputStream in = Files.newInputStream(path);
+        try {
+            return new BinarySessionReader(in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Checks for the magic number at the start of a file
+     * @param path The file to check
+     * @return true if the file is in the binary session format
+     * @throws IOException If the file could not be read
+     */
+    public static boolean isBinary(Path path) throws IOException{
+        InputStream in = Files.newInputStream(path);
+        try {
+            for (byte b : BinarySessionFormat.MAGIC){
+                if (in.read() != b){
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+    
+    public long getAtmBalance(){
+        return atmBalance;
+    }
+    
+    public boolean hasNext(){
+        try {
+            return position < limit || fill();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public Session next(){
+        if (!hasNext()){
+            throw new NoSuchElementException();
+        }
+        try {
+            Session session = new Session();
+            session.setAccountNumber(readField());
+            session.setExpectedPin(readField());
+            session.setEnteredPin(readField());
+            session.setBalance(readSigned());
+            session.setOverdraft(readSigned());
+            
+            int count = (int) readUnsigned();
+            List<Action> actions = new ArrayList<Action>(count);
+            for (int i = 0; i < count; i++){
+                int type = readByte();
+                if (type == BinarySessionFormat.WITHDRAWAL){
+                    actions.add(Action.createWithdrawal(readSigned()));
+                }
+                else if (type == BinarySessionFormat.BALANCE_ENQUIRY){
+                    actions.add(Action.createBalanceEnquiry());
+                }
+                else{
+                    throw new IOException("Unknown action type: " + type);
+                }
+            }
+            session.setActions(actions);
+            return session;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public void remove(){
+        throw new UnsupportedOperationException();
+    }
+    
+    public void close() throws IOException{
+        in.close();
+    }
+    
+    private String readField() throws IOException{
+        int length = readByte();
+        if (limit - position < length){
+            compact();
+            while (limit < length){
+                if (!read()){
+                    throw new EOFException();
+                }
+            }
+        }
+        String value = new String(buffer, position, length, StandardCharsets.ISO_8859_1);
+        position += length;
+        return value;
+    }
+    
+    private long readSigned() throws IOException{
+        return BinarySessionFormat.unzigzag(readUnsigned());
+    }
+    
+    private long readUnsigned() throws IOException{
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7){
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+    
+    private int readByte() throws IOException{
+        if (position == limit && !fill()){
+            throw new EOFException();
+        }
+        return buffer[position++] & 0xFF;
+    }
+    
+    /**
+     * Refills the buffer, once everything in it has been read
+     * @return false at the end of the file
+     */
+    private boolean fill() throws IOException{
+        position = 0;
+        limit = 0;
+        return read();
+    }
+    
+    /**
+     * Moves the unread bytes to the start of the buffer
+     */
+    private void compact(){
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+    }
+    
+    /**
+     * Reads more bytes onto the end of the buffer
+     * @return false at the end of the file
+     */
+    private boolean read() throws IOException{
+        int read;
+        do {
+            read = in.read(buffer, limit, buffer.length - limit);
+        } while (read == 0);
+        if (read < 0){
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+}
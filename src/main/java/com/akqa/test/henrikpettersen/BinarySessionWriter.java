@@ -0,0 +1,131 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes sessions in the binary format described in BinarySessionFormat.
+ * 
+ * Can also be run on its own to convert a text input file into the binary format:
+ *  java com.akqa.test.henrikpettersen.BinarySessionWriter {text input} {binary output}
+ */
+public class BinarySessionWriter implements Closeable {
+    private final OutputStream out;
+    
+    /**
+     * Writes the header of the binary format
+     * @param out Where the sessions are written
+     * @param atmBalance The total cash held in the ATM
+     * @throws IOException If the header could not be written
+     */
+    public BinarySessionWriter(OutputStream out, long atmBalance) throws IOException{
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.out.write(BinarySessionFormat.MAGIC);
+        this.out.write(BinarySessionFormat.VERSION);
+        writeSigned(atmBalance);
+    }
+    
+    public static void main(String[] args) throws IOException{
+        if (args.length != 2){
+            System.err.println("Usage: BinarySessionWriter {text input} {binary output}");
+            System.exit(-1);
+        }
+        long sessions = convert(Paths.get(args[0]), Paths.get(args[1]));
+        System.err.println("Converted " + sessions + " sessions");
+    }
+    
+    /**
+     * Converts a text input file into the binary format
+     * @param input The text input file
+     * @param output The binary file to write
+     * @return The number of sessions converted
+     * @throws IOException If the input could not be read or the output written
+     */
+    public static long convert(Path input, Path output) throws IOException{
+        long count = 0;
+        MappedSessionReader sessions = MappedSessionReader.open(input);
+        try {
+            BinarySessionWriter writer = new BinarySessionWriter(Files.newOutputStream(output), sessions.getAtmBalance());
+            try {
+                while (sessions.hasNext()){
+                    writer.write(sessions.next());
+                    count++;
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            sessions.close();
+        }
+        return count;
+    }
+    
+    /**
+     * Writes one session, with all its actions
+     * @param session One ATM operation by a single customer
+     * @throws IOException If the session could not be written, or has an action
+     * that is neither a withdrawal nor a balance enquiry
+     */
+    public void write(Session session) throws IOException{
+        //Check the actions first, so a bad session is not left half written
+        for (Action action : session.getActions()){
+            if (!action.isWithdrawal() && !action.isBalanceEnquiry()){
+                throw new IOException("Unknown action for account " + session.getAccountNumber());
+            }
+        }
+        writeField(session.getAccountNumber());
+        writeField(session.getExpectedPin());
+        writeField(session.getEnteredPin());
+        writeSigned(session.getBalance());
+        writeSigned(session.getOverdraft());
+        writeUnsigned(session.getActions().size());
+        for (Action action : session.getActions()){
+            if (action.isWithdrawal()){
+                out.write(BinarySessionFormat.WITHDRAWAL);
+                writeSigned(action.getAmount());
+            }
+            else{
+                out.write(BinarySessionFormat.BALANCE_ENQUIRY);
+            }
+        }
+    }
+    
+    /**
+     * Writes out any buffered sessions
+     * @throws IOException If the sessions could not be written
+     */
+    public void flush() throws IOException{
+        out.flush();
+    }
+    
+    public void close() throws IOException{
+        out.close();
+    }
+    
+    private void writeField(String value) throws IOException{
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        if (bytes.length > BinarySessionFormat.MAX_FIELD_LENGTH){
+            throw new IOException("Field too long for the binary format: " + value);
+        }
+        out.write(bytes.length);
+        out.write(bytes);
+    }
+    
+    private void writeSigned(long value) throws IOException{
+        writeUnsigned(BinarySessionFormat.zigzag(value));
+    }
+    
+    private void writeUnsigned(long value) throws IOException{
+        while ((value & ~0x7FL) != 0){
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
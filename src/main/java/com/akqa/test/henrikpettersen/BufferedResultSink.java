@@ -0,0 +1,115 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes results in the standard output format, one per line, through a reusable
+ * byte buffer. Balances are formatted straight into the buffer, without creating
+ * a string for each one, and the buffer is written to the channel in large 
+ * batches once it fills up, or when flush is called.
+ * 
+ * Not thread safe: each thread should have its own sink.
+ */
+public class BufferedResultSink implements ResultSink {
+    
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+    
+    //The longest a single result can be: a sign, 19 digits, and the line separator
+    private static final int MAX_RESULT_LENGTH = 20 + LINE_SEPARATOR.length;
+    
+    //The error codes, already encoded, indexed by ordinal
+    private static final byte[][] ERROR_CODES = new byte[ErrorCode.values().length][];
+    static {
+        for (ErrorCode errorCode : ErrorCode.values()){
+            ERROR_CODES[errorCode.ordinal()] = errorCode.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+    
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] bytes;
+    private int position;
+    
+    public BufferedResultSink(WritableByteChannel channel){
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+    
+    public BufferedResultSink(WritableByteChannel channel, int bufferSize){
+        if (bufferSize < MAX_RESULT_LENGTH){
+            throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+        }
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.bytes = buffer.array();
+    }
+    
+    public void balance(long balance){
+        ensureSpace(MAX_RESULT_LENGTH);
+        if (balance == Long.MIN_VALUE){
+            put(MIN_VALUE);
+        }
+        else{
+            if (balance < 0){
+                bytes[position++] = '-';
+                balance = -balance;
+            }
+            
+            //Write the digits backwards from the end of the number
+            int end = position + digits(balance);
+            int index = end;
+            do {
+                bytes[--index] = (byte) ('0' + (balance % 10));
+                balance /= 10;
+            } while (balance != 0);
+            position = end;
+        }
+        put(LINE_SEPARATOR);
+    }
+    
+    public void error(ErrorCode errorCode){
+        byte[] code = ERROR_CODES[errorCode.ordinal()];
+        ensureSpace(code.length + LINE_SEPARATOR.length);
+        put(code);
+        put(LINE_SEPARATOR);
+    }
+    
+    public void flush(){
+        buffer.clear();
+        buffer.limit(position);
+        try {
+            while (buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+    }
+    
+    private void ensureSpace(int length){
+        if (position + length > bytes.length){
+            flush();
+        }
+    }
+    
+    private void put(byte[] source){
+        System.arraycopy(source, 0, bytes, position, source.length);
+        position += source.length;
+    }
+    
+    private static int digits(long value){
+        int digits = 1;
+        while (value >= 10){
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+}
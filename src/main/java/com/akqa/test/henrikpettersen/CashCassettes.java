@@ -0,0 +1,226 @@
+package com.akqa.test.henrikpettersen;
+
+import java.util.Arrays;
+
+/**
+ * The cash held by the ATM as notes in cassettes, one denomination per cassette.
+ * A withdrawal can only be dispensed if some combination of the notes left adds
+ * up to exactly the amount requested.
+ *
+ * Rather than searching for a combination on every withdrawal, the cassettes
+ * keep a table holding the combination with the fewest notes for every amount
+ * up to the largest withdrawal allowed, so dispensing is a lookup. The table only
+ * depends on the number of notes in each cassette up to what a single withdrawal
+ * can use, so while the cassettes are well stocked it never changes. Once a
+ * cassette runs low, the table is rebuilt on the next withdrawal after each
+ * change to that cassette, which takes time proportional to the largest amount.
+ *
+ * Combinations are packed into a long, with the number of notes taken from each
+ * cassette in as many bits as the most notes a withdrawal can take from any one
+ * cassette, so dispensing does not allocate. See getNotes. Cassettes whose
+ * combinations do not fit in a long are refused when they are created.
+ */
+public class CashCassettes {
+
+    /**
+     * Returned by dispense when no combination of notes adds up to the amount
+     */
+    public static final long NO_NOTES = -1;
+
+    //Packed combinations use 63 bits, so they stay positive
+    private static final int PLAN_BITS = 63;
+
+    private final int[] denominations;
+    private final long[] counts;
+    private final int maxAmount;
+
+    //The bits each cassette takes in a packed combination
+    private final int bits;
+    private final long mask;
+
+    //The number of notes in each cassette the table can use
+    private final int[] limits;
+
+    //For each amount, the notes to dispense, or NO_NOTES
+    private final long[] plans;
+    private final int[] noteCounts;
+    private boolean stale = true;
+
+    /**
+     * @param denominations The value of the notes in each cassette
+     * @param counts The number of notes in each cassette
+     * @param maxAmount The largest amount a single withdrawal can take
+     * @throws IllegalArgumentException If there are no cassettes, a denomination is
+     * not positive, or the notes a withdrawal can take from each cassette do not
+     * fit in a packed combination
+     */
+    public CashCassettes(int[] denominations, long[] counts, int maxAmount){
+        if (denominations.length != counts.length || denominations.length == 0){
+            throw new IllegalArgumentException("At least 1 cassette is needed");
+        }
+        this.denominations = denominations.clone();
+        this.counts = counts.clone();
+        this.maxAmount = maxAmount;
+        this.limits = new int[denominations.length];
+        int mostNotes = 1;
+        for (int i = 0; i < denominations.length; i++){
+            if (denominations[i] <= 0 || counts[i] < 0){
+                throw new IllegalArgumentException("Invalid cassette: " + counts[i] + " notes of " + denominations[i]);
+            }
+            limits[i] = maxAmount / denominations[i];
+            mostNotes = Math.max(mostNotes, limits[i]);
+        }
+
+        //Every cassette gets enough bits for the most notes any one can give
+        this.bits = 32 - Integer.numberOfLeadingZeros(mostNotes);
+        if (bits * denominations.length > PLAN_BITS){
+            throw new IllegalArgumentException(denominations.length + " cassettes of up to " + mostNotes
+                    + " notes per withdrawal do not fit in " + PLAN_BITS + " bits");
+        }
+        this.mask = (1L << bits) - 1;
+        this.plans = new long[maxAmount + 1];
+        this.noteCounts = new int[maxAmount + 1];
+    }
+
+    /**
+     * Parses cassettes given as a comma separated list of {denomination}x{count},
+     * for example 20x500,50x200
+     * @param spec The cassettes
+     * @param maxAmount The largest amount a single withdrawal can take
+     * @return The cassettes
+     * @throws IllegalArgumentException If the cassettes could not be parsed
+     */
+    public static CashCassettes parse(String spec, int maxAmount){
+        String[] cassettes = spec.split(",");
+        int[] denominations = new int[cassettes.length];
+        long[] counts = new long[cassettes.length];
+        for (int i = 0; i < cassettes.length; i++){
+            String[] parts = cassettes[i].trim().split("x");
+            if (parts.length != 2){
+                throw new IllegalArgumentException("Cassette must be {denomination}x{count}: " + cassettes[i]);
+            }
+            denominations[i] = Integer.parseInt(parts[0]);
+            counts[i] = Long.parseLong(parts[1]);
+        }
+        return new CashCassettes(denominations, counts, maxAmount);
+    }
+
+    /**
+     * Takes notes adding up to exactly the amount out of the cassettes, using as
+     * few notes as possible
+     * @param amount The amount to dispense
+     * @return The notes dispensed, or NO_NOTES if no combination of the notes left
+     * adds up to the amount, in which case nothing is taken out
+     */
+    public synchronized long dispense(long amount){
+        if (amount <= 0 || amount > maxAmount){
+            return NO_NOTES;
+        }
+        if (stale){
+            rebuild();
+        }
+        long plan = plans[(int) amount];
+        if (plan == NO_NOTES){
+            return NO_NOTES;
+        }
+        for (int i = 0; i < counts.length; i++){
+            int notes = getNotes(plan, i);
+            if (notes > 0){
+                counts[i] -= notes;
+                //The table is only out of date once a cassette holds fewer
+                //notes than a withdrawal can use
+                if (counts[i] < limits[i]){
+                    stale = true;
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Puts notes taken out by dispense back into the cassettes
+     * @param plan The notes returned by dispense
+     */
+    public synchronized void restock(long plan){
+        for (int i = 0; i < counts.length; i++){
+            int notes = getNotes(plan, i);
+            if (notes > 0){
+                if (counts[i] < limits[i]){
+                    stale = true;
+                }
+                counts[i] += notes;
+            }
+        }
+    }
+
+    /**
+     * @param plan The notes returned by dispense
+     * @param cassette The cassette index
+     * @return The number of notes taken from the cassette
+     */
+    public int getNotes(long plan, int cassette){
+        return (int) ((plan >>> (bits * cassette)) & mask);
+    }
+
+    /**
+     * @return The total value of the notes in the cassettes
+     */
+    public synchronized long getTotal(){
+        long total = 0;
+        for (int i = 0; i < counts.length; i++){
+            total += denominations[i] * counts[i];
+        }
+        return total;
+    }
+
+    /**
+     * @param cassette The cassette index
+     * @return The number of notes left in the cassette
+     */
+    public synchronized long getCount(int cassette){
+        return counts[cassette];
+    }
+
+    public int getDenomination(int cassette){
+        return denominations[cassette];
+    }
+
+    public int getCassetteCount(){
+        return denominations.length;
+    }
+
+    public int getMaxAmount(){
+        return maxAmount;
+    }
+
+    /**
+     * Rebuilds the table of combinations, as a bounded knapsack over the notes
+     * each cassette can give. The notes of each cassette are split into groups of
+     * 1, 2, 4... notes, so that each group is either taken whole or not at all
+     */
+    private void rebuild(){
+        Arrays.fill(plans, NO_NOTES);
+        Arrays.fill(noteCounts, Integer.MAX_VALUE);
+        plans[0] = 0;
+        noteCounts[0] = 0;
+        for (int i = 0; i < denominations.length; i++){
+            int available = (int) Math.min(counts[i], limits[i]);
+            for (int group = 1; available > 0; group <<= 1){
+                int notes = Math.min(group, available);
+                available -= notes;
+                int value = notes * denominations[i];
+                long taken = (long) notes << (bits * i);
+
+                //Work downwards, so each group is used at most once
+                for (int amount = maxAmount; amount >= value; amount--){
+                    int from = noteCounts[amount - value];
+                    if (from != Integer.MAX_VALUE && from + notes < noteCounts[amount]){
+                        noteCounts[amount] = from + notes;
+                        plans[amount] = plans[amount - value] + taken;
+                    }
+                }
+            }
+        }
+        stale = false;
+    }
+}
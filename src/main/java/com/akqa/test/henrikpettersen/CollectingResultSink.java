@@ -0,0 +1,27 @@
+package com.akqa.test.henrikpettersen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps every result in memory, in the same form as the standard output format.
+ * Useful for checking results in tests.
+ */
+public class CollectingResultSink implements ResultSink {
+    private final List<String> results = new ArrayList<String>();
+    
+    public void balance(long balance){
+        results.add(Long.toString(balance));
+    }
+    
+    public void error(ErrorCode errorCode){
+        results.add(errorCode.toString());
+    }
+    
+    public void flush(){
+    }
+    
+    public List<String> getResults(){
+        return results;
+    }
+}
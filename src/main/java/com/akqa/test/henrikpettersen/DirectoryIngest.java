@@ -0,0 +1,435 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the sessions from many input files, given as a directory or a glob, such
+ * as the rotated files written by the front-ends. Each file keeps the ATM balance
+ * at its top.
+ *
+ * The files are parsed on a fixed pool of threads. Large text files are split
+ * into pieces of about SPLIT_SIZE bytes at blank lines, which always fall between
+ * sessions, so a single large file is parsed on several threads as well. Only a
+ * few pieces per thread are parsed ahead of the sessions being run, so memory
+ * stays bounded however many files there are. Binary files have no blank lines
+ * to split at, so each is one piece, read in blocks of BINARY_BLOCK sessions by
+ * the thread running it, one block at a time, so they are never held whole in
+ * memory either.
+ *
+ * The sessions can then be run in one of two ways:
+ *  - runMerged: through a single ATM, in file name order and then session order,
+ *    with the ATM loaded with each file's balance as its first session starts.
+ *    The results are the same as running each file in turn
+ *  - runPerFile: each file through its own ATM, with several files at once, and
+ *    the results of each file written to a file of its own
+ */
+public class DirectoryIngest {
+
+    //The size of the pieces large files are split into
+    static final long SPLIT_SIZE = 8 << 20;
+
+    //The number of sessions read from a binary file at a time
+    static final int BINARY_BLOCK = 4096;
+
+    private final List<Path> files;
+    private final int threads;
+    private long splitSize = SPLIT_SIZE;
+    private int binaryBlock = BINARY_BLOCK;
+
+    /**
+     * @param files The input files, in the order their sessions are merged
+     * @param threads The number of threads parsing files, and running files
+     * in runPerFile
+     */
+    public DirectoryIngest(List<Path> files, int threads){
+        this.files = new ArrayList<Path>(files);
+        this.threads = threads;
+    }
+
+    /**
+     * @param path An input path from the command line
+     * @return true if the path is a directory or a glob, rather than one file
+     */
+    public static boolean isPattern(String path){
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0
+                || path.indexOf('{') >= 0 || Files.isDirectory(Paths.get(path));
+    }
+
+    /**
+     * Lists the input files for a directory, or a glob in the last part of a
+     * path, such as /var/spool/atm/*.txt
+     * @param pattern The directory or glob
+     * @return The regular files matched, in file name order
+     * @throws IOException If the directory could not be listed
+     */
+    public static List<Path> resolve(String pattern) throws IOException{
+        Path path = Paths.get(pattern);
+        Path directory = path;
+        PathMatcher matcher = null;
+        if (!Files.isDirectory(path)){
+            directory = (path.getParent() != null) ? path.getParent() : Paths.get(".");
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + path.getFileName());
+        }
+        List<Path> files = new ArrayList<Path>();
+        DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+        try {
+            for (Path entry : entries){
+                if (Files.isRegularFile(entry) && (matcher == null || matcher.matches(entry.getFileName()))){
+                    files.add(entry);
+                }
+            }
+        } finally {
+            entries.close();
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    void setSplitSize(long splitSize){
+        this.splitSize = splitSize;
+    }
+
+    void setBinaryBlock(int binaryBlock){
+        this.binaryBlock = binaryBlock;
+    }
+
+    /**
+     * Runs every session from every file through one ATM, in file order then
+     * session order, on the calling thread
+     * @param atm The ATM, which is loaded with the balance of each file in turn
+     * @param out Where the results are written
+     * @throws IOException If a file could not be read, or the results written
+     */
+    public void runMerged(Atm atm, WritableByteChannel out) throws IOException, InterruptedException{
+        ExecutorService parsers = newPool("atm-ingest-parse");
+        try {
+            List<Piece> pieces = new ArrayList<Piece>();
+            for (Path file : files){
+                pieces.addAll(split(file));
+            }
+            ResultSink results = new BufferedResultSink(out);
+            try {
+                PieceStream stream = new PieceStream(pieces, parsers, threads * 2);
+                Piece piece;
+                while ((piece = stream.next()) != null){
+                    run(piece, atm, results);
+                }
+            } finally {
+                results.flush();
+            }
+        } finally {
+            parsers.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs each file through an ATM of its own, several files at once, and
+     * writes the results of each file to {output directory}/{file name}.out
+     * @param outputDirectory Where the results are written
+     * @throws IOException If a file could not be read, or the results written
+     */
+    public void runPerFile(final Path outputDirectory) throws IOException, InterruptedException{
+        Files.createDirectories(outputDirectory);
+        final ExecutorService parsers = newPool("atm-ingest-parse");
+        ExecutorService runners = newPool("atm-ingest-run");
+        try {
+            List<Future<Void>> runs = new ArrayList<Future<Void>>();
+            for (final Path file : files){
+                runs.add(runners.submit(new Callable<Void>() {
+                    public Void call() throws IOException, InterruptedException{
+                        runFile(file, outputDirectory.resolve(file.getFileName() + ".out"), parsers);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> run : runs){
+                get(run);
+            }
+        } finally {
+            runners.shutdownNow();
+            parsers.shutdownNow();
+        }
+    }
+
+    private void runFile(Path file, Path output, ExecutorService parsers) throws IOException, InterruptedException{
+        Atm atm = new Atm();
+        FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ResultSink results = new BufferedResultSink(channel);
+            try {
+                PieceStream stream = new PieceStream(split(file), parsers, 2);
+                Piece piece;
+                while ((piece = stream.next()) != null){
+                    run(piece, atm, results);
+                }
+            } finally {
+                results.flush();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Runs the sessions of a parsed piece through the ATM, loading the ATM with
+     * the file's balance first if the piece is the first of its file
+     */
+    private static void run(Piece piece, Atm atm, ResultSink results) throws IOException{
+        try {
+            piece.open();
+            if (piece.first){
+                atm.setAtmBalance(piece.atmBalance);
+            }
+            do {
+                for (Session session : piece.sessions){
+                    atm.performActions(session, results);
+                }
+            } while (piece.nextBlock());
+        } finally {
+            piece.close();
+        }
+    }
+
+    /**
+     * Splits a file into pieces of about splitSize bytes, each starting and
+     * ending at a blank line. The header is read here, so the first piece starts
+     * at the first session
+     * @param file The input file
+     * @return The pieces, in file order, not yet parsed
+     * @throws IOException If the file could not be read
+     */
+    List<Piece> split(Path file) throws IOException{
+        List<Piece> pieces = new ArrayList<Piece>();
+        if (BinarySessionReader.isBinary(file)){
+            pieces.add(new Piece(file, binaryBlock, 0, -1, 0, true));
+            return pieces;
+        }
+        long atmBalance;
+        long start;
+        MappedSessionReader header = MappedSessionReader.open(file);
+        try {
+            atmBalance = header.getAtmBalance();
+            start = header.getPosition();
+        } finally {
+            header.close();
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            while (start < size){
+                long end = (size - start > splitSize) ? nextBoundary(channel, start + splitSize, size) : size;
+                pieces.add(new Piece(file, 0, start, end, atmBalance, pieces.isEmpty()));
+                start = end;
+            }
+        } finally {
+            channel.close();
+        }
+        return pieces;
+    }
+
+    /**
+     * @return The offset just after the first blank line that starts at or after
+     * the offset, or the end of the file if there is none
+     */
+    private static long nextBoundary(FileChannel channel, long offset, long size) throws IOException{
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        //Start on the line break before the offset, so a blank line starting at
+        //the offset is found
+        long position = offset - 1;
+        boolean lineStart = false;
+        boolean blank = false;
+        while (position < size){
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0){
+                break;
+            }
+            for (int i = 0; i < read; i++){
+                byte b = buffer.get(i);
+                if (b == '\n'){
+                    if (lineStart && blank){
+                        return position + i + 1;
+                    }
+                    lineStart = true;
+                    blank = true;
+                }
+                else if (b != ' ' && b != '\t' && b != '\r'){
+                    blank = false;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private ExecutorService newPool(final String name){
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+            public synchronized Thread newThread(Runnable r){
+                Thread thread = new Thread(r, name + "-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, InterruptedException{
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof InterruptedException){
+                throw (InterruptedException) e.getCause();
+            }
+            throw new IllegalStateException("Error parsing input file", e.getCause());
+        }
+    }
+
+    /**
+     * Hands out pieces in order once they are parsed, keeping a fixed number of
+     * pieces being parsed ahead
+     */
+    private static final class PieceStream {
+        private final List<Piece> pieces;
+        private final ExecutorService parsers;
+        private final int ahead;
+        private final Deque<Future<Piece>> inFlight = new ArrayDeque<Future<Piece>>();
+        private int next;
+
+        PieceStream(List<Piece> pieces, ExecutorService parsers, int ahead){
+            this.pieces = pieces;
+            this.parsers = parsers;
+            this.ahead = ahead;
+        }
+
+        /**
+         * @return The next piece, parsed, or null once every piece has been returned
+         */
+        Piece next() throws IOException, InterruptedException{
+            while (next < pieces.size() && inFlight.size() < ahead){
+                //The piece is dropped from the list, so its sessions can be freed once run
+                final Piece piece = pieces.get(next);
+                pieces.set(next++, null);
+                inFlight.add(parsers.submit(new Callable<Piece>() {
+                    public Piece call() throws IOException{
+                        piece.parse();
+                        return piece;
+                    }
+                }));
+            }
+            Future<Piece> future = inFlight.poll();
+            if (future == null){
+                return null;
+            }
+            return get(future);
+        }
+    }
+
+    /**
+     * Part of an input file, starting and ending between sessions. A text piece
+     * is parsed whole, on the parsing pool. A binary file is one piece, read a
+     * block at a time by the thread running it: open reads the first block, and
+     * nextBlock each one after that
+     */
+    static final class Piece {
+        final Path file;
+        //The sessions read from a binary file at a time, or 0 for a text piece
+        final int binaryBlock;
+        final long start;
+        final long end;
+        //The ATM balance from the top of the file, and whether this is the first piece
+        long atmBalance;
+        final boolean first;
+        List<Session> sessions;
+        private BinarySessionReader reader;
+
+        Piece(Path file, int binaryBlock, long start, long end, long atmBalance, boolean first){
+            this.file = file;
+            this.binaryBlock = binaryBlock;
+            this.start = start;
+            this.end = end;
+            this.atmBalance = atmBalance;
+            this.first = first;
+        }
+
+        /**
+         * Parses a text piece. Binary pieces are read as they run instead
+         */
+        void parse() throws IOException{
+            if (binaryBlock > 0){
+                return;
+            }
+            SessionSource source = MappedSessionReader.openRange(file, start, end, atmBalance);
+            try {
+                List<Session> parsed = new ArrayList<Session>();
+                while (source.hasNext()){
+                    parsed.add(source.next());
+                }
+                sessions = parsed;
+            } finally {
+                source.close();
+            }
+        }
+
+        /**
+         * Opens a binary piece, reading the ATM balance and the first block
+         */
+        void open() throws IOException{
+            if (binaryBlock > 0){
+                reader = BinarySessionReader.open(file);
+                atmBalance = reader.getAtmBalance();
+                nextBlock();
+            }
+        }
+
+        /**
+         * @return true if the next block of a binary piece was read into sessions,
+         * false once every session has been read
+         */
+        boolean nextBlock() throws IOException{
+            if (reader == null){
+                return false;
+            }
+            List<Session> block = new ArrayList<Session>(binaryBlock);
+            while (block.size() < binaryBlock && reader.hasNext()){
+                block.add(reader.next());
+            }
+            sessions = block;
+            if (!reader.hasNext()){
+                close();
+            }
+            return !block.isEmpty();
+        }
+
+        void close() throws IOException{
+            if (reader != null){
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+}
@@ -5,7 +5,9 @@ package com.akqa.test.henrikpettersen;
  * customer balance, or ACCOUNT_ERR if the account details could not be validated. 
  * If funds aren't available for cash withdraw the required response is FUNDS_ERR. 
  * If the ATM is out of cash the required response is ATM_ERR.
+ * If a withdrawal would break one of the account's limits, see AccountLimits,
+ * the response is LIMIT_ERR.
  */
 public enum ErrorCode {
-    ACCOUNT_ERR, FUNDS_ERR, ATM_ERR
+    ACCOUNT_ERR, FUNDS_ERR, ATM_ERR, LIMIT_ERR
 }
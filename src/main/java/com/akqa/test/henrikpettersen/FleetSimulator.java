@@ -0,0 +1,374 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Replays the traffic of a fleet of ATMs, each with its own cash and its own
+ * stream of sessions. Each ATM is given as an input file in the format read by
+ * InputFileReader, or the binary format, and its id is the file name.
+ *
+ * The ATMs are split between a fixed number of event loops, one per core by
+ * default, by a hash of the ATM id. Each loop is a single thread that owns its
+ * ATMs outright, and takes turns between them, running a few sessions from one
+ * before moving on to the next, so an ATM is only ever touched by one thread and
+ * nothing is shared between the loops. An ATM's input and output files are only
+ * opened once its loop starts running it, and each loop runs at most
+ * MAX_OPEN_PER_LOOP ATMs at a time, starting the next once one finishes, so a
+ * fleet of any size never holds more than that many files open, or input
+ * buffers in memory, per loop.
+ *
+ * For each ATM the simulator counts the sessions run, the time spent running
+ * them, and when it first answered ATM_ERR, both as the session number and the
+ * time since the start of the replay. See report.
+ *
+ * Run with:
+ *  java com.akqa.test.henrikpettersen.FleetSimulator [--loops N] [--output DIR]
+ *      {input directory}
+ * With --output, the results of each ATM are written to DIR/{id}.out
+ */
+public class FleetSimulator {
+
+    //The sessions an ATM runs before its loop moves on to the next ATM
+    private static final int QUANTUM = 64;
+
+    //The ATMs each loop takes turns between at once
+    static final int MAX_OPEN_PER_LOOP = 32;
+
+    private final int loops;
+    private final Path outputDirectory;
+    private final List<FleetAtm> atms = new ArrayList<FleetAtm>();
+    private volatile Throwable failure;
+    private long elapsedNanos;
+
+    /**
+     * @param loops The number of event loops
+     * @param outputDirectory Where the results of each ATM are written, or null
+     * to only count them
+     */
+    public FleetSimulator(int loops, Path outputDirectory){
+        this.loops = loops;
+        this.outputDirectory = outputDirectory;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException{
+        int loops = Runtime.getRuntime().availableProcessors();
+        Path output = null;
+        Path input = null;
+        for (int i = 0; i < args.length; i++){
+            String arg = args[i];
+            if (arg.equals("--loops")){
+                loops = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("--output")){
+                output = Paths.get(args[++i]);
+            }
+            else if (arg.startsWith("--")){
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else{
+                input = Paths.get(arg);
+            }
+        }
+        if (input == null){
+            throw new IllegalArgumentException("Missing input directory");
+        }
+        FleetSimulator fleet = new FleetSimulator(loops, output);
+        fleet.addDirectory(input);
+        fleet.run();
+        fleet.report(System.out);
+    }
+
+    /**
+     * Adds one ATM for every file in the directory, in file name order
+     * @param directory Holds one input file per ATM
+     * @throws IOException If the directory could not be listed
+     */
+    public void addDirectory(Path directory) throws IOException{
+        List<Path> files = new ArrayList<Path>();
+        DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+        try {
+            for (Path entry : entries){
+                if (Files.isRegularFile(entry)){
+                    files.add(entry);
+                }
+            }
+        } finally {
+            entries.close();
+        }
+        Collections.sort(files);
+        for (Path file : files){
+            String name = file.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            add((dot > 0) ? name.substring(0, dot) : name, file);
+        }
+    }
+
+    /**
+     * Adds an ATM
+     * @param id The ATM id, which picks the loop it runs on
+     * @param input The ATM's input file
+     */
+    public void add(String id, Path input){
+        atms.add(new FleetAtm(id, input));
+    }
+
+    /**
+     * @param id An ATM id
+     * @param loops The number of event loops
+     * @return The loop that runs the ATM
+     */
+    static int loopFor(String id, int loops){
+        return (int) ((AccountLedger.hash(id.hashCode()) >>> 1) % loops);
+    }
+
+    public List<FleetAtm> getAtms(){
+        return Collections.unmodifiableList(atms);
+    }
+
+    /**
+     * Runs every ATM's sessions, and waits for them all to finish
+     * @throws IOException If an input or output file could not be opened
+     */
+    public void run() throws IOException, InterruptedException{
+        if (outputDirectory != null){
+            Files.createDirectories(outputDirectory);
+        }
+        List<List<FleetAtm>> assigned = new ArrayList<List<FleetAtm>>();
+        for (int i = 0; i < loops; i++){
+            assigned.add(new ArrayList<FleetAtm>());
+        }
+        for (FleetAtm atm : atms){
+            assigned.get(loopFor(atm.id, loops)).add(atm);
+        }
+
+        final long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < loops; i++){
+            final List<FleetAtm> owned = assigned.get(i);
+            Thread thread = new Thread(new Runnable() {
+                public void run(){
+                    loop(owned, start);
+                }
+            }, "atm-fleet-loop-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads){
+            thread.join();
+        }
+        elapsedNanos = System.nanoTime() - start;
+
+        if (failure instanceof IOException){
+            throw (IOException) failure;
+        }
+        if (failure != null){
+            throw new IllegalStateException("Fleet replay failed", failure);
+        }
+    }
+
+    /**
+     * One event loop: takes turns between its open ATMs until every one of them
+     * has run out of sessions, opening the next ATM whenever one finishes
+     */
+    private void loop(List<FleetAtm> owned, long start){
+        Queue<FleetAtm> waiting = new ArrayDeque<FleetAtm>(owned);
+        Queue<FleetAtm> ready = new ArrayDeque<FleetAtm>();
+        try {
+            while (failure == null && (!ready.isEmpty() || !waiting.isEmpty())){
+                while (ready.size() < MAX_OPEN_PER_LOOP && !waiting.isEmpty()){
+                    FleetAtm next = waiting.remove();
+                    next.open(outputDirectory);
+                    ready.add(next);
+                }
+                
+                //The ATM stays in the queue while it runs, so it is closed if it fails
+                FleetAtm atm = ready.peek();
+                if (atm.runQuantum(start)){
+                    ready.add(ready.remove());
+                }
+                else{
+                    ready.remove().close();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (failure == null){
+                failure = e;
+            }
+        } finally {
+            for (FleetAtm atm : ready){
+                try {
+                    atm.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes one line per ATM: the sessions run, the sessions per second of
+     * its busy time, the number of ATM_ERR results, when it first answered
+     * ATM_ERR and the cash left. Then one line for the fleet, with the sessions
+     * per second across the whole replay
+     * @param out Where the figures are written
+     */
+    public void report(PrintStream out){
+        long sessions = 0;
+        int outOfCash = 0;
+        for (FleetAtm atm : atms){
+            sessions += atm.sessionCount;
+            if (atm.atmErrors > 0){
+                outOfCash++;
+            }
+            out.println("fleet_atm id=" + atm.id + " sessions=" + atm.sessionCount
+                    + " per_second=" + (long) (atm.sessionCount * 1e9 / Math.max(atm.busyNanos, 1))
+                    + " atm_err=" + atm.atmErrors
+                    + " first_atm_err_session=" + atm.firstAtmErrorSession
+                    + " first_atm_err_ms=" + atm.firstAtmErrorMillis
+                    + " cash_left=" + atm.atm.getAtmBalance());
+        }
+        out.println("fleet: atms=" + atms.size() + " loops=" + loops + " sessions=" + sessions
+                + " per_second=" + (long) (sessions * 1e9 / Math.max(elapsedNanos, 1))
+                + " atms_out_of_cash=" + outOfCash);
+        out.flush();
+    }
+
+    /**
+     * One ATM of the fleet, with its sessions and figures. Only touched by the
+     * loop that owns it while the replay runs. Counts the ATM_ERR results as they
+     * are written
+     */
+    public static final class FleetAtm implements ResultSink {
+        private final String id;
+        private final Path input;
+        private final Atm atm = new Atm();
+        private SessionSource sessions;
+        private FileChannel output;
+        private ResultSink results;
+        private long start;
+
+        private long sessionCount;
+        private long busyNanos;
+        private long atmErrors;
+        private long firstAtmErrorSession = -1;
+        private long firstAtmErrorMillis = -1;
+
+        FleetAtm(String id, Path input){
+            this.id = id;
+            this.input = input;
+        }
+
+        void open(Path outputDirectory) throws IOException{
+            sessions = BinarySessionReader.isBinary(input) ? BinarySessionReader.open(input) : MappedSessionReader.open(input);
+            atm.setAtmBalance(sessions.getAtmBalance());
+            if (outputDirectory != null){
+                output = FileChannel.open(outputDirectory.resolve(id + ".out"), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                results = new BufferedResultSink(output);
+            }
+        }
+
+        /**
+         * Runs up to QUANTUM sessions
+         * @param start When the replay started
+         * @return false once every session has been run
+         */
+        boolean runQuantum(long start){
+            this.start = start;
+            long begin = System.nanoTime();
+            int count = 0;
+            while (count < QUANTUM && sessions.hasNext()){
+                atm.performActions(sessions.next(), this);
+                sessionCount++;
+                count++;
+            }
+            busyNanos += System.nanoTime() - begin;
+            return count == QUANTUM;
+        }
+
+        void close() throws IOException{
+            try {
+                sessions.close();
+                if (results != null){
+                    results.flush();
+                }
+            } finally {
+                if (output != null){
+                    output.close();
+                }
+            }
+        }
+
+        public void balance(long balance){
+            if (results != null){
+                results.balance(balance);
+            }
+        }
+
+        public void error(ErrorCode errorCode){
+            if (errorCode == ErrorCode.ATM_ERR){
+                if (atmErrors++ == 0){
+                    firstAtmErrorSession = sessionCount;
+                    firstAtmErrorMillis = (System.nanoTime() - start) / 1000000;
+                }
+            }
+            if (results != null){
+                results.error(errorCode);
+            }
+        }
+
+        public void flush(){
+            if (results != null){
+                results.flush();
+            }
+        }
+
+        public String getId(){
+            return id;
+        }
+
+        public Atm getAtm(){
+            return atm;
+        }
+
+        public long getSessions(){
+            return sessionCount;
+        }
+
+        public long getBusyNanos(){
+            return busyNanos;
+        }
+
+        public long getAtmErrors(){
+            return atmErrors;
+        }
+
+        /**
+         * @return The number of sessions run before the one first answered
+         * ATM_ERR, or -1 if the ATM never ran out of cash
+         */
+        public long getFirstAtmErrorSession(){
+            return firstAtmErrorSession;
+        }
+
+        /**
+         * @return The time from the start of the replay until the ATM first
+         * answered ATM_ERR, or -1 if the ATM never ran out of cash
+         */
+        public long getFirstAtmErrorMillis(){
+            return firstAtmErrorMillis;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows an input file that is still being written, like tail -f, and returns
+ * each session once it is complete. The file format is the one described in
+ * InputFileReader, and the same rules apply, except that a session is only
+ * complete once the blank line after it has been written. A session still being
+ * written at the end of the file is left until the rest of it arrives.
+ *
+ * The reader keeps its place in the file and the session it is part way through,
+ * so each byte of the file is only read once, however often it is appended to.
+ * It waits for more of the file with a filesystem watch on the file's directory,
+ * and also checks the file every poll interval, as some filesystems do not
+ * report changes.
+ *
+ * hasNext waits for the next session until stop is called, so this reader is
+ * only suited to running the sessions in order as they arrive.
+ */
+public class FollowingSessionReader implements SessionSource {
+
+    private enum State {
+        HEADER, ACCOUNT, FUNDS, ACTIONS
+    }
+
+    private final FileChannel channel;
+    private final WatchService watcher;
+    private final long pollMillis;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+    //The line read so far, which may be waiting for the rest of the line
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    //How far into the file has been read, and the end of the last complete session
+    private long offset;
+    private long committedOffset;
+
+    private final Queue<Session> ready = new ArrayDeque<Session>();
+    private State state = State.HEADER;
+    private Session session;
+    private long atmBalance;
+
+    private volatile boolean stopped;
+    private Runnable idleListener;
+
+    /**
+     * Opens the file, and waits for the ATM balance at the top of it
+     * @param path The input file
+     * @param pollMillis The longest time to wait before checking the file again
+     * @throws IOException If the file could not be opened
+     * @throws IllegalStateException If the reader is stopped before the ATM balance
+     * has been written
+     */
+    public FollowingSessionReader(Path path, long pollMillis) throws IOException{
+        this.pollMillis = pollMillis;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.watcher = path.getFileSystem().newWatchService();
+            path.toAbsolutePath().getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        readHeader();
+    }
+
+    public long getAtmBalance(){
+        return atmBalance;
+    }
+
+    /**
+     * @return The position in the file just after the last complete session
+     */
+    public long getCommittedOffset(){
+        return committedOffset;
+    }
+
+    /**
+     * Sets a task to run each time the reader has returned every complete session,
+     * and is about to wait for more of the file. Used to flush the results of the
+     * sessions run so far
+     * @param idleListener The task, or null
+     */
+    public void setIdleListener(Runnable idleListener){
+        this.idleListener = idleListener;
+    }
+
+    /**
+     * Stops waiting for more of the file. hasNext returns false once every
+     * complete session written so far has been returned. May be called from any thread
+     */
+    public void stop(){
+        stopped = true;
+    }
+
+    private void readHeader(){
+        while (state == State.HEADER){
+            if (!readMore()){
+                if (stopped){
+                    throw new IllegalStateException("Error parsing input file");
+                }
+                waitForData();
+            }
+        }
+    }
+
+    /**
+     * Returns true once the next session is complete, waiting for it to be written
+     * if need be. Returns false once the reader has been stopped, and every
+     * complete session has been returned
+     */
+    public boolean hasNext(){
+        while (ready.isEmpty()){
+            if (readMore()){
+                continue;
+            }
+            if (stopped){
+                return false;
+            }
+            if (idleListener != null){
+                idleListener.run();
+            }
+            waitForData();
+        }
+        return true;
+    }
+
+    /**
+     * @return The next complete session in the file
+     */
+    public Session next(){
+        if (!hasNext()){
+            throw new NoSuchElementException();
+        }
+        return ready.remove();
+    }
+
+    public void remove(){
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() throws IOException{
+        stopped = true;
+        try {
+            watcher.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads whatever has been appended to the file since the last read, and
+     * parses every complete line in it
+     * @return false if nothing has been appended
+     */
+    private boolean readMore(){
+        try {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0){
+                if (channel.size() < offset){
+                    throw new IllegalStateException("Input file was truncated while being followed");
+                }
+                return false;
+            }
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++){
+                byte b = bytes[i];
+                if (b == '\n'){
+                    processLine(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1).trim(), offset + i + 1);
+                    lineLength = 0;
+                }
+                else{
+                    if (lineLength == line.length){
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            offset += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parses one complete line
+     * @param text The trimmed line
+     * @param end The position in the file just after the line
+     */
+    private void processLine(String text, long end){
+        //Every line starting with '#' is ignored
+        if (text.startsWith("#")){
+            return;
+        }
+        switch (state){
+        case HEADER:
+            if (!text.isEmpty()){
+                atmBalance = Long.parseLong(text);
+                state = State.ACCOUNT;
+                committedOffset = end;
+            }
+            break;
+        case ACCOUNT:
+            //Any extra blank lines between sessions are skipped
+            if (text.isEmpty()){
+                committedOffset = end;
+            }
+            else{
+                //{account number} {expected pin} {entered pin}
+                String[] acctElements = text.split("\\s");
+                session = new Session();
+                session.setAccountNumber(acctElements[0]);
+                session.setExpectedPin(acctElements[1]);
+                session.setEnteredPin(acctElements[2]);
+                state = State.FUNDS;
+            }
+            break;
+        case FUNDS:
+            //{account balance} {overdraft}
+            String[] fundsElements = text.split("\\s");
+            session.setBalance(Long.parseLong(fundsElements[0]));
+            session.setOverdraft(Long.parseLong(fundsElements[1]));
+            state = State.ACTIONS;
+            break;
+        case ACTIONS:
+            //A blank line marks the end of the session
+            if (text.isEmpty()){
+                ready.add(session);
+                session = null;
+                state = State.ACCOUNT;
+                committedOffset = end;
+            }
+            else{
+                String[] wdrElements = text.split("\\s");
+                Action action = Action.createAction(wdrElements[0]);
+                if (action.isWithdrawal()){
+                    action.setAmount(Long.parseLong(wdrElements[1]));
+                }
+                session.addAction(action);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Waits until the file's directory reports a change, or the poll interval
+     * has passed
+     */
+    private void waitForData(){
+        try {
+            WatchKey key = watcher.poll(pollMillis, TimeUnit.MILLISECONDS);
+            if (key != null){
+                key.pollEvents();
+                key.reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        } catch (ClosedWatchServiceException e) {
+            stopped = true;
+        }
+    }
+}
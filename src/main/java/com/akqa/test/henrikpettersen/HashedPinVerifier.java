@@ -0,0 +1,285 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks pins against salted, deliberately slow hashes, held in place of the
+ * expected pin as:
+ *  pbkdf2-sha256${iterations}${salt}${hash}
+ * with the salt and hash in base 64. See hash. The hash of the entered pin is
+ * compared in constant time, so the time taken does not give away how much of
+ * it matched. An expected pin that is not a hash never matches.
+ *
+ * Working out a hash takes as long as the iterations make it, so the result of
+ * each check is kept in a cache for a while, and a customer running several
+ * sessions in a row only pays for the first. The cache is keyed by a keyed
+ * digest of the account number, stored hash and entered pin, so the pins
+ * themselves are never held. The key is made up when the verifier is created,
+ * so the digests are no use outside this process. The cache is a fixed size
+ * table, where a new entry takes the place of whatever was in its slot, and
+ * entries are ignored once they are older than the time to live.
+ *
+ * Hashes can be worked out on a pool of threads of the verifier's own, see
+ * verifyAsync, so sessions ahead of the one running can have their pins
+ * checked while it runs. A check already on its way is shared by every session
+ * making the same check, so a customer's sessions queued up back to back only
+ * pay for one hash, even though none of them is cached yet.
+ *
+ * Run with:
+ *  java com.akqa.test.henrikpettersen.HashedPinVerifier [--iterations N] {pin}
+ * to print the hash of a pin.
+ */
+public class HashedPinVerifier implements PinVerifier, Closeable {
+
+    static final String SCHEME = "pbkdf2-sha256";
+    static final int DEFAULT_ITERATIONS = 100000;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_SIZE = 16;
+    private static final int HASH_BITS = 256;
+
+    private final ExecutorService pool;
+    private final AtomicReferenceArray<CacheEntry> cache;
+    private final int cacheMask;
+    private final long ttlMillis;
+    private final Clock clock;
+    private final byte[] cacheKey = new byte[32];
+    private final AtomicLong hashCount = new AtomicLong();
+
+    //The checks handed to the pool and not yet cached, by cache key
+    private final ConcurrentHashMap<ByteBuffer, Future<Boolean>> inFlight = 
+            new ConcurrentHashMap<ByteBuffer, Future<Boolean>>();
+
+    private final ThreadLocal<Mac> digests = new ThreadLocal<Mac>() {
+        protected Mac initialValue(){
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        }
+    };
+
+    /**
+     * @param threads The number of threads working out hashes for verifyAsync
+     * @param cacheSize The number of checks kept in the cache, rounded up to a
+     * power of two
+     * @param ttlMillis How long a check is kept in the cache
+     * @param clock The time checks are cached at
+     */
+    public HashedPinVerifier(int threads, int cacheSize, long ttlMillis, Clock clock){
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+            public synchronized Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "atm-pin-verify-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        int capacity = Integer.highestOneBit(Math.max(cacheSize - 1, 1)) << 1;
+        this.cache = new AtomicReferenceArray<CacheEntry>(capacity);
+        this.cacheMask = capacity - 1;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        new SecureRandom().nextBytes(cacheKey);
+    }
+
+    public static void main(String[] args){
+        int iterations = DEFAULT_ITERATIONS;
+        String pin = null;
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("--iterations")){
+                iterations = Integer.parseInt(args[++i]);
+            }
+            else{
+                pin = args[i];
+            }
+        }
+        if (pin == null){
+            throw new IllegalArgumentException("Missing pin");
+        }
+        System.out.println(hash(pin, iterations));
+    }
+
+    /**
+     * @param pin A pin
+     * @param iterations The number of iterations, which sets how slow the hash is
+     * @return The pin's hash with a new random salt, to be held as the expected pin
+     */
+    public static String hash(String pin, int iterations){
+        byte[] salt = new byte[SALT_SIZE];
+        new SecureRandom().nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return SCHEME + "$" + iterations + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(derive(pin, salt, iterations));
+    }
+
+    /**
+     * Checks the entered pin, using the cache if the same check was made recently
+     */
+    public boolean verify(Session session){
+        byte[] key = cacheKey(session);
+        CacheEntry entry = cache.get(slot(key));
+        if (entry != null && entry.matches(key, clock.millis())){
+            return entry.valid;
+        }
+        return check(session, key);
+    }
+
+    /**
+     * Checks the entered pin on the verifier's pool, unless the same check was
+     * made recently, in which case the result is returned straight away, or is
+     * already on the pool, in which case that check is returned
+     * @param session One ATM operation by a single customer
+     * @return The result of verify
+     */
+    public Future<Boolean> verifyAsync(final Session session){
+        final byte[] key = cacheKey(session);
+        CacheEntry entry = cache.get(slot(key));
+        if (entry != null && entry.matches(key, clock.millis())){
+            return CompletableFuture.completedFuture(entry.valid);
+        }
+        final ByteBuffer id = ByteBuffer.wrap(key);
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call(){
+                //The check is cached before it is taken out of the checks in
+                //flight, so a session making it again always finds one or the other
+                try {
+                    return check(session, key);
+                } finally {
+                    inFlight.remove(id);
+                }
+            }
+        });
+        Future<Boolean> pending = inFlight.putIfAbsent(id, task);
+        if (pending != null){
+            return pending;
+        }
+        pool.execute(task);
+        return task;
+    }
+
+    /**
+     * Works out the hash of the entered pin, compares it to the stored hash,
+     * and caches the result
+     */
+    private boolean check(Session session, byte[] key){
+        hashCount.incrementAndGet();
+        boolean valid = matches(session.getExpectedPin(), session.getEnteredPin());
+        cache.set(slot(key), new CacheEntry(key, valid, clock.millis() + ttlMillis));
+        return valid;
+    }
+
+    /**
+     * @param stored A hash made by hash
+     * @param pin The entered pin
+     * @return true if the pin has that hash
+     */
+    static boolean matches(String stored, String pin){
+        if (stored == null || pin == null){
+            return false;
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals(SCHEME)){
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            return MessageDigest.isEqual(expected, derive(pin, salt, iterations));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] derive(String pin, byte[] salt, int iterations){
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * @return The keyed digest the session's check is cached under
+     */
+    private byte[] cacheKey(Session session){
+        Mac mac = digests.get();
+        update(mac, session.getAccountNumber());
+        update(mac, session.getExpectedPin());
+        update(mac, session.getEnteredPin());
+        return mac.doFinal();
+    }
+
+    private static void update(Mac mac, String value){
+        byte[] bytes = (value != null) ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        //The length goes first, so values cannot run into each other
+        mac.update((byte) (bytes.length >>> 8));
+        mac.update((byte) bytes.length);
+        mac.update(bytes);
+    }
+
+    private int slot(byte[] key){
+        return ((key[0] & 0xff) | (key[1] & 0xff) << 8 | (key[2] & 0xff) << 16 | (key[3] & 0xff) << 24) & cacheMask;
+    }
+
+    /**
+     * @return The number of entered pins hashed, rather than found in the cache
+     */
+    public long getHashCount(){
+        return hashCount.get();
+    }
+
+    /**
+     * Stops the pool. Checks already handed to it still finish
+     */
+    public void close(){
+        pool.shutdown();
+    }
+
+    /**
+     * A cached check, which never changes once made
+     */
+    private static final class CacheEntry {
+        final byte[] key;
+        final boolean valid;
+        final long expiresAt;
+
+        CacheEntry(byte[] key, boolean valid, long expiresAt){
+            this.key = key;
+            this.valid = valid;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean matches(byte[] other, long now){
+            return now < expiresAt && MessageDigest.isEqual(key, other);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.akqa.test.henrikpettersen;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in fixed buckets, one per power of two nanoseconds. Bucket i 
+ * holds latencies below 2^i ns, and at least 2^(i-1) ns. Recording a latency 
+ * does not allocate, and threads recording at the same time do not contend on 
+ * a single counter.
+ */
+public class LatencyHistogram {
+    
+    //The last bucket holds everything from 2^(BUCKETS-2) ns, about 4.6 minutes
+    static final int BUCKETS = 40;
+    
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+    
+    public LatencyHistogram(){
+        for (int i = 0; i < BUCKETS; i++){
+            counts[i] = new LongAdder();
+        }
+    }
+    
+    /**
+     * @param nanos How long the operation took
+     */
+    public void record(long nanos){
+        if (nanos < 0){
+            nanos = 0;
+        }
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+        counts[bucket].increment();
+        totalNanos.add(nanos);
+    }
+    
+    /**
+     * @return A copy of the count in each bucket
+     */
+    public long[] getCounts(){
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++){
+            copy[i] = counts[i].sum();
+        }
+        return copy;
+    }
+    
+    public long getTotalNanos(){
+        return totalNanos.sum();
+    }
+    
+    /**
+     * @param bucket A bucket index
+     * @return The highest latency counted in the bucket, in nanoseconds
+     */
+    public static long upperBound(int bucket){
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+    
+    /**
+     * Estimates a percentile from a copy of the bucket counts
+     * @param counts The bucket counts, from getCounts
+     * @param percentile Between 0 and 100
+     * @return The upper bound of the bucket holding the percentile, in nanoseconds
+     */
+    public static long percentile(long[] counts, double percentile){
+        long total = 0;
+        for (long count : counts){
+            total += count;
+        }
+        if (total == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0){
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+}
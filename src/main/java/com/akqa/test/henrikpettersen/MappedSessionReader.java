@@ -0,0 +1,394 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams sessions from an input file on the filesystem, by memory mapping the
+ * file and scanning the bytes directly. Numbers are parsed in place, so the only
+ * strings created are the account number and PINs stored on each Session.
+ *
+ * The file format and the comment/blank line rules are the same as for
+ * SessionReader, and both produce the same sessions for the same input.
+ *
+ * Files larger than the mapping window are mapped one window at a time. When a
+ * session runs past the end of the current window, the window is moved to start
+ * at that session and the session is parsed again.
+ *
+ * Files smaller than READ_MAX_SIZE are read into memory instead of mapped, as
+ * the first mapping in a JVM takes several milliseconds to set up, which is a
+ * large part of a short run.
+ *
+ * A reader can also be opened on part of a file that starts and ends at session
+ * boundaries, so a large file can be parsed in pieces, see DirectoryIngest.
+ */
+public class MappedSessionReader implements SessionSource {
+
+    //The largest part of the file that is mapped at any one time
+    private static final int MAX_WINDOW = 1 << 30;
+
+    //The largest file, or part of a file, that is read rather than mapped
+    private static final int READ_MAX_SIZE = 1 << 20;
+
+    //Thrown when the parser runs off the end of the current window. Shared, and
+    //without a stack trace, as it is only used to unwind to the remap
+    private static final RuntimeException UNDERFLOW = new RuntimeException("Window underflow", null, false, false) {};
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int windowSize;
+
+    private ByteBuffer buffer;
+    private long windowStart;
+    private int limit;
+    private int pos;
+
+    private long atmBalance;
+    private byte[] scratch = new byte[32];
+
+    MappedSessionReader(FileChannel channel, int windowSize) throws IOException{
+        this.channel = channel;
+        this.fileSize = channel.size();
+        this.windowSize = windowSize;
+        map(0);
+        readHeader();
+    }
+
+    /**
+     * Reads the sessions between two offsets in a file, as if they were the
+     * whole file, without a header
+     */
+    private MappedSessionReader(FileChannel channel, long start, long end, long atmBalance, int windowSize){
+        this.channel = channel;
+        this.fileSize = end;
+        this.windowSize = windowSize;
+        this.atmBalance = atmBalance;
+        map(start);
+    }
+
+    /**
+     * Opens a file on the filesystem for streaming
+     * @param path The input file
+     * @return A reader returning one session at a time from the input file
+     * @throws IOException If the file could not be opened
+     */
+    public static MappedSessionReader open(Path path) throws IOException{
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new MappedSessionReader(channel, MAX_WINDOW);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens part of a file on the filesystem for streaming. The part must start
+     * at the first session, or just after the blank line ending a session, and
+     * end at the end of the file, or just after a blank line
+     * @param path The input file
+     * @param start The offset of the first byte to read
+     * @param end The offset just after the last byte to read
+     * @param atmBalance The ATM balance from the top of the file
+     * @return A reader returning one session at a time from that part of the file
+     * @throws IOException If the file could not be opened
+     */
+    static MappedSessionReader openRange(Path path, long start, long end, long atmBalance) throws IOException{
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new MappedSessionReader(channel, start, end, atmBalance, MAX_WINDOW);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getAtmBalance(){
+        return atmBalance;
+    }
+
+    /**
+     * @return The offset in the file of the next byte to be parsed. Just after
+     * the header, until the first session is read
+     */
+    long getPosition(){
+        return windowStart + pos;
+    }
+
+    /**
+     * The first information in a file is the atm balance, followed by a blank line
+     */
+    private void readHeader(){
+        try {
+            //Check to see if the file was empty
+            if (!skipToContent()){
+                throw new IllegalStateException("Error parsing input file");
+            }
+            atmBalance = parseLong();
+            endLine();
+
+            //Skip the blank line after the atm balance
+            if (skipToContent()){
+                endLine();
+            }
+        } catch (RuntimeException e) {
+            if (e != UNDERFLOW){
+                throw e;
+            }
+            throw new IllegalStateException("Header does not fit in the mapping window");
+        }
+    }
+
+    /**
+     * Returns true if there is at least one more session in the file. Any blank
+     * lines between sessions are skipped
+     */
+    public boolean hasNext(){
+        while (true){
+            int start = pos;
+            try {
+                while (skipToContent()){
+                    if (!isEndOfLine()){
+                        return true;
+                    }
+                    endLine();
+                }
+                return false;
+            } catch (RuntimeException e) {
+                if (e != UNDERFLOW){
+                    throw e;
+                }
+                remap(start);
+            }
+        }
+    }
+
+    /**
+     * Parses the next session from the file
+     * @return A session instance configured with the data from the input file
+     */
+    public Session next(){
+        if (!hasNext()){
+            throw new NoSuchElementException();
+        }
+        int start = pos;
+        try {
+            return parseSession();
+        } catch (RuntimeException e) {
+            if (e != UNDERFLOW){
+                throw e;
+            }
+            //The session runs past the end of the window, so move the window
+            //to start at this session and try again
+            remap(start);
+            try {
+                return parseSession();
+            } catch (RuntimeException e2) {
+                if (e2 != UNDERFLOW){
+                    throw e2;
+                }
+                throw new IllegalStateException("Session does not fit in the mapping window");
+            }
+        }
+    }
+
+    private Session parseSession(){
+        Session session = new Session();
+
+        //Account number and PIN:
+        //{account number} {expected pin} {entered pin}
+        skipToContent();
+        session.setAccountNumber(parseToken());
+        session.setExpectedPin(parseToken());
+        session.setEnteredPin(parseToken());
+        endLine();
+
+        //Available Funds:
+        //{account balance} {overdraft}
+        skipToContent();
+        session.setBalance(parseLong());
+        session.setOverdraft(parseLong());
+        endLine();
+
+        //A session can have multiple actions associated with it.
+        //Loop through all of these actions. Stop when we get to
+        //the end of the file, or a blank line
+        while (skipToContent() && !isEndOfLine()){
+            byte code = byteAt(pos++);
+            if (code == 'W' || code == 'w'){
+                skipSpaces();
+                session.addAction(Action.createWithdrawal(parseLong()));
+            }
+            else if (code == 'B' || code == 'b'){
+                session.addAction(Action.createBalanceEnquiry());
+            }
+            else{
+                //Not a known action, which fails when the session is run
+                session.addAction(Action.createAction(String.valueOf((char) code)));
+            }
+            endLine();
+        }
+        if (pos < limit){
+            endLine();
+        }
+        return session;
+    }
+
+    public void remove(){
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() throws IOException{
+        buffer = null;
+        channel.close();
+    }
+
+    /**
+     * Moves to the first character on the current line that is not a space,
+     * skipping over any comment lines
+     * @return false at the end of the file
+     */
+    private boolean skipToContent(){
+        while (true){
+            skipSpaces();
+            if (pos >= limit){
+                if (atEndOfFile()){
+                    return false;
+                }
+                throw UNDERFLOW;
+            }
+            if (byteAt(pos) != '#'){
+                return true;
+            }
+            endLine();
+        }
+    }
+
+    private void skipSpaces(){
+        while (pos < limit){
+            byte b = byteAt(pos);
+            if (b != ' ' && b != '\t'){
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private boolean isEndOfLine(){
+        byte b = byteAt(pos);
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+     * Skips past the end of the current line, ignoring anything left on it
+     */
+    private void endLine(){
+        while (pos < limit){
+            if (byteAt(pos++) == '\n'){
+                return;
+            }
+        }
+        if (!atEndOfFile()){
+            throw UNDERFLOW;
+        }
+    }
+
+    /**
+     * Parses a signed decimal number in place, and skips the spaces after it
+     */
+    private long parseLong(){
+        boolean negative = false;
+        if (pos < limit && (byteAt(pos) == '-' || byteAt(pos) == '+')){
+            negative = byteAt(pos) == '-';
+            pos++;
+        }
+        int start = pos;
+        long value = 0;
+        while (pos < limit){
+            int digit = byteAt(pos) - '0';
+            if (digit < 0 || digit > 9){
+                break;
+            }
+            value = value * 10 + digit;
+            pos++;
+        }
+        checkToken(start);
+        skipSpaces();
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads the characters up to the next space as a string, and skips the
+     * spaces after it
+     */
+    private String parseToken(){
+        int start = pos;
+        while (pos < limit){
+            byte b = byteAt(pos);
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n'){
+                break;
+            }
+            pos++;
+        }
+        checkToken(start);
+        int length = pos - start;
+        if (scratch.length < length){
+            scratch = new byte[length];
+        }
+        for (int i = 0; i < length; i++){
+            scratch[i] = byteAt(start + i);
+        }
+        skipSpaces();
+        return new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private void checkToken(int start){
+        if (pos >= limit && !atEndOfFile()){
+            throw UNDERFLOW;
+        }
+        if (pos == start){
+            throw new NumberFormatException("Expected a value at offset " + (windowStart + start));
+        }
+    }
+
+    private byte byteAt(int index){
+        return buffer.get(index);
+    }
+
+    private boolean atEndOfFile(){
+        return windowStart + limit >= fileSize;
+    }
+
+    private void remap(int offset){
+        if (offset == 0 && !atEndOfFile()){
+            throw new IllegalStateException("Session does not fit in the mapping window");
+        }
+        map(windowStart + offset);
+    }
+
+    private void map(long start){
+        try {
+            windowStart = start;
+            limit = (int) Math.min(windowSize, fileSize - start);
+            pos = 0;
+            if (fileSize - start > READ_MAX_SIZE){
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, limit);
+                return;
+            }
+            buffer = ByteBuffer.allocate(limit);
+            while (buffer.hasRemaining()){
+                if (channel.read(buffer, start + buffer.position()) < 0){
+                    throw new IOException("File is shorter than expected");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.akqa.test.henrikpettersen;
+
+/**
+ * The command line options for the ATM:
+ *  [--threads N] [--unordered] [--ledger FILE] 
+ *  [--metrics text|json] [--metrics-interval SECONDS] [--columnar] 
+ *  [--journal DIR] [--snapshot-every N] [--cassettes SPEC] [--max-withdrawal N]
+ *  [--follow] [--pipeline] [--shards N] [--limits SPEC] [--per-file DIR] 
+ *  [--history DIR] [--hashed-pins] [--output FILE] [--checkpoint FILE]
+ *  [--checkpoint-every N] [--resume]
+ *  [input file | input directory | glob]
+ * 
+ *  --threads N   Run the sessions on N threads. The default is 1, which runs 
+ *                every session in turn on the main thread. Cannot be combined
+ *                with --ledger, --journal, --limits or --history, which hold
+ *                the state of each account across sessions
+ *  --unordered   When running on several threads, print the results of each 
+ *                session as soon as it finishes, instead of in input order
+ *  --ledger FILE Keep account balances across sessions and runs. The ledger is 
+ *                loaded from FILE if it exists, and saved to FILE at the end.
+ *                With --ledger, --limits or --history, account numbers must be
+ *                digits without leading zeros, and other sessions get ACCOUNT_ERR
+ *  --metrics F   Count and time every operation, and write the metrics to 
+ *                standard error at the end of the run, as text or json
+ *  --metrics-interval SECONDS
+ *                Also write the metrics every SECONDS while the run goes on
+ *  --columnar    Load every session into a columnar SessionStore before 
+ *                running them, instead of streaming them
+ *  --journal DIR Journal every withdrawal to DIR, and only print results once
+ *                they are on disk. If DIR holds a journal, the ATM cash and
+ *                account balances are recovered from it, instead of taken from
+ *                the input file. Cannot be combined with --cassettes, as only
+ *                the cash is journaled, not the notes
+ *  --snapshot-every N
+ *                Snapshot the ledger into the journal every N withdrawals. The
+ *                default is 1000000
+ *  --cassettes SPEC
+ *                Load the ATM with notes instead of the cash in the input file, 
+ *                as {denomination}x{count},... for example 20x500,50x200. Only
+ *                amounts the notes can make up exactly are dispensed
+ *  --max-withdrawal N
+ *                The largest amount the cassettes dispense at once. The default
+ *                is 5000
+ *  --follow      Keep following the input file as sessions are appended to it, 
+ *                and run each session once the blank line after it is written.
+ *                Runs until stopped, on the main thread
+ *  --pipeline    Run the sessions through a staged pipeline: parse, verify pins
+ *                on --threads threads, execute in order, and emit. With 
+ *                --metrics, the figures for each stage are written as well
+ *  --shards N    Split the accounts between N worker processes, each running
+ *                the sessions for its accounts. With --ledger, each worker keeps
+ *                its accounts in FILE.{shard}-of-{N}, and the run is refused if
+ *                the ledger was kept with a different number of shards
+ *  --limits SPEC Check per account limits on each withdrawal, as 
+ *                {name}={value},... where the names are daily (the most 
+ *                withdrawn in a day), count (the most withdrawals in a window), 
+ *                window (seconds, default 3600), pin-failures (wrong pins in a 
+ *                row before the account is locked) and lockout (seconds, 
+ *                default 86400). Withdrawals over a limit get LIMIT_ERR
+ *  --per-file DIR
+ *                With an input directory or glob, run each file through an ATM
+ *                of its own, several at once, and write the results of each
+ *                file to DIR/{file name}.out
+ *  --history DIR Record every action and failed pin check in a history in DIR,
+ *                which can be searched by account or error afterwards, see 
+ *                TransactionHistory
+ *  --hashed-pins The expected pins in the input are hashes made by 
+ *                HashedPinVerifier, rather than the pins themselves. The hashes
+ *                are worked out ahead of the sessions on one thread per core, 
+ *                and recent checks are cached
+ *  --output FILE Write the results to FILE instead of standard output
+ *  --checkpoint FILE
+ *                Record how far the run has got in FILE every 
+ *                --checkpoint-every sessions, see ReplayCheckpoint. Only for 
+ *                runs on a single thread, without a ledger, journal, cassettes,
+ *                limits or history
+ *  --checkpoint-every N
+ *                The number of sessions between checkpoints. The default is 
+ *                1000000
+ *  --resume      Carry on from the checkpoint in the --checkpoint FILE, if there
+ *                is one. The --output FILE is cut back to the results written 
+ *                at the checkpoint, and the rest of the results are appended. 
+ *                On standard output, only the rest of the results are written
+ *  input file    Read the sessions from this file on the filesystem, instead 
+ *                of the bundled input file
+ *  input directory | glob
+ *                Read the sessions from every matching file, such as 
+ *                'spool/*.txt', in file name order, with each file's ATM balance.
+ *                The files are parsed on --threads threads, one per core by
+ *                default, with large files split between threads
+ */
+public class Options {
+    private String inputPath;
+    private int threads = 1;
+    private boolean ordered = true;
+    private String ledgerPath;
+    private AtmMetrics.Format metricsFormat;
+    private long metricsInterval;
+    private boolean columnar;
+    private String journalPath;
+    private long snapshotEvery = 1000000;
+    private String cassettes;
+    private int maxWithdrawal = 5000;
+    private boolean follow;
+    private boolean pipeline;
+    private int shards = 1;
+    private String limits;
+    private String perFileOutput;
+    private String historyPath;
+    private boolean hashedPins;
+    private String outputPath;
+    private String checkpointPath;
+    private long checkpointEvery = 1000000;
+    private boolean resume;
+    
+    /**
+     * Parses the command line options
+     * @param args The command line arguments
+     * @return The options set on the command line
+     * @throws IllegalArgumentException If an option is not recognised, or options
+     * are given that cannot be combined, see validate
+     */
+    public static Options parse(String[] args){
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++){
+            String arg = args[i];
+            if (arg.equals("--threads")){
+                options.threads = Integer.parseInt(value(args, ++i, arg));
+            }
+            else if (arg.equals("--unordered")){
+                options.ordered = false;
+            }
+            else if (arg.equals("--ledger")){
+                options.ledgerPath = value(args, ++i, arg);
+            }
+            else if (arg.equals("--metrics")){
+                options.metricsFormat = AtmMetrics.Format.valueOf(value(args, ++i, arg).toUpperCase());
+            }
+            else if (arg.equals("--metrics-interval")){
+                options.metricsInterval = Long.parseLong(value(args, ++i, arg));
+            }
+            else if (arg.equals("--columnar")){
+                options.columnar = true;
+            }
+            else if (arg.equals("--journal")){
+                options.journalPath = value(args, ++i, arg);
+            }
+            else if (arg.equals("--snapshot-every")){
+                options.snapshotEvery = Long.parseLong(value(args, ++i, arg));
+            }
+            else if (arg.equals("--follow")){
+                options.follow = true;
+            }
+            else if (arg.equals("--pipeline")){
+                options.pipeline = true;
+            }
+            else if (arg.equals("--shards")){
+                options.shards = Integer.parseInt(value(args, ++i, arg));
+            }
+            else if (arg.equals("--limits")){
+                options.limits = value(args, ++i, arg);
+            }
+            else if (arg.equals("--per-file")){
+                options.perFileOutput = value(args, ++i, arg);
+            }
+            else if (arg.equals("--history")){
+                options.historyPath = value(args, ++i, arg);
+            }
+            else if (arg.equals("--hashed-pins")){
+                options.hashedPins = true;
+            }
+            else if (arg.equals("--output")){
+                options.outputPath = value(args, ++i, arg);
+            }
+            else if (arg.equals("--checkpoint")){
+                options.checkpointPath = value(args, ++i, arg);
+            }
+            else if (arg.equals("--checkpoint-every")){
+                options.checkpointEvery = Long.parseLong(value(args, ++i, arg));
+            }
+            else if (arg.equals("--resume")){
+                options.resume = true;
+            }
+            else if (arg.equals("--cassettes")){
+                options.cassettes = value(args, ++i, arg);
+            }
+            else if (arg.equals("--max-withdrawal")){
+                options.maxWithdrawal = Integer.parseInt(value(args, ++i, arg));
+            }
+            else if (arg.startsWith("--")){
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else{
+                options.inputPath = arg;
+            }
+        }
+        options.validate();
+        return options;
+    }
+    
+    /**
+     * Checks the options can be combined, so that a run is refused before any
+     * ledger, journal or output has been opened
+     * @throws IllegalArgumentException If options are given that cannot be combined
+     */
+    void validate(){
+        if (checkpointPath != null && (columnar || pipeline || threads > 1 || shards > 1 || ledgerPath != null
+                || journalPath != null || cassettes != null || limits != null || historyPath != null)){
+            throw new IllegalArgumentException("--checkpoint only runs on a single thread, without a ledger, "
+                    + "journal, cassettes, limits or history");
+        }
+        if (resume && checkpointPath == null){
+            throw new IllegalArgumentException("--resume needs --checkpoint FILE");
+        }
+        if (journalPath != null && cassettes != null){
+            //The journal recovers the cash, but not the notes that make it up
+            throw new IllegalArgumentException("--journal cannot be combined with --cassettes");
+        }
+        if (shards > 1){
+            if (follow || columnar || pipeline || threads > 1 || journalPath != null || cassettes != null
+                    || limits != null || historyPath != null || hashedPins){
+                throw new IllegalArgumentException("--shards can only be combined with --ledger and --output");
+            }
+        }
+        else if (inputPath != null && DirectoryIngest.isPattern(inputPath)){
+            //Each file is parsed on a thread of its own, but the sessions run in
+            //turn, so the ledger, limits and history only exclude --per-file
+            if (follow || columnar || pipeline || checkpointPath != null || journalPath != null || cassettes != null
+                    || (perFileOutput != null && (ledgerPath != null || limits != null
+                            || historyPath != null || hashedPins))){
+                throw new IllegalArgumentException("Input directories cannot be combined with this option");
+            }
+        }
+        else{
+            if (follow && (inputPath == null || columnar || pipeline || threads > 1)){
+                throw new IllegalArgumentException("--follow needs an input file, and runs on a single thread");
+            }
+            if (threads > 1 && !pipeline
+                    && (ledgerPath != null || journalPath != null || limits != null || historyPath != null)){
+                //Sessions for the same account could run on two threads at once
+                throw new IllegalArgumentException("--threads cannot be combined with --ledger, --journal, --limits or --history");
+            }
+        }
+    }
+    
+    private static String value(String[] args, int index, String option){
+        if (index >= args.length){
+            throw new IllegalArgumentException("Missing value for option: " + option);
+        }
+        return args[index];
+    }
+    
+    public String getInputPath() {
+        return inputPath;
+    }
+    public int getThreads() {
+        return threads;
+    }
+    public boolean isOrdered() {
+        return ordered;
+    }
+    public String getLedgerPath() {
+        return ledgerPath;
+    }
+    public AtmMetrics.Format getMetricsFormat() {
+        return metricsFormat;
+    }
+    public long getMetricsInterval() {
+        return metricsInterval;
+    }
+    public boolean isColumnar() {
+        return columnar;
+    }
+    public String getJournalPath() {
+        return journalPath;
+    }
+    public long getSnapshotEvery() {
+        return snapshotEvery;
+    }
+    public String getCassettes() {
+        return cassettes;
+    }
+    public int getMaxWithdrawal() {
+        return maxWithdrawal;
+    }
+    public boolean isFollow() {
+        return follow;
+    }
+    public boolean isPipeline() {
+        return pipeline;
+    }
+    public int getShards() {
+        return shards;
+    }
+    public String getLimits() {
+        return limits;
+    }
+    public String getPerFileOutput() {
+        return perFileOutput;
+    }
+    public String getHistoryPath() {
+        return historyPath;
+    }
+    public boolean isHashedPins() {
+        return hashedPins;
+    }
+    public String getOutputPath() {
+        return outputPath;
+    }
+    public String getCheckpointPath() {
+        return checkpointPath;
+    }
+    public long getCheckpointEvery() {
+        return checkpointEvery;
+    }
+    public boolean isResume() {
+        return resume;
+    }
+}
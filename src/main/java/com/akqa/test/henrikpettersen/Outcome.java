@@ -0,0 +1,58 @@
+package com.akqa.test.henrikpettersen;
+
+/**
+ * The outcome of a customer operation, packed into a single long so that it can
+ * be returned without allocating anything. An outcome is either the remaining
+ * customer balance, or an ErrorCode.
+ * 
+ * Error codes are stored in the lowest values a long can hold, from 
+ * Long.MIN_VALUE upwards, one per ErrorCode ordinal. Every other value is a 
+ * balance. No real account balance comes anywhere near these values.
+ */
+public final class Outcome {
+    
+    private static final long ERROR_BASE = Long.MIN_VALUE;
+    private static final ErrorCode[] ERROR_CODES = ErrorCode.values();
+    private static final long ERROR_LIMIT = ERROR_BASE + ERROR_CODES.length;
+    
+    private Outcome(){
+    }
+    
+    /**
+     * @param errorCode Why the operation failed
+     * @return The outcome of a failed operation
+     */
+    public static long error(ErrorCode errorCode){
+        return ERROR_BASE + errorCode.ordinal();
+    }
+    
+    /**
+     * @param outcome The outcome of an operation
+     * @return true if the operation failed
+     */
+    public static boolean isError(long outcome){
+        return outcome < ERROR_LIMIT;
+    }
+    
+    /**
+     * @param outcome The outcome of a failed operation
+     * @return Why the operation failed
+     */
+    public static ErrorCode errorCode(long outcome){
+        return ERROR_CODES[(int) (outcome - ERROR_BASE)];
+    }
+    
+    /**
+     * Writes the outcome to the sink, as either a balance or an error
+     * @param outcome The outcome of an operation
+     * @param results Where the results are written
+     */
+    public static void report(long outcome, ResultSink results){
+        if (isError(outcome)){
+            results.error(errorCode(outcome));
+        }
+        else{
+            results.balance(outcome);
+        }
+    }
+}
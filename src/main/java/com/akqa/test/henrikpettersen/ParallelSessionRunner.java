@@ -0,0 +1,226 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs sessions through an ATM on a pool of threads. Sessions are read on the
+ * calling thread, and handed to the pool in batches. Each batch prints its
+ * results into its own buffer, which is then written out in one go.
+ * 
+ * The only state shared between sessions is the ATM cash, which is taken out
+ * with compare-and-set, so the ATM never dispenses more than it holds. Sessions
+ * for the same account may run on different threads at once, so the runner
+ * does not take an ATM with a ledger, limits or a history, which would carry
+ * an account's state from one session to the next.
+ * 
+ * In ordered mode the results are printed in input order, and are the same as
+ * running the sessions one after the other. Each batch is only handed to the
+ * pool if the ATM holds enough cash for every withdrawal in it and in the
+ * batches still running, so no withdrawal can be turned away whatever order
+ * the threads run in. Once the cash runs short, the batches still running are
+ * waited for, and the next batch is run on the calling thread instead. So are
+ * batches with withdrawals if the ATM holds notes, as the notes left may not
+ * make up an amount however much cash there is.
+ * 
+ * In unordered mode each batch is printed as soon as it finishes. Once the cash
+ * runs out, which sessions get ATM_ERR depends on the order the threads
+ * happened to run in.
+ */
+public class ParallelSessionRunner {
+    
+    //The number of sessions handed to a thread at a time
+    private static final int BATCH_SIZE = 256;
+    
+    //The number of batches per thread that may be waiting or running at once.
+    //This keeps memory use flat however big the input is
+    private static final int BATCHES_PER_THREAD = 4;
+    
+    //The results of a batch are formatted into a buffer of this size
+    private static final int RESULT_BUFFER_SIZE = 1 << 13;
+    
+    private final Atm atm;
+    private final int threads;
+    private final boolean ordered;
+    
+    /**
+     * @param atm The ATM, without a ledger, limits or history
+     * @param threads The number of threads to run the sessions on
+     * @param ordered Whether the results are printed in input order
+     */
+    public ParallelSessionRunner(Atm atm, int threads, boolean ordered){
+        if (atm.getLedger() != null || atm.getLimits() != null || atm.getHistory() != null){
+            throw new IllegalArgumentException("Sessions cannot run in parallel with a ledger, limits or history");
+        }
+        this.atm = atm;
+        this.threads = threads;
+        this.ordered = ordered;
+    }
+    
+    /**
+     * Runs every session from the source through the ATM
+     * @param sessions The sessions to run
+     * @param out Where the results are written
+     */
+    public void run(SessionSource sessions, OutputStream out){
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            if (ordered){
+                runOrdered(sessions, out, pool);
+            }
+            else{
+                runUnordered(sessions, out, pool);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    private void runOrdered(SessionSource sessions, OutputStream out, ExecutorService pool){
+        int maxPending = threads * BATCHES_PER_THREAD;
+        Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        Deque<Long> pendingCash = new ArrayDeque<Long>();
+        
+        //The most cash the batches handed to the pool and not yet printed may take
+        long reserved = 0;
+        List<Session> batch;
+        while (!(batch = nextBatch(sessions)).isEmpty()){
+            long cash = cashRequested(batch);
+            if (atm.getAtmBalance() - reserved < cash || (cash > 0 && atm.getCassettes() != null)){
+                //Not enough cash for every batch to be run in any order, so run
+                //the batches before this one, and then this one, in turn
+                while (!pending.isEmpty()){
+                    write(pending.poll(), out);
+                }
+                pendingCash.clear();
+                reserved = 0;
+                write(new Batch(batch).call(), out);
+                continue;
+            }
+            pending.add(pool.submit(new Batch(batch)));
+            pendingCash.add(cash);
+            reserved += cash;
+            
+            //Print the oldest batch once there are enough queued up behind it
+            if (pending.size() >= maxPending){
+                write(pending.poll(), out);
+                reserved -= pendingCash.poll();
+            }
+        }
+        while (!pending.isEmpty()){
+            write(pending.poll(), out);
+        }
+    }
+    
+    /**
+     * @return The total of every withdrawal in the sessions, which is the most
+     * cash they can take out of the ATM
+     */
+    private static long cashRequested(List<Session> batch){
+        long cash = 0;
+        for (Session session : batch){
+            for (Action action : session.getActions()){
+                if (action.isWithdrawal() && action.getAmount() > 0){
+                    cash += action.getAmount();
+                }
+            }
+        }
+        return cash;
+    }
+    
+    private void runUnordered(SessionSource sessions, final OutputStream out, ExecutorService pool){
+        final Semaphore permits = new Semaphore(threads * BATCHES_PER_THREAD);
+        Deque<Future<?>> submitted = new ArrayDeque<Future<?>>();
+        
+        List<Session> batch;
+        while (!(batch = nextBatch(sessions)).isEmpty()){
+            permits.acquireUninterruptibly();
+            final Batch task = new Batch(batch);
+            submitted.add(pool.submit(new Runnable() {
+                public void run(){
+                    try {
+                        byte[] results = task.call();
+                        synchronized (out) {
+                            write(results, out);
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                }
+            }));
+            
+            //Only keep hold of the futures that may still fail
+            if (submitted.size() >= threads * BATCHES_PER_THREAD){
+                waitFor(submitted.poll());
+            }
+        }
+        for (Future<?> future : submitted){
+            waitFor(future);
+        }
+    }
+    
+    private List<Session> nextBatch(SessionSource sessions){
+        List<Session> batch = new ArrayList<Session>(BATCH_SIZE);
+        while (batch.size() < BATCH_SIZE && sessions.hasNext()){
+            batch.add(sessions.next());
+        }
+        return batch;
+    }
+    
+    private void write(Future<byte[]> future, OutputStream out){
+        write(waitFor(future), out);
+    }
+    
+    private static void write(byte[] results, OutputStream out){
+        try {
+            out.write(results, 0, results.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static <T> T waitFor(Future<T> future){
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running sessions", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Session failed", e.getCause());
+        }
+    }
+    
+    /**
+     * Runs a batch of sessions, and returns the formatted results
+     */
+    private class Batch implements Callable<byte[]> {
+        private final List<Session> sessions;
+        
+        Batch(List<Session> sessions){
+            this.sessions = sessions;
+        }
+        
+        public byte[] call(){
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            ResultSink results = new BufferedResultSink(Channels.newChannel(buffer), RESULT_BUFFER_SIZE);
+            for (Session session : sessions){
+                atm.performActions(session, results);
+            }
+            results.flush();
+            return buffer.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.akqa.test.henrikpettersen;
+
+/**
+ * Checks the pin entered in a session against the pin held for the account.
+ * By default the ATM compares the expected and entered pins as plain text, see
+ * Atm.isPinValid. A verifier set on the ATM replaces that check.
+ *
+ * May be called from several threads at once.
+ */
+public interface PinVerifier {
+
+    /**
+     * @param session One ATM operation by a single customer
+     * @return true if the entered pin matches the pin held for the account
+     */
+    boolean verify(Session session);
+}
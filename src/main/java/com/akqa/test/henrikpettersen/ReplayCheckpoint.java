@@ -0,0 +1,312 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Records how far a long replay has got, so that a run that dies part way
+ * through can carry on from the last checkpoint instead of the first session.
+ *
+ * Every checkpointEvery sessions the results so far are written out, and the
+ * checkpoint takes down:
+ *  - the number of sessions run
+ *  - the offset in the input file just after the last session run, if the file
+ *    is memory mapped, or -1, in which case the sessions are skipped on resume
+ *  - the size of the input file, or -1
+ *  - the ATM cash
+ *  - the number of bytes of results written
+ * as longs after a magic number, followed by a CRC32 of the longs.
+ *
+ * These figures are taken on the thread running the sessions, which is cheap.
+ * A background thread then forces the results to disk, if they go to a file,
+ * writes the checkpoint to a temporary file, forces it, and moves it over the
+ * last one, so a checkpoint on disk is always whole, and never ahead of the
+ * results. If sessions run faster than checkpoints can be written, only the
+ * latest is written.
+ *
+ * On resume, the input is opened just after the last session run, the ATM is
+ * loaded with the cash, and the results are cut back to the bytes written, so
+ * the results once the run finishes are the same as a run that never stopped.
+ * Only the ATM cash is restored, so checkpoints are not taken with a ledger,
+ * cassettes, limits or a history.
+ */
+public class ReplayCheckpoint implements Closeable {
+
+    private static final int MAGIC = 0x41544d43; //"ATMC"
+    private static final int SIZE = 4 + 5 * 8 + 4;
+
+    private final Path file;
+    private final long checkpointEvery;
+    private final Path input;
+    private long sessions;
+    private long outputPosition;
+    private FileChannel outputFile;
+
+    //The latest checkpoint not yet written, and the thread writing checkpoints
+    private final AtomicReference<State> latest = new AtomicReference<State>();
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * @param file Where the checkpoints are written
+     * @param checkpointEvery The number of sessions run between checkpoints
+     * @param input The input file, or null for the bundled input file
+     * @param start The checkpoint the run is resumed from, or null for a new run
+     */
+    public ReplayCheckpoint(Path file, long checkpointEvery, Path input, State start){
+        this.file = file;
+        this.checkpointEvery = checkpointEvery;
+        this.input = input;
+        if (start != null){
+            this.sessions = start.sessions;
+            this.outputPosition = start.outputPosition;
+        }
+        this.writer = new Thread(new Runnable() {
+            public void run(){
+                writeCheckpoints();
+            }
+        }, "atm-checkpoint-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Reads the last checkpoint
+     * @param file Where the checkpoints are written
+     * @return The checkpoint, or null if none has been written yet
+     * @throws IOException If the checkpoint could not be read, or is damaged
+     */
+    public static State load(Path file) throws IOException{
+        if (!Files.exists(file)){
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() != SIZE || buffer.getInt() != MAGIC){
+            throw new IOException("Not a checkpoint: " + file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, 5 * 8);
+        State state = new State(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+        if (buffer.getInt() != (int) crc.getValue()){
+            throw new IOException("Checkpoint is damaged: " + file);
+        }
+        return state;
+    }
+
+    /**
+     * Moves the sessions past the ones already run by a checkpoint: a memory
+     * mapped input file is opened again at the checkpoint's offset, and any other
+     * input is read through
+     * @param sessions The sessions, from the first one
+     * @param input The input file, or null for the bundled input file
+     * @param state The checkpoint
+     * @return The sessions after the last one run
+     * @throws IOException If the input does not match the checkpoint
+     */
+    public static SessionSource skip(SessionSource sessions, Path input, State state) throws IOException{
+        if (sessions instanceof MappedSessionReader && state.inputOffset >= 0){
+            long size = Files.size(input);
+            if (size != state.inputSize){
+                throw new IOException("Input file has changed since the checkpoint: " + input);
+            }
+            sessions.close();
+            return MappedSessionReader.openRange(input, state.inputOffset, size, state.atmBalance);
+        }
+        for (long i = 0; i < state.sessions; i++){
+            if (!sessions.hasNext()){
+                throw new IOException("Input has fewer sessions than the checkpoint");
+            }
+            sessions.next();
+        }
+        return sessions;
+    }
+
+    /**
+     * Counts the bytes of results written
+     * @param output Where the results are written, positioned at the output
+     * position of the checkpoint resumed from
+     * @param file The results file, which is forced to disk before each 
+     * checkpoint, or null if the results do not go to a file
+     * @return The channel to write the results to
+     */
+    public WritableByteChannel track(final WritableByteChannel output, FileChannel file){
+        this.outputFile = file;
+        return new WritableByteChannel() {
+            public int write(ByteBuffer src) throws IOException{
+                int written = output.write(src);
+                outputPosition += written;
+                return written;
+            }
+            public boolean isOpen(){
+                return output.isOpen();
+            }
+            public void close() throws IOException{
+                output.close();
+            }
+        };
+    }
+
+    /**
+     * Counts a session as run, and takes a checkpoint every checkpointEvery
+     * sessions. Called on the thread running the sessions, after each session
+     * @param source The sessions, just after the one run
+     * @param atm The ATM
+     * @param results Where the results are written, through the channel from track
+     * @throws IOException If an earlier checkpoint could not be written
+     */
+    public void sessionDone(SessionSource source, Atm atm, ResultSink results) throws IOException{
+        if (++sessions % checkpointEvery == 0){
+            checkpoint(source, atm, results);
+        }
+    }
+
+    /**
+     * Takes a checkpoint straight away, such as once every session has been run
+     * @param source The sessions, just after the last one run
+     * @param atm The ATM
+     * @param results Where the results are written, through the channel from track
+     * @throws IOException If an earlier checkpoint could not be written
+     */
+    public void checkpoint(SessionSource source, Atm atm, ResultSink results) throws IOException{
+        if (failure != null){
+            throw failure;
+        }
+        results.flush();
+        long inputOffset = -1;
+        long inputSize = -1;
+        if (source instanceof MappedSessionReader){
+            inputOffset = ((MappedSessionReader) source).getPosition();
+            inputSize = Files.size(input);
+        }
+        latest.set(new State(sessions, inputOffset, inputSize, atm.getAtmBalance(), outputPosition));
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * The background thread: writes the latest checkpoint, until closed
+     */
+    private void writeCheckpoints(){
+        while (true){
+            State state;
+            synchronized (this) {
+                while ((state = latest.getAndSet(null)) == null && !closed){
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            if (state == null){
+                return;
+            }
+            try {
+                write(state);
+            } catch (IOException e) {
+                failure = e;
+                return;
+            }
+        }
+    }
+
+    private void write(State state) throws IOException{
+        //The results behind the checkpoint must be on disk before it is
+        if (outputFile != null){
+            outputFile.force(false);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putLong(state.sessions);
+        buffer.putLong(state.inputOffset);
+        buffer.putLong(state.inputSize);
+        buffer.putLong(state.atmBalance);
+        buffer.putLong(state.outputPosition);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, 5 * 8);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+            try {
+                while (buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Writes the last checkpoint taken, if it has not been written yet, and stops
+     * the background thread
+     * @throws IOException If a checkpoint could not be written
+     */
+    public void close() throws IOException{
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing the checkpoint");
+        }
+        if (failure != null){
+            throw failure;
+        }
+    }
+
+    /**
+     * How far a run had got at a checkpoint
+     */
+    public static class State {
+        private final long sessions;
+        private final long inputOffset;
+        private final long inputSize;
+        private final long atmBalance;
+        private final long outputPosition;
+
+        State(long sessions, long inputOffset, long inputSize, long atmBalance, long outputPosition){
+            this.sessions = sessions;
+            this.inputOffset = inputOffset;
+            this.inputSize = inputSize;
+            this.atmBalance = atmBalance;
+            this.outputPosition = outputPosition;
+        }
+
+        public long getSessions(){
+            return sessions;
+        }
+        public long getInputOffset(){
+            return inputOffset;
+        }
+        public long getAtmBalance(){
+            return atmBalance;
+        }
+        public long getOutputPosition(){
+            return outputPosition;
+        }
+    }
+}
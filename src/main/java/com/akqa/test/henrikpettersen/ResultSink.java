@@ -0,0 +1,26 @@
+package com.akqa.test.henrikpettersen;
+
+/**
+ * Receives the result of each customer operation: either the remaining customer
+ * balance, or the error code if the operation failed. Implementations decide how
+ * and where the results are written.
+ */
+public interface ResultSink {
+
+    /**
+     * An operation succeeded, and left the customer with this balance
+     * @param balance The remaining customer balance
+     */
+    void balance(long balance);
+
+    /**
+     * An operation failed
+     * @param errorCode Why the operation failed
+     */
+    void error(ErrorCode errorCode);
+
+    /**
+     * Writes out any results that are still buffered
+     */
+    void flush();
+}
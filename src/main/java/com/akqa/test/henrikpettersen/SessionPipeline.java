@@ -0,0 +1,375 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs sessions through an ATM in four stages, each on its own threads, with a
+ * bounded queue in front of every stage after the first:
+ *  - parse: reads sessions from the source in batches, on the calling thread
+ *  - verify: checks the pins, on several threads, as it needs no shared state
+ *  - execute: runs the actions of each batch in input order, on a single thread,
+ *    so the ATM cash is used in the same order as running the sessions one after
+ *    the other, and formats the results
+ *  - emit: gathers the formatted results of several batches into large writes
+ *
+ * A stage whose queue is full waits, so when output is slow every stage before
+ * it slows down to match, and the number of sessions in memory stays bounded.
+ * The batches the execute stage holds back, waiting for an earlier batch still
+ * being verified, are bounded as well: parse takes a permit for each batch, and
+ * execute only gives it back once the batch has run, so one slow batch holds up
+ * parsing rather than letting the batches behind it pile up.
+ *
+ * Each stage counts the sessions it has handled and the time it spent busy, and
+ * reports the depth of its queue. The stage that is busy all the time, with a
+ * full queue in front of it, is the bottleneck. See describe.
+ */
+public class SessionPipeline {
+
+    //The number of sessions handed from stage to stage at a time
+    private static final int BATCH_SIZE = 256;
+
+    //The number of batches each queue holds
+    private static final int QUEUE_CAPACITY = 16;
+
+    //The results of a batch are formatted into a buffer of this size
+    private static final int RESULT_BUFFER_SIZE = 1 << 13;
+
+    //The emit stage writes once it has gathered this much
+    private static final int WRITE_SIZE = 1 << 16;
+
+    //Marks the end of the sessions
+    private static final Batch END = new Batch(-1, new ArrayList<Session>(0));
+
+    private final Atm atm;
+    private final int verifiers;
+
+    private final BlockingQueue<Batch> parsed = new ArrayBlockingQueue<Batch>(QUEUE_CAPACITY);
+    private final BlockingQueue<Batch> verified = new ArrayBlockingQueue<Batch>(QUEUE_CAPACITY);
+    private final BlockingQueue<Batch> executed = new ArrayBlockingQueue<Batch>(QUEUE_CAPACITY);
+
+    private final Stage parse = new Stage("parse", null, 1);
+    private final Stage verify;
+    private final Stage execute = new Stage("execute", verified, 1);
+    private final Stage emit = new Stage("emit", executed, 1);
+
+    //One permit for each batch that may be between parse and execute at once
+    private final Semaphore inFlight;
+
+    private final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+    private volatile Throwable failure;
+    private volatile long startNanos;
+
+    /**
+     * @param atm The ATM to run the sessions through
+     * @param verifiers The number of threads checking pins
+     */
+    public SessionPipeline(Atm atm, int verifiers){
+        this.atm = atm;
+        this.verifiers = verifiers;
+        this.verify = new Stage("verify", parsed, verifiers);
+        this.inFlight = new Semaphore(2 * QUEUE_CAPACITY + verifiers);
+    }
+
+    /**
+     * Runs every session from the source through the ATM
+     * @param sessions The sessions to run
+     * @param out Where the results are written
+     */
+    public void run(SessionSource sessions, final WritableByteChannel out){
+        startNanos = System.nanoTime();
+        Thread caller = Thread.currentThread();
+        threads.add(caller);
+        for (int i = 0; i < verifiers; i++){
+            start("atm-pipeline-verify-" + i, new Runnable() {
+                public void run(){
+                    verify();
+                }
+            });
+        }
+        start("atm-pipeline-execute", new Runnable() {
+            public void run(){
+                execute();
+            }
+        });
+        Thread emitter = start("atm-pipeline-emit", new Runnable() {
+            public void run(){
+                emit(out);
+            }
+        });
+
+        try {
+            parse(sessions);
+            emitter.join();
+        } catch (InterruptedException e) {
+            //Interrupted by a stage that failed
+        } catch (RuntimeException e) {
+            fail(e);
+        } finally {
+            threads.remove(caller);
+            for (Thread thread : threads){
+                thread.interrupt();
+            }
+            Thread.interrupted();
+        }
+        if (failure != null){
+            throw new IllegalStateException("Session failed", failure);
+        }
+    }
+
+    private void parse(SessionSource sessions) throws InterruptedException{
+        long sequence = 0;
+        while (true){
+            long start = System.nanoTime();
+            List<Session> batch = new ArrayList<Session>(BATCH_SIZE);
+            while (batch.size() < BATCH_SIZE && sessions.hasNext()){
+                batch.add(sessions.next());
+            }
+            parse.record(batch.size(), System.nanoTime() - start);
+            if (batch.isEmpty()){
+                break;
+            }
+            inFlight.acquire();
+            parsed.put(new Batch(sequence++, batch));
+        }
+
+        //One end marker for each verifier
+        for (int i = 0; i < verifiers; i++){
+            parsed.put(END);
+        }
+    }
+
+    private void verify(){
+        try {
+            Batch batch;
+            while ((batch = parsed.take()) != END){
+                long start = System.nanoTime();
+                List<Session> sessions = batch.sessions;
+                boolean[] pinValid = new boolean[sessions.size()];
+                for (int i = 0; i < pinValid.length; i++){
+                    pinValid[i] = atm.isPinValid(sessions.get(i));
+                }
+                batch.pinValid = pinValid;
+                verify.record(sessions.size(), System.nanoTime() - start);
+                verified.put(batch);
+            }
+            verified.put(END);
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void execute(){
+        try {
+            //Batches come out of the verifiers in any order, and are held back
+            //until every batch before them has run
+            Map<Long, Batch> waiting = new HashMap<Long, Batch>();
+            long next = 0;
+            int ended = 0;
+            while (ended < verifiers){
+                Batch batch = verified.take();
+                if (batch == END){
+                    ended++;
+                    continue;
+                }
+                waiting.put(batch.sequence, batch);
+                while ((batch = waiting.remove(next)) != null){
+                    long start = System.nanoTime();
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream(RESULT_BUFFER_SIZE);
+                    ResultSink results = new BufferedResultSink(Channels.newChannel(buffer), RESULT_BUFFER_SIZE);
+                    List<Session> sessions = batch.sessions;
+                    for (int i = 0; i < sessions.size(); i++){
+                        atm.performActions(sessions.get(i), batch.pinValid[i], results);
+                    }
+                    results.flush();
+                    batch.results = buffer.toByteArray();
+                    execute.record(sessions.size(), System.nanoTime() - start);
+                    executed.put(batch);
+                    inFlight.release();
+                    next++;
+                }
+            }
+            executed.put(END);
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void emit(WritableByteChannel out){
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_SIZE);
+            List<Batch> batches = new ArrayList<Batch>(QUEUE_CAPACITY);
+            boolean ended = false;
+            while (!ended){
+                //Take every batch that is ready, and write once there is nothing
+                //more to gather
+                batches.add(executed.take());
+                executed.drainTo(batches);
+                long start = System.nanoTime();
+                int count = 0;
+                for (Batch batch : batches){
+                    if (batch == END){
+                        ended = true;
+                        break;
+                    }
+                    count += batch.sessions.size();
+                    if (buffer.remaining() < batch.results.length){
+                        write(buffer, out);
+                    }
+                    if (batch.results.length > buffer.capacity()){
+                        writeFully(ByteBuffer.wrap(batch.results), out);
+                    }
+                    else{
+                        buffer.put(batch.results);
+                    }
+                }
+                batches.clear();
+                write(buffer, out);
+                emit.record(count, System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private static void write(ByteBuffer buffer, WritableByteChannel out) throws IOException{
+        buffer.flip();
+        writeFully(buffer, out);
+        buffer.clear();
+    }
+
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel out) throws IOException{
+        while (buffer.hasRemaining()){
+            out.write(buffer);
+        }
+    }
+
+    private Thread start(String name, Runnable task){
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Records the first failure, and stops every stage
+     */
+    private synchronized void fail(Throwable e){
+        if (failure == null){
+            failure = e;
+        }
+        for (Thread thread : threads){
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return One line per stage: the sessions handled, the sessions per second
+     * since the start, the share of the stage's threads' time spent busy, and the
+     * depth of the queue in front of it
+     */
+    public String describe(){
+        long elapsed = Math.max(System.nanoTime() - startNanos, 1);
+        StringBuilder text = new StringBuilder();
+        for (Stage stage : new Stage[]{parse, verify, execute, emit}){
+            stage.describe(text, elapsed);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes describe every period, on a daemon thread, until the returned
+     * executor is shut down
+     * @param out Where the stage figures are written
+     * @param periodSeconds How often to write them
+     * @return The executor writing the figures
+     */
+    public ScheduledExecutorService startReporting(final PrintStream out, long periodSeconds){
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "atm-pipeline-report");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            public void run(){
+                out.print(describe());
+                out.flush();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        return timer;
+    }
+
+    /**
+     * A batch of sessions on its way through the stages
+     */
+    private static final class Batch {
+        final long sequence;
+        final List<Session> sessions;
+        boolean[] pinValid;
+        byte[] results;
+
+        Batch(long sequence, List<Session> sessions){
+            this.sequence = sequence;
+            this.sessions = sessions;
+        }
+    }
+
+    /**
+     * The figures for one stage
+     */
+    private static final class Stage {
+        final String name;
+        final BlockingQueue<Batch> queue;
+        final int threads;
+        final AtomicLong sessions = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+
+        Stage(String name, BlockingQueue<Batch> queue, int threads){
+            this.name = name;
+            this.queue = queue;
+            this.threads = threads;
+        }
+
+        void record(int count, long nanos){
+            sessions.addAndGet(count);
+            busyNanos.addAndGet(nanos);
+        }
+
+        void describe(StringBuilder text, long elapsed){
+            long count = sessions.get();
+            text.append("pipeline_").append(name).append(": sessions=").append(count)
+                .append(" per_second=").append((long) (count * 1e9 / elapsed))
+                .append(" busy=").append(busyNanos.get() * 100 / (elapsed * threads)).append('%');
+            if (queue != null){
+                text.append(" queue=").append(queue.size()).append('/').append(QUEUE_CAPACITY);
+            }
+            text.append('\n');
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams sessions from an input file one at a time, instead of reading the
+ * entire file into memory first. The file format is the one described in
+ * InputFileReader, and the same rules apply:
+ *  - Every line is trimmed
+ *  - Every line starting with '#' is ignored
+ *  - A blank line marks the end of a user session
+ *
+ * The atm balance at the top of the file is read when the reader is created,
+ * so it is available before the first session is parsed.
+ */
+public class SessionReader implements SessionSource {
+    private final BufferedReader reader;
+    private long atmBalance;
+
+    //The next line that has not yet been consumed, or null if none is buffered
+    private String pendingLine;
+    private boolean endOfFile;
+
+    public SessionReader(BufferedReader reader){
+        this.reader = reader;
+        readHeader();
+    }
+
+    public long getAtmBalance(){
+        return atmBalance;
+    }
+
+    /**
+     * The first information in a file is the atm balance, followed by a blank line
+     */
+    private void readHeader(){
+        String line = nextLine();
+
+        //Check to see if the file was empty
+        if (line == null){
+            throw new IllegalStateException("Error parsing input file");
+        }
+        atmBalance = Long.parseLong(line);
+
+        //Skip the blank line after the atm balance
+        nextLine();
+    }
+
+    /**
+     * Returns true if there is at least one more session in the file. Any blank
+     * lines between sessions are skipped
+     */
+    public boolean hasNext(){
+        String line = peekLine();
+        while (line != null && line.isEmpty()){
+            nextLine();
+            line = peekLine();
+        }
+        return line != null;
+    }
+
+    /**
+     * Parses the next session from the file
+     * @return A session instance configured with the data from the input file
+     */
+    public Session next(){
+        if (!hasNext()){
+            throw new NoSuchElementException();
+        }
+        Session session = new Session();
+
+        //Account number and PIN
+        String[] acctElements = nextLine().split("\\s");
+
+        //Make sure that we have:
+        //{account number} {expected pin} {entered pin}
+        assert acctElements.length == 3;
+
+        session.setAccountNumber(acctElements[0]);
+        session.setExpectedPin(acctElements[1]);
+        session.setEnteredPin(acctElements[2]);
+
+        //Available Funds
+        String[] fundsElements = nextLine().split("\\s");
+
+        //Make sure that we have:
+        //{account balance} {overdraft}
+        assert fundsElements.length == 2;
+
+        session.setBalance(Long.parseLong(fundsElements[0]));
+        session.setOverdraft(Long.parseLong(fundsElements[1]));
+
+        //A session can have multiple actions associated with it.
+        //Loop through all of these actions. Stop when we get to
+        //the end of the file, or a zero length line
+        String line;
+        while ((line = nextLine()) != null && !line.isEmpty()){
+            String[] wdrElements = line.split("\\s");
+
+            Action action = Action.createAction(wdrElements[0]);
+            if (action.isWithdrawal()){
+                action.setAmount(Long.parseLong(wdrElements[1]));
+            }
+            session.addAction(action);
+        }
+        return session;
+    }
+
+    public void remove(){
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() throws IOException{
+        reader.close();
+    }
+
+    /**
+     * Consumes and returns the next line that is not a comment
+     * @return the trimmed line, or null at the end of the file
+     */
+    private String nextLine(){
+        String line = peekLine();
+        pendingLine = null;
+        return line;
+    }
+
+    /**
+     * Returns the next line that is not a comment, without consuming it
+     * @return the trimmed line, or null at the end of the file
+     */
+    private String peekLine(){
+        if (pendingLine == null && !endOfFile){
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.startsWith("#")){
+                        break;
+                    }
+                }
+                pendingLine = line;
+                endOfFile = (line == null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return pendingLine;
+    }
+}
@@ -0,0 +1,16 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * A source of ATM sessions, returned one at a time. The atm balance from the
+ * top of the input is available before the first session is read.
+ */
+public interface SessionSource extends Iterator<Session>, Closeable {
+
+    /**
+     * @return The total cash held in the ATM at the start of the input
+     */
+    long getAtmBalance();
+}
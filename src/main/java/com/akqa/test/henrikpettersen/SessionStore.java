@@ -0,0 +1,240 @@
+package com.akqa.test.henrikpettersen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds a batch of sessions in columns of primitive arrays, instead of one Session
+ * object per session and one Action object per action:
+ *  - One entry per session in the account number, PIN, balance and overdraft
+ *    arrays
+ *  - One entry per action in the action type and amount arrays. The actions of
+ *    session i run from actionStart[i] up to actionStart[i + 1]
+ *
+ * Account numbers and PINs are stored as encoded longs. A string of up to 17
+ * digits is stored as its value and its length, so leading zeros are kept. Any
+ * other string is interned, and stored as a negative index into the string table.
+ * Two fields are equal exactly when their encoded values are equal.
+ *
+ * The ATM can run the sessions straight from the store, see Atm.performActions.
+ */
+public class SessionStore {
+
+    static final byte WITHDRAWAL = 'W';
+    static final byte BALANCE_ENQUIRY = 'B';
+
+    //The number of bits used for the length of an encoded numeric field
+    private static final int LENGTH_BITS = 5;
+    private static final int MAX_DIGITS = 17;
+
+    private int sessionCount;
+    private long[] accounts = new long[16];
+    private long[] expectedPins = new long[16];
+    private long[] enteredPins = new long[16];
+    private long[] balances = new long[16];
+    private long[] overdrafts = new long[16];
+    private int[] actionStart = new int[17];
+
+    private int actionCount;
+    private byte[] actionTypes = new byte[16];
+    private long[] amounts = new long[16];
+
+    private final List<String> strings = new ArrayList<String>();
+    private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+    /**
+     * Reads every session from the source into a new store
+     * @param sessions The sessions to store
+     * @return A store holding all the sessions
+     */
+    public static SessionStore load(SessionSource sessions){
+        SessionStore store = new SessionStore();
+        while (sessions.hasNext()){
+            store.add(sessions.next());
+        }
+        store.trim();
+        return store;
+    }
+
+    /**
+     * Adds a session, with all its actions, to the end of the store
+     * @param session One ATM operation by a single customer
+     */
+    public void add(Session session){
+        if (sessionCount == accounts.length){
+            int capacity = grow(accounts.length);
+            accounts = Arrays.copyOf(accounts, capacity);
+            expectedPins = Arrays.copyOf(expectedPins, capacity);
+            enteredPins = Arrays.copyOf(enteredPins, capacity);
+            balances = Arrays.copyOf(balances, capacity);
+            overdrafts = Arrays.copyOf(overdrafts, capacity);
+            actionStart = Arrays.copyOf(actionStart, capacity + 1);
+        }
+        int i = sessionCount;
+        accounts[i] = encode(session.getAccountNumber());
+        expectedPins[i] = encode(session.getExpectedPin());
+        enteredPins[i] = encode(session.getEnteredPin());
+        balances[i] = session.getBalance();
+        overdrafts[i] = session.getOverdraft();
+
+        for (Action action : session.getActions()){
+            if (actionCount == actionTypes.length){
+                int capacity = grow(actionTypes.length);
+                actionTypes = Arrays.copyOf(actionTypes, capacity);
+                amounts = Arrays.copyOf(amounts, capacity);
+            }
+            if (action.isWithdrawal()){
+                actionTypes[actionCount] = WITHDRAWAL;
+                amounts[actionCount] = action.getAmount();
+            }
+            else if (action.isBalanceEnquiry()){
+                actionTypes[actionCount] = BALANCE_ENQUIRY;
+            }
+            actionCount++;
+        }
+        sessionCount++;
+        actionStart[sessionCount] = actionCount;
+    }
+
+    /**
+     * Shrinks the arrays to fit, once all the sessions have been added
+     */
+    public void trim(){
+        accounts = Arrays.copyOf(accounts, sessionCount);
+        expectedPins = Arrays.copyOf(expectedPins, sessionCount);
+        enteredPins = Arrays.copyOf(enteredPins, sessionCount);
+        balances = Arrays.copyOf(balances, sessionCount);
+        overdrafts = Arrays.copyOf(overdrafts, sessionCount);
+        actionStart = Arrays.copyOf(actionStart, sessionCount + 1);
+        actionTypes = Arrays.copyOf(actionTypes, actionCount);
+        amounts = Arrays.copyOf(amounts, actionCount);
+    }
+
+    /**
+     * @return The number of sessions in the store
+     */
+    public int size(){
+        return sessionCount;
+    }
+
+    /**
+     * Creates a Session object for one of the stored sessions, with the current
+     * balance and overdraft
+     * @param index The session index
+     * @return A new Session instance
+     */
+    public Session getSession(int index){
+        Session session = new Session();
+        session.setAccountNumber(decode(accounts[index]));
+        session.setExpectedPin(decode(expectedPins[index]));
+        session.setEnteredPin(decode(enteredPins[index]));
+        session.setBalance(balances[index]);
+        session.setOverdraft(overdrafts[index]);
+        for (int a = actionStart[index]; a < actionStart[index + 1]; a++){
+            if (actionTypes[a] == WITHDRAWAL){
+                session.addAction(Action.createWithdrawal(amounts[a]));
+            }
+            else if (actionTypes[a] == BALANCE_ENQUIRY){
+                session.addAction(Action.createBalanceEnquiry());
+            }
+            else{
+                session.addAction(Action.createAction(null));
+            }
+        }
+        return session;
+    }
+
+    boolean isPinValid(int index){
+        return expectedPins[index] == enteredPins[index];
+    }
+
+    long getBalance(int index){
+        return balances[index];
+    }
+
+    long getOverdraft(int index){
+        return overdrafts[index];
+    }
+
+    void setBalance(int index, long balance){
+        balances[index] = balance;
+    }
+
+    void setOverdraft(int index, long overdraft){
+        overdrafts[index] = overdraft;
+    }
+
+    int getActionStart(int index){
+        return actionStart[index];
+    }
+
+    int getActionEnd(int index){
+        return actionStart[index + 1];
+    }
+
+    byte getActionType(int action){
+        return actionTypes[action];
+    }
+
+    long getAmount(int action){
+        return amounts[action];
+    }
+
+    /**
+     * Encodes an account number or PIN as a long
+     */
+    long encode(String value){
+        int length = value.length();
+        if (length > 0 && length <= MAX_DIGITS){
+            long digits = 0;
+            int i = 0;
+            while (i < length){
+                int digit = value.charAt(i) - '0';
+                if (digit < 0 || digit > 9){
+                    break;
+                }
+                digits = digits * 10 + digit;
+                i++;
+            }
+            if (i == length){
+                return (digits << LENGTH_BITS) | length;
+            }
+        }
+
+        //Not a plain number, so intern it
+        Integer id = stringIds.get(value);
+        if (id == null){
+            id = strings.size();
+            strings.add(value);
+            stringIds.put(value, id);
+        }
+        return -1L - id;
+    }
+
+    /**
+     * Decodes an account number or PIN encoded by encode
+     */
+    String decode(long encoded){
+        if (encoded < 0){
+            return strings.get((int) (-1L - encoded));
+        }
+        int length = (int) (encoded & ((1 << LENGTH_BITS) - 1));
+        String digits = Long.toString(encoded >>> LENGTH_BITS);
+        StringBuilder value = new StringBuilder(length);
+        for (int i = digits.length(); i < length; i++){
+            value.append('0');
+        }
+        return value.append(digits).toString();
+    }
+
+    private static int grow(int capacity){
+        int grown = capacity + (capacity >> 1);
+        if (grown < 0 || grown > Integer.MAX_VALUE - 8){
+            throw new IllegalStateException("Session store is full");
+        }
+        return grown;
+    }
+}
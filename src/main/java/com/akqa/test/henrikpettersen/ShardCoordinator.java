@@ -0,0 +1,525 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs one replay across several worker processes on the same host. Sessions are
+ * split between the workers by a hash of their account number, so each account
+ * only ever lives in one worker, and each worker only holds its share of the
+ * accounts in its ledger.
+ *
+ * Each worker's ledger file is named after its shard and the number of shards,
+ * as FILE.{shard}-of-{shards}. Which shard an account lives in depends on the
+ * number of shards, so the coordinator refuses to start if FILE, or the ledger
+ * file of any shard, was written with a different number of shards, rather
+ * than lose track of the accounts in them.
+ *
+ * The coordinator owns the ATM cash. Workers take cash from it in blocks, and
+ * only ask for more once their block runs out, so most withdrawals never leave
+ * the worker. A block is CASH_BLOCK, or a share of the cash left if that is
+ * smaller, so one worker cannot take all of it, but never less than the session
+ * asking needs. When the coordinator is asked for more than it holds, it first
+ * recalls the cash the other workers hold, and only then gives what there is,
+ * so a withdrawal is only turned away once the cash left across every worker
+ * does not cover it. Whatever a worker has left is handed back when it
+ * finishes. Sessions for different shards still run at the same time, so once
+ * the cash across the fleet really runs out, which of them are turned away
+ * depends on the order they ran in.
+ *
+ * The workers are started as child JVMs running ShardWorker, and connect back
+ * over local sockets: one connection carries sessions in the binary format out
+ * and results back, the other carries cash requests. The results are merged
+ * back into input order.
+ */
+public class ShardCoordinator {
+
+    //The most cash a worker is given at a time, unless a session needs more
+    static final long CASH_BLOCK = 100000;
+
+    //Connection kinds, sent by a worker when it connects
+    static final int SESSIONS = 0;
+    static final int CASH = 1;
+
+    //Cash messages, each a kind followed by an amount. From a worker: asking
+    //for the amount more than it holds, and handing cash back, either when
+    //recalled or when it finishes. To a worker: the cash given for a request,
+    //and asking it to hand back what it holds
+    static final int REQUEST = 0;
+    static final int RETURN = 1;
+    static final int GRANT = 0;
+    static final int RECALL = 1;
+
+    //The number of sessions routed at a time
+    private static final int ROUTE_BLOCK = 4096;
+
+    //The number of sessions that may be queued for each worker
+    private static final int QUEUE_CAPACITY = 4096;
+
+    //Marks the end of the sessions
+    private static final Session END = new Session();
+    private static final int[] END_ROUTES = new int[0];
+
+    private final int shards;
+    private final String ledgerPath;
+    private final AtomicLong cash = new AtomicLong();
+    private volatile Throwable failure;
+
+    //Guarded by cashLock: the cash connection to each worker, the cash each
+    //worker has been given and not handed back, which workers have finished,
+    //the workers asked to hand back their cash that have not yet, and the
+    //requests waiting for them, as {shard, amount}
+    private final Object cashLock = new Object();
+    private DataOutputStream[] cashOut;
+    private long[] held;
+    private boolean[] finished;
+    private final Set<Integer> recalling = new HashSet<Integer>();
+    private final Deque<long[]> waiting = new ArrayDeque<long[]>();
+
+    /**
+     * @param shards The number of worker processes
+     * @param ledgerPath If not null, each worker keeps its accounts in a ledger
+     * saved to this path with its shard number added
+     */
+    public ShardCoordinator(int shards, String ledgerPath){
+        this.shards = shards;
+        this.ledgerPath = ledgerPath;
+    }
+
+    /**
+     * @param accountNumber The account number from a session
+     * @param shards The number of shards
+     * @return The shard that runs every session for the account
+     */
+    static int shardFor(String accountNumber, int shards){
+        return (int) ((AccountLedger.hash(accountNumber.hashCode()) >>> 1) % shards);
+    }
+
+    /**
+     * @param ledgerPath The ledger path given to the coordinator
+     * @param shard The shard number
+     * @param shards The number of shards
+     * @return The ledger file of the shard
+     */
+    static String shardLedgerPath(String ledgerPath, int shard, int shards){
+        return ledgerPath + "." + shard + "-of-" + shards;
+    }
+
+    /**
+     * Checks that the ledger has not been kept with a different number of shards,
+     * or without shards
+     * @param ledgerPath The ledger path given to the coordinator
+     * @param shards The number of shards
+     * @throws IOException If the ledger is held in files for a different number
+     * of shards, or the directory holding it could not be listed
+     */
+    static void checkShardLedgers(String ledgerPath, int shards) throws IOException{
+        Path path = Paths.get(ledgerPath).toAbsolutePath();
+        if (Files.exists(path)){
+            throw new IOException("Ledger " + ledgerPath + " was kept without shards");
+        }
+        Path directory = path.getParent();
+        if (!Files.isDirectory(directory)){
+            return;
+        }
+        //Shard ledgers from before the number of shards was in the name count
+        //as a different number of shards, as it cannot be told
+        Pattern shardFile = Pattern.compile(Pattern.quote(path.getFileName() + ".") + "\\d+(-of-(\\d+))?");
+        DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+        try {
+            for (Path entry : entries){
+                Matcher matcher = shardFile.matcher(entry.getFileName().toString());
+                if (matcher.matches() && (matcher.group(2) == null || Integer.parseInt(matcher.group(2)) != shards)){
+                    throw new IOException("Ledger " + ledgerPath + " was kept with a different number of shards: " 
+                            + entry.getFileName());
+                }
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    /**
+     * @return The ATM cash not handed out to a worker
+     */
+    public long getCash(){
+        return cash.get();
+    }
+
+    /**
+     * Starts the workers, runs every session from the source, and writes the
+     * results in input order
+     * @param sessions The sessions to run
+     * @param out Where the results are written
+     * @return The ATM cash left once every worker has finished
+     * @throws IOException If the workers could not be started or reached, or
+     * the ledger was kept with a different number of shards
+     */
+    public long run(SessionSource sessions, OutputStream out) throws IOException{
+        if (ledgerPath != null){
+            checkShardLedgers(ledgerPath, shards);
+        }
+        cash.set(sessions.getAtmBalance());
+        cashOut = new DataOutputStream[shards];
+        held = new long[shards];
+        finished = new boolean[shards];
+        ServerSocket server = new ServerSocket(0, shards * 2, InetAddress.getLoopbackAddress());
+        List<Process> processes = new ArrayList<Process>();
+        List<Thread> threads = new ArrayList<Thread>();
+        Socket[] sessionSockets = new Socket[shards];
+        try {
+            for (int i = 0; i < shards; i++){
+                processes.add(startWorker(server.getLocalPort(), i));
+            }
+
+            //Each worker makes one connection of each kind
+            server.setSoTimeout(60000);
+            for (int i = 0; i < shards * 2; i++){
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                final int shard = in.readInt();
+                if (in.readInt() == SESSIONS){
+                    sessionSockets[shard] = socket;
+                }
+                else{
+                    synchronized (cashLock) {
+                        cashOut[shard] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64));
+                    }
+                    threads.add(start("atm-shard-cash-" + shard, new Runnable() {
+                        public void run(){
+                            serveCash(socket, shard);
+                        }
+                    }));
+                }
+            }
+
+            //One thread per worker sends it its sessions
+            final BlockingQueue<int[]> routes = new ArrayBlockingQueue<int[]>(QUEUE_CAPACITY / ROUTE_BLOCK + 2);
+            List<BlockingQueue<Session>> queues = new ArrayList<BlockingQueue<Session>>();
+            for (int i = 0; i < shards; i++){
+                final BlockingQueue<Session> queue = new ArrayBlockingQueue<Session>(QUEUE_CAPACITY);
+                final Socket socket = sessionSockets[i];
+                queues.add(queue);
+                threads.add(start("atm-shard-send-" + i, new Runnable() {
+                    public void run(){
+                        send(queue, socket);
+                    }
+                }));
+            }
+
+            //And one thread merges the results back into input order
+            final Socket[] resultSockets = sessionSockets;
+            final OutputStream output = out;
+            Thread merger = start("atm-shard-merge", new Runnable() {
+                public void run(){
+                    merge(routes, resultSockets, output);
+                }
+            });
+            threads.add(merger);
+
+            route(sessions, routes, queues);
+            for (Thread thread : threads){
+                while (thread.isAlive() && failure == null){
+                    thread.join(100);
+                }
+            }
+            for (Process process : processes){
+                if (failure == null && process.waitFor() != 0){
+                    throw new IllegalStateException("Shard worker failed with exit code " + process.exitValue());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running shards", e);
+        } finally {
+            server.close();
+            for (Socket socket : sessionSockets){
+                if (socket != null){
+                    socket.close();
+                }
+            }
+            for (Process process : processes){
+                process.destroy();
+            }
+        }
+        if (failure != null){
+            throw new IllegalStateException("Shard failed", failure);
+        }
+        return cash.get();
+    }
+
+    /**
+     * Starts a worker JVM with the same classpath as this one
+     */
+    private Process startWorker(int port, int shard) throws IOException{
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardWorker.class.getName());
+        command.add(Integer.toString(port));
+        command.add(Integer.toString(shard));
+        if (ledgerPath != null){
+            command.add(shardLedgerPath(ledgerPath, shard, shards));
+        }
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+    /**
+     * Reads the sessions on the calling thread, and hands each one to its worker.
+     * The routes of a block of sessions are handed to the merger before any of
+     * the sessions are queued, so the merger never waits on a worker for a
+     * session that is stuck behind a full queue for another worker
+     */
+    private void route(SessionSource sessions, BlockingQueue<int[]> routes, List<BlockingQueue<Session>> queues)
+            throws InterruptedException{
+        Session[] block = new Session[ROUTE_BLOCK];
+        try {
+            while (failure == null){
+                int count = 0;
+                while (count < ROUTE_BLOCK && sessions.hasNext()){
+                    block[count++] = sessions.next();
+                }
+                if (count == 0){
+                    break;
+                }
+                int[] shardsOfBlock = new int[count];
+                for (int i = 0; i < count; i++){
+                    shardsOfBlock[i] = shardFor(block[i].getAccountNumber(), shards);
+                }
+                put(routes, shardsOfBlock);
+                for (int i = 0; i < count; i++){
+                    put(queues.get(shardsOfBlock[i]), block[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        } finally {
+            put(routes, END_ROUTES);
+            for (BlockingQueue<Session> queue : queues){
+                put(queue, END);
+            }
+        }
+    }
+
+    /**
+     * Waits for room in a queue, unless a thread has failed, in which case the
+     * thread taking from the queue may have stopped
+     */
+    private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException{
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)){
+            if (failure != null){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends queued sessions to a worker, writing them out whenever the queue is empty
+     */
+    private void send(BlockingQueue<Session> queue, Socket socket){
+        try {
+            BinarySessionWriter writer = new BinarySessionWriter(socket.getOutputStream(), 0);
+            Session session;
+            while (true){
+                session = queue.poll();
+                if (session == null){
+                    writer.flush();
+                    session = queue.take();
+                }
+                if (session == END){
+                    break;
+                }
+                writer.write(session);
+            }
+            writer.flush();
+            socket.shutdownOutput();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Copies each session's results from its worker, in input order. Each
+     * worker sends the results of a session as their length followed by the
+     * formatted results
+     */
+    private void merge(BlockingQueue<int[]> routes, Socket[] sockets, OutputStream out){
+        try {
+            DataInputStream[] results = new DataInputStream[sockets.length];
+            for (int i = 0; i < sockets.length; i++){
+                results[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream(), 1 << 16));
+            }
+            OutputStream merged = new BufferedOutputStream(out, 1 << 16);
+            byte[] buffer = new byte[1024];
+            int[] block;
+            while ((block = routes.take()) != END_ROUTES){
+                for (int shard : block){
+                    int length = results[shard].readInt();
+                    if (buffer.length < length){
+                        buffer = new byte[Math.max(length, buffer.length * 2)];
+                    }
+                    results[shard].readFully(buffer, 0, length);
+                    merged.write(buffer, 0, length);
+                }
+            }
+            merged.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (EOFException e) {
+            fail(new IOException("A shard worker stopped before sending all its results", e));
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Reads a worker's cash messages until it disconnects
+     */
+    private void serveCash(Socket socket, int shard){
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true){
+                int kind;
+                long amount;
+                try {
+                    kind = in.readInt();
+                    amount = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (kind == REQUEST){
+                    requestCash(shard, amount);
+                }
+                else{
+                    returnCash(shard, amount);
+                }
+            }
+            synchronized (cashLock) {
+                finished[shard] = true;
+                recalling.remove(shard);
+                grantWaiting();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Gives a worker cash, straight away if the coordinator holds enough and no
+     * recall is under way, otherwise once the other workers have handed back
+     * the cash they hold
+     * @param shard The worker asking
+     * @param amount The amount more than it holds its next session needs
+     */
+    private void requestCash(int shard, long amount) throws IOException{
+        synchronized (cashLock) {
+            if (waiting.isEmpty() && cash.get() >= amount){
+                grant(shard, amount);
+                return;
+            }
+            waiting.add(new long[]{shard, amount});
+            for (int i = 0; i < shards; i++){
+                if (i != shard && !finished[i] && held[i] > 0 && recalling.add(i)){
+                    send(i, RECALL, 0);
+                }
+            }
+            grantWaiting();
+        }
+    }
+
+    /**
+     * Takes back cash from a worker, which answers a recall
+     */
+    private void returnCash(int shard, long amount) throws IOException{
+        synchronized (cashLock) {
+            cash.addAndGet(amount);
+            held[shard] -= amount;
+            recalling.remove(shard);
+            grantWaiting();
+        }
+    }
+
+    /**
+     * Answers the waiting requests in the order they were made, once every
+     * worker recalled has handed back its cash. Called holding cashLock
+     */
+    private void grantWaiting() throws IOException{
+        if (!recalling.isEmpty()){
+            return;
+        }
+        long[] request;
+        while ((request = waiting.poll()) != null){
+            grant((int) request[0], request[1]);
+        }
+    }
+
+    /**
+     * Gives a worker a block of cash: CASH_BLOCK, or its share of the cash left
+     * if that is smaller, but no less than it asked for, and no more than the
+     * cash left. Called holding cashLock
+     */
+    private void grant(int shard, long amount) throws IOException{
+        long left = cash.get();
+        long given = Math.min(left, Math.max(amount, Math.min(CASH_BLOCK, left / shards)));
+        cash.addAndGet(-given);
+        held[shard] += given;
+        send(shard, GRANT, given);
+    }
+
+    private void send(int shard, int kind, long amount) throws IOException{
+        cashOut[shard].writeInt(kind);
+        cashOut[shard].writeLong(amount);
+        cashOut[shard].flush();
+    }
+
+    private Thread start(String name, Runnable task){
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void fail(Throwable e){
+        if (failure == null){
+            failure = e;
+        }
+    }
+}
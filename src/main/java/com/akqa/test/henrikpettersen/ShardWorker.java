@@ -0,0 +1,242 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One worker process of a sharded replay, see ShardCoordinator. Runs the
+ * sessions it is sent through its own ATM, taking cash from the coordinator in
+ * blocks, and sends back the results of each session.
+ *
+ * A thread of its own reads the coordinator's cash messages, so the worker can
+ * hand back its cash when recalled, even while it waits for sessions. A recall
+ * that comes while a session is running is answered once the session ends, so
+ * a session never has its cash taken away part way through.
+ *
+ * Started by the coordinator with:
+ *  java com.akqa.test.henrikpettersen.ShardWorker {port} {shard} [ledger file]
+ */
+public class ShardWorker {
+
+    //Marks the cash connection closing before a request was answered
+    private static final long NO_GRANT = -1;
+
+    private final Atm atm = new Atm();
+    private final DataInputStream cashIn;
+    private final DataOutputStream cashOut;
+
+    //Held while the ATM cash changes or a session runs
+    private final ReentrantLock cashLock = new ReentrantLock();
+    private final BlockingQueue<Long> grants = new LinkedBlockingQueue<Long>();
+    private volatile boolean recalled;
+
+    ShardWorker(Socket cashSocket) throws IOException{
+        this.cashIn = new DataInputStream(new BufferedInputStream(cashSocket.getInputStream()));
+        this.cashOut = new DataOutputStream(new BufferedOutputStream(cashSocket.getOutputStream(), 64));
+        Thread listener = new Thread(new Runnable() {
+            public void run(){
+                readCashMessages();
+            }
+        }, "atm-shard-worker-cash");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    public static void main(String[] args) throws IOException{
+        int port = Integer.parseInt(args[0]);
+        int shard = Integer.parseInt(args[1]);
+        Path ledgerPath = (args.length > 2) ? Paths.get(args[2]) : null;
+
+        Socket sessionSocket = connect(port, shard, ShardCoordinator.SESSIONS);
+        Socket cashSocket = connect(port, shard, ShardCoordinator.CASH);
+        try {
+            ShardWorker worker = new ShardWorker(cashSocket);
+            if (ledgerPath != null){
+                worker.atm.setLedger(Files.exists(ledgerPath) ? AccountLedger.load(ledgerPath) : new AccountLedger());
+            }
+            worker.run(sessionSocket);
+            if (ledgerPath != null){
+                worker.atm.getLedger().save(ledgerPath);
+            }
+        } finally {
+            sessionSocket.close();
+            cashSocket.close();
+        }
+    }
+
+    private static Socket connect(int port, int shard, int kind) throws IOException{
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(shard);
+        out.writeInt(kind);
+        out.flush();
+        return socket;
+    }
+
+    /**
+     * Runs every session sent by the coordinator, and hands back the cash left
+     */
+    void run(Socket socket) throws IOException{
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+        //Send the results so far whenever there are no more sessions to read
+        //yet, as the coordinator may be waiting for them
+        InputStream in = new FilterInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16)) {
+            public int read() throws IOException{
+                flushIfIdle();
+                return super.read();
+            }
+            public int read(byte[] b, int off, int len) throws IOException{
+                flushIfIdle();
+                return super.read(b, off, len);
+            }
+            private void flushIfIdle() throws IOException{
+                if (available() == 0){
+                    out.flush();
+                }
+            }
+        };
+
+        BinarySessionReader sessions = new BinarySessionReader(in);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        ResultSink results = new BufferedResultSink(Channels.newChannel(buffer), 1024);
+        while (sessions.hasNext()){
+            Session session = sessions.next();
+            reserveCash(session);
+            cashLock.lock();
+            try {
+                atm.performActions(session, results);
+                if (recalled){
+                    handBack();
+                }
+            } finally {
+                cashLock.unlock();
+            }
+            results.flush();
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            buffer.reset();
+        }
+        out.flush();
+
+        //Hand back whatever cash is left
+        cashLock.lock();
+        try {
+            handBack();
+        } finally {
+            cashLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the coordinator's cash messages: grants are handed to the session
+     * thread, and recalls are answered straight away unless a session is running
+     */
+    private void readCashMessages(){
+        try {
+            while (true){
+                int kind = cashIn.readInt();
+                long amount = cashIn.readLong();
+                if (kind == ShardCoordinator.GRANT){
+                    grants.add(amount);
+                }
+                else{
+                    recalled = true;
+                    if (cashLock.tryLock()){
+                        try {
+                            if (recalled){
+                                handBack();
+                            }
+                        } finally {
+                            cashLock.unlock();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            //The coordinator has closed the connection
+        } finally {
+            grants.add(NO_GRANT);
+        }
+    }
+
+    /**
+     * Hands every bit of cash the worker holds back to the coordinator, which
+     * answers a recall. Called holding cashLock
+     */
+    private void handBack() throws IOException{
+        long amount = atm.getAtmBalance();
+        atm.setAtmBalance(0);
+        recalled = false;
+        send(ShardCoordinator.RETURN, amount);
+    }
+
+    private void send(int kind, long amount) throws IOException{
+        synchronized (cashOut) {
+            cashOut.writeInt(kind);
+            cashOut.writeLong(amount);
+            cashOut.flush();
+        }
+    }
+
+    /**
+     * Makes sure the worker holds enough cash for every withdrawal in the session,
+     * asking the coordinator for another block if it does not. If the ATM is
+     * running low, the worker gets what is left, and some withdrawals are turned
+     * away as they would be by a single ATM. The cash held may be recalled while
+     * the worker waits, in which case it asks again
+     */
+    private void reserveCash(Session session) throws IOException{
+        long needed = 0;
+        List<Action> actions = session.getActions();
+        for (int i = 0; i < actions.size(); i++){
+            if (actions.get(i).isWithdrawal()){
+                needed += actions.get(i).getAmount();
+            }
+        }
+        while (true){
+            long held = atm.getAtmBalance();
+            if (needed <= held){
+                return;
+            }
+            send(ShardCoordinator.REQUEST, needed - held);
+            long given;
+            try {
+                given = grants.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for cash", e);
+            }
+            if (given == NO_GRANT){
+                throw new IOException("The coordinator closed the cash connection");
+            }
+            cashLock.lock();
+            try {
+                atm.setAtmBalance(atm.getAtmBalance() + given);
+            } finally {
+                cashLock.unlock();
+            }
+            //Less than asked for means the ATM is out of cash
+            if (given < needed - held){
+                return;
+            }
+        }
+    }
+}
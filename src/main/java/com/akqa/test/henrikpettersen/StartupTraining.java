@@ -0,0 +1,41 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The training run for the class data sharing archive built by the cds profile,
+ * see pom.xml. The archive holds the classes loaded by this run, already parsed
+ * and verified, so a JVM started with the archive skips that work for them.
+ *
+ * Runs the bundled input file through the ATM twice, the way short runs use it:
+ * once as the bundled input, and once copied to a small file on the filesystem.
+ * The results are written to a temporary file rather than standard output.
+ *
+ * Run with:
+ *  java -XX:ArchiveClassesAtExit=henrikpettersen-1.0.jsa
+ *      -cp henrikpettersen-1.0.jar com.akqa.test.henrikpettersen.StartupTraining
+ */
+public class StartupTraining {
+
+    public static void main(String[] args) throws IOException{
+        Path input = Files.createTempFile("atm-training", ".txt");
+        Path output = Files.createTempFile("atm-training", ".out");
+        try {
+            InputStream is = StartupTraining.class.getResourceAsStream("input.txt");
+            try {
+                Files.copy(is, input, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                is.close();
+            }
+            Atm.main(new String[]{"--output", output.toString()});
+            Atm.main(new String[]{"--output", output.toString(), input.toString()});
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(output);
+        }
+    }
+}
@@ -0,0 +1,742 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only history of every action run by the ATM, and every pin check
+ * that failed, so that what happened to an account can be looked up later
+ * without running the sessions again.
+ *
+ * The history directory holds segments of a fixed number of records:
+ *  - history-{first sequence}.dat: the records, each RECORD_SIZE bytes: the
+ *    account number, the time in milliseconds, the amount and the balance after
+ *    the action (longs), the kind of action and the ErrorCode ordinal plus one,
+ *    or 0 (bytes), then padding. The file is created at its full size and
+ *    memory mapped, and records are written straight into the mapping, so the
+ *    history takes almost no heap however large it gets
+ *  - history-{first sequence}.idx: written once a segment is full, which seals
+ *    it. It holds the number of records and the earliest and latest times in the
+ *    segment, then the records sorted by account number, then the records for
+ *    each ErrorCode. The index is memory mapped too
+ *
+ * A full segment is handed to a background thread to be sealed, and a new
+ * segment is started straight away, so recording never waits for an index to
+ * be sorted and written. If the history stops before a full segment is sealed,
+ * it is sealed when the history is next opened.
+ *
+ * Looking up an account is a binary search of each sealed segment's index, and
+ * looking up an ErrorCode reads its list of records. Segments outside the times
+ * asked for are skipped without being read. Only the segment still being
+ * written, and any full segments still being sealed, are scanned record by
+ * record.
+ *
+ * The history is not forced to disk on every record, as the journal is, so a
+ * crash may lose the records not yet written back by the operating system.
+ */
+public class TransactionHistory implements Closeable {
+
+    static final int RECORD_SIZE = 40;
+    static final int RECORDS_PER_SEGMENT = 1 << 20;
+
+    /**
+     * The kinds of record, as held in the record
+     */
+    public static final byte WITHDRAWAL = 'W';
+    public static final byte BALANCE_ENQUIRY = 'B';
+    public static final byte PIN_CHECK = 'P';
+
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String DATA_SUFFIX = ".dat";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_MAGIC = 0x41544d48; //"ATMH"
+    private static final int INDEX_HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4;
+    private static final ErrorCode[] ERROR_CODES = ErrorCode.values();
+
+    private final Path directory;
+    private final int recordsPerSegment;
+    private final Clock clock;
+
+    //Sealed segments, oldest first. Read without locking, as they never change
+    private final List<Segment> sealed = new CopyOnWriteArrayList<Segment>();
+
+    //Guarded by this. Full segments waiting to be sealed are oldest first
+    private Segment active;
+    private final List<Segment> sealing = new ArrayList<Segment>();
+    private boolean closed;
+
+    //Seals full segments, one at a time, in the order they filled up
+    private final ExecutorService sealer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r){
+            Thread thread = new Thread(r, "atm-history-sealer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile IOException failure;
+
+    /**
+     * Opens the history in a directory, carrying on from any records already
+     * in it
+     * @param directory The history directory, created if it does not exist
+     * @throws IOException If the history could not be opened
+     */
+    public TransactionHistory(Path directory) throws IOException{
+        this(directory, RECORDS_PER_SEGMENT, Clock.systemUTC());
+    }
+
+    /**
+     * @param directory The history directory, created if it does not exist
+     * @param recordsPerSegment The number of records in each segment
+     * @param clock The time each record is made at
+     * @throws IOException If the history could not be opened
+     */
+    TransactionHistory(Path directory, int recordsPerSegment, Clock clock) throws IOException{
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        this.clock = clock;
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<Path>();
+        DirectoryStream<Path> entries = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + DATA_SUFFIX);
+        try {
+            for (Path entry : entries){
+                files.add(entry);
+            }
+        } finally {
+            entries.close();
+        }
+        Collections.sort(files);
+        long nextSequence = 0;
+        for (Path file : files){
+            Segment segment = new Segment(file, sequenceOf(file));
+            if (Files.exists(segment.indexPath)){
+                segment.openSealed();
+                sealed.add(segment);
+            }
+            else{
+                //A full segment that was still being sealed when the history stopped
+                if (active != null){
+                    sealed.add(seal(active));
+                }
+                segment.openActive(recordsPerSegment);
+                active = segment;
+            }
+            nextSequence = segment.firstSequence + segment.count;
+        }
+        if (active == null){
+            active = newSegment(nextSequence);
+        }
+    }
+
+    /**
+     * Looks up records in a history directory, and prints them one per line
+     * 
+     * Run with:
+     *  java com.akqa.test.henrikpettersen.TransactionHistory {history directory}
+     *      (--account N | --error CODE) [--from MILLIS] [--to MILLIS] [--limit N]
+     */
+    public static void main(String[] args) throws IOException{
+        String account = null;
+        ErrorCode errorCode = null;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        int limit = Integer.MAX_VALUE;
+        Path directory = null;
+        for (int i = 0; i < args.length; i++){
+            String arg = args[i];
+            if (arg.equals("--account")){
+                account = args[++i];
+            }
+            else if (arg.equals("--error")){
+                errorCode = ErrorCode.valueOf(args[++i]);
+            }
+            else if (arg.equals("--from")){
+                from = Long.parseLong(args[++i]);
+            }
+            else if (arg.equals("--to")){
+                to = Long.parseLong(args[++i]);
+            }
+            else if (arg.equals("--limit")){
+                limit = Integer.parseInt(args[++i]);
+            }
+            else if (arg.startsWith("--")){
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else{
+                directory = Paths.get(arg);
+            }
+        }
+        if (directory == null || (account == null) == (errorCode == null)){
+            throw new IllegalArgumentException("Give a history directory, and either --account or --error");
+        }
+        TransactionHistory history = new TransactionHistory(directory);
+        try {
+            List<Entry> entries = (account != null) ? history.forAccount(account, from, to)
+                    : history.withError(errorCode, from, to, limit);
+            for (int i = 0; i < entries.size() && i < limit; i++){
+                System.out.println(entries.get(i));
+            }
+        } finally {
+            history.close();
+        }
+    }
+
+    /**
+     * Records an action run by the ATM
+     * @param session The session the action was run for
+     * @param action The action
+     * @param outcome The outcome of the action
+     */
+    public void record(Session session, Action action, long outcome){
+        byte kind = action.isWithdrawal() ? WITHDRAWAL : BALANCE_ENQUIRY;
+        long amount = action.isWithdrawal() ? action.getAmount() : 0;
+        long balance = Outcome.isError(outcome) ? session.getBalance() : outcome;
+        ErrorCode errorCode = Outcome.isError(outcome) ? Outcome.errorCode(outcome) : null;
+        append(AccountLedger.accountKey(session.getAccountNumber()), kind, amount, balance, errorCode);
+    }
+
+    /**
+     * Records a session turned away at the pin check, as ACCOUNT_ERR
+     * @param session The session
+     */
+    public void recordPinFailure(Session session){
+        append(AccountLedger.accountKey(session.getAccountNumber()), PIN_CHECK, 0, session.getBalance(), ErrorCode.ACCOUNT_ERR);
+    }
+
+    private synchronized void append(long account, byte kind, long amount, long balance, ErrorCode errorCode){
+        if (closed){
+            throw new IllegalStateException("History is closed");
+        }
+        if (failure != null){
+            throw new UncheckedIOException(failure);
+        }
+        try {
+            if (active.count == recordsPerSegment){
+                startSealing();
+            }
+            active.append(account, clock.millis(), amount, balance, kind, errorCode);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param accountNumber The account number
+     * @return Every record for the account, oldest first
+     */
+    public List<Entry> forAccount(String accountNumber){
+        return forAccount(accountNumber, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param accountNumber The account number
+     * @param fromMillis The earliest time to return, inclusive
+     * @param toMillis The latest time to return, exclusive
+     * @return The records for the account made in that time, oldest first
+     */
+    public List<Entry> forAccount(String accountNumber, long fromMillis, long toMillis){
+        long account = AccountLedger.accountKey(accountNumber);
+        List<Segment> segments;
+        List<Entry> recent = new ArrayList<Entry>();
+        synchronized (this){
+            //The sealed segments are taken together with the unsealed ones, so
+            //no segment sealed in the meantime is missed
+            segments = new ArrayList<Segment>(sealed);
+            for (Segment segment : unsealed()){
+                for (int i = 0; i < segment.count; i++){
+                    if (segment.account(i) == account && segment.isBetween(i, fromMillis, toMillis)){
+                        recent.add(segment.entry(i));
+                    }
+                }
+            }
+        }
+        List<Entry> found = new ArrayList<Entry>();
+        for (Segment segment : segments){
+            if (segment.overlaps(fromMillis, toMillis)){
+                segment.findAccount(account, fromMillis, toMillis, found);
+            }
+        }
+        found.addAll(recent);
+        return found;
+    }
+
+    /**
+     * @param errorCode The error to look for
+     * @param fromMillis The earliest time to return, inclusive
+     * @param toMillis The latest time to return, exclusive
+     * @param limit The most records to return
+     * @return The records with the error made in that time, oldest first
+     */
+    public List<Entry> withError(ErrorCode errorCode, long fromMillis, long toMillis, int limit){
+        List<Segment> segments;
+        List<Entry> recent = new ArrayList<Entry>();
+        synchronized (this){
+            segments = new ArrayList<Segment>(sealed);
+            for (Segment segment : unsealed()){
+                for (int i = 0; i < segment.count && recent.size() < limit; i++){
+                    if (segment.errorCode(i) == errorCode && segment.isBetween(i, fromMillis, toMillis)){
+                        recent.add(segment.entry(i));
+                    }
+                }
+            }
+        }
+        List<Entry> found = new ArrayList<Entry>();
+        for (Segment segment : segments){
+            if (found.size() < limit && segment.overlaps(fromMillis, toMillis)){
+                segment.findError(errorCode, fromMillis, toMillis, limit, found);
+            }
+        }
+        for (int i = 0; i < recent.size() && found.size() < limit; i++){
+            found.add(recent.get(i));
+        }
+        return found;
+    }
+
+    /**
+     * @param errorCode An error
+     * @return The number of records with the error
+     */
+    public long countErrors(ErrorCode errorCode){
+        List<Segment> segments;
+        long count = 0;
+        synchronized (this){
+            segments = new ArrayList<Segment>(sealed);
+            for (Segment segment : unsealed()){
+                for (int i = 0; i < segment.count; i++){
+                    if (segment.errorCode(i) == errorCode){
+                        count++;
+                    }
+                }
+            }
+        }
+        for (Segment segment : segments){
+            count += segment.errorCounts[errorCode.ordinal()];
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of records in the history
+     */
+    public synchronized long size(){
+        return active.firstSequence + active.count;
+    }
+
+    /**
+     * Waits for the full segments to be sealed, writes out the records not yet
+     * written back to disk, and stops recording. The segment being written is
+     * left unsealed, and carried on with when the history is opened again
+     */
+    public void close() throws IOException{
+        synchronized (this){
+            if (closed){
+                return;
+            }
+            closed = true;
+        }
+        sealer.shutdown();
+        try {
+            sealer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted sealing the history");
+        }
+        synchronized (this){
+            active.records.force();
+            active.channel.close();
+        }
+        if (failure != null){
+            throw failure;
+        }
+    }
+
+    /**
+     * @return The segments scanned record by record: those still being sealed,
+     * then the active one. Called holding the lock
+     */
+    private List<Segment> unsealed(){
+        List<Segment> segments = new ArrayList<Segment>(sealing);
+        segments.add(active);
+        return segments;
+    }
+
+    /**
+     * Hands the full active segment to the sealer, and starts a new one
+     */
+    private void startSealing() throws IOException{
+        final Segment full = active;
+        sealing.add(full);
+        active = newSegment(full.firstSequence + full.count);
+        sealer.execute(new Runnable() {
+            public void run(){
+                try {
+                    //The records of a full segment never change, so the index is
+                    //written without holding the lock
+                    Segment segment = seal(full);
+                    synchronized (TransactionHistory.this) {
+                        sealing.remove(full);
+                        sealed.add(segment);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the index of a full segment, and closes it
+     * @param full The full segment
+     * @return The segment opened again, read only, with its index
+     */
+    private static Segment seal(Segment full) throws IOException{
+        full.writeIndex();
+        full.records.force();
+        full.channel.close();
+        Segment segment = new Segment(full.dataPath, full.firstSequence);
+        segment.openSealed();
+        return segment;
+    }
+
+    private Segment newSegment(long firstSequence) throws IOException{
+        Segment segment = new Segment(directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, DATA_SUFFIX)), firstSequence);
+        segment.openActive(recordsPerSegment);
+        return segment;
+    }
+
+    private static long sequenceOf(Path file){
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - DATA_SUFFIX.length()));
+    }
+
+    /**
+     * One record of the history
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final long timeMillis;
+        private final long account;
+        private final byte kind;
+        private final long amount;
+        private final long balance;
+        private final ErrorCode errorCode;
+
+        Entry(long sequence, long timeMillis, long account, byte kind, long amount, long balance, ErrorCode errorCode){
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.account = account;
+            this.kind = kind;
+            this.amount = amount;
+            this.balance = balance;
+            this.errorCode = errorCode;
+        }
+
+        /**
+         * @return The position of the record in the whole history, from 0
+         */
+        public long getSequence(){
+            return sequence;
+        }
+        public long getTimeMillis(){
+            return timeMillis;
+        }
+        public long getAccount(){
+            return account;
+        }
+        /**
+         * @return WITHDRAWAL, BALANCE_ENQUIRY or PIN_CHECK
+         */
+        public byte getKind(){
+            return kind;
+        }
+        public long getAmount(){
+            return amount;
+        }
+        /**
+         * @return The balance after the action, or the balance the action was
+         * turned away at
+         */
+        public long getBalance(){
+            return balance;
+        }
+        /**
+         * @return The error the action was turned away with, or null
+         */
+        public ErrorCode getErrorCode(){
+            return errorCode;
+        }
+        public String toString(){
+            return sequence + " " + timeMillis + " " + account + " " + (char) kind + " " + amount + " " + balance
+                    + ((errorCode != null) ? " " + errorCode : "");
+        }
+    }
+
+    /**
+     * One data file, and its index once sealed
+     */
+    private static final class Segment {
+        final Path dataPath;
+        final Path indexPath;
+        final long firstSequence;
+        FileChannel channel;
+        MappedByteBuffer records;
+        int count;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+
+        //Sealed segments only
+        MappedByteBuffer index;
+        final int[] errorCounts = new int[ERROR_CODES.length];
+        int[] errorStarts;
+
+        Segment(Path dataPath, long firstSequence){
+            this.dataPath = dataPath;
+            String name = dataPath.getFileName().toString();
+            this.indexPath = dataPath.resolveSibling(name.substring(0, name.length() - DATA_SUFFIX.length()) + INDEX_SUFFIX);
+            this.firstSequence = firstSequence;
+        }
+
+        /**
+         * Maps the data file for writing, and finds the records already in it
+         */
+        void openActive(int recordsPerSegment) throws IOException{
+            channel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = Math.max(channel.size(), (long) recordsPerSegment * RECORD_SIZE);
+            records = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int capacity = (int) (size / RECORD_SIZE);
+            while (count < capacity && kind(count) != 0){
+                track(time(count));
+                count++;
+            }
+        }
+
+        /**
+         * Maps the data and index files read only
+         */
+        void openSealed() throws IOException{
+            FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ);
+            try {
+                index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            } finally {
+                indexChannel.close();
+            }
+            if (index.getInt(0) != INDEX_MAGIC){
+                throw new IOException("Not a history index: " + indexPath);
+            }
+            count = index.getInt(4);
+            minTime = index.getLong(8);
+            maxTime = index.getLong(16);
+            int position = INDEX_HEADER_SIZE;
+            for (int i = 0; i < ERROR_CODES.length; i++){
+                errorCounts[i] = index.getInt(position);
+                position += 4;
+            }
+            errorStarts = new int[ERROR_CODES.length];
+            position += count * INDEX_ENTRY_SIZE;
+            for (int i = 0; i < ERROR_CODES.length; i++){
+                errorStarts[i] = position;
+                position += errorCounts[i] * 4;
+            }
+
+            FileChannel dataChannel = FileChannel.open(dataPath, StandardOpenOption.READ);
+            try {
+                records = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, (long) count * RECORD_SIZE);
+            } finally {
+                dataChannel.close();
+            }
+            channel = null;
+        }
+
+        void append(long account, long time, long amount, long balance, byte kind, ErrorCode errorCode){
+            int offset = count * RECORD_SIZE;
+            records.putLong(offset, account);
+            records.putLong(offset + 8, time);
+            records.putLong(offset + 16, amount);
+            records.putLong(offset + 24, balance);
+            records.put(offset + 33, (byte) ((errorCode != null) ? errorCode.ordinal() + 1 : 0));
+            //The kind is written last, as a record with no kind marks the end
+            records.put(offset + 32, kind);
+            track(time);
+            count++;
+        }
+
+        private void track(long time){
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+        }
+
+        boolean overlaps(long fromMillis, long toMillis){
+            return count > 0 && maxTime >= fromMillis && minTime < toMillis;
+        }
+
+        long account(int record){
+            return records.getLong(record * RECORD_SIZE);
+        }
+
+        long time(int record){
+            return records.getLong(record * RECORD_SIZE + 8);
+        }
+
+        byte kind(int record){
+            return records.get(record * RECORD_SIZE + 32);
+        }
+
+        ErrorCode errorCode(int record){
+            int code = records.get(record * RECORD_SIZE + 33);
+            return (code == 0) ? null : ERROR_CODES[code - 1];
+        }
+
+        boolean isBetween(int record, long fromMillis, long toMillis){
+            long time = time(record);
+            return time >= fromMillis && time < toMillis;
+        }
+
+        Entry entry(int record){
+            int offset = record * RECORD_SIZE;
+            return new Entry(firstSequence + record, records.getLong(offset + 8), records.getLong(offset),
+                    records.get(offset + 32), records.getLong(offset + 16), records.getLong(offset + 24), errorCode(record));
+        }
+
+        /**
+         * Adds the records for the account, found with a binary search of the index
+         */
+        void findAccount(long account, long fromMillis, long toMillis, List<Entry> found){
+            int base = INDEX_HEADER_SIZE + ERROR_CODES.length * 4;
+            int low = 0;
+            int high = count;
+            while (low < high){
+                int middle = (low + high) >>> 1;
+                if (index.getLong(base + middle * INDEX_ENTRY_SIZE) < account){
+                    low = middle + 1;
+                }
+                else{
+                    high = middle;
+                }
+            }
+            for (int i = low; i < count && index.getLong(base + i * INDEX_ENTRY_SIZE) == account; i++){
+                int record = index.getInt(base + i * INDEX_ENTRY_SIZE + 8);
+                if (isBetween(record, fromMillis, toMillis)){
+                    found.add(entry(record));
+                }
+            }
+        }
+
+        void findError(ErrorCode errorCode, long fromMillis, long toMillis, int limit, List<Entry> found){
+            int start = errorStarts[errorCode.ordinal()];
+            for (int i = 0; i < errorCounts[errorCode.ordinal()] && found.size() < limit; i++){
+                int record = index.getInt(start + i * 4);
+                if (isBetween(record, fromMillis, toMillis)){
+                    found.add(entry(record));
+                }
+            }
+        }
+
+        /**
+         * Writes the index of a full segment, to a temporary file first so a
+         * segment is only ever sealed with a complete index
+         */
+        void writeIndex() throws IOException{
+            //Sort the records by account, keeping each account's records in order
+            long[] accounts = new long[count];
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++){
+                accounts[i] = account(i);
+                order[i] = i;
+            }
+            sort(accounts, order, new int[count], 0, count);
+
+            Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            OutputStream file = Files.newOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(count);
+                out.writeLong(minTime);
+                out.writeLong(maxTime);
+                int[] counts = new int[ERROR_CODES.length];
+                for (int i = 0; i < count; i++){
+                    ErrorCode errorCode = errorCode(i);
+                    if (errorCode != null){
+                        counts[errorCode.ordinal()]++;
+                    }
+                }
+                for (int i = 0; i < counts.length; i++){
+                    out.writeInt(counts[i]);
+                }
+                for (int i = 0; i < count; i++){
+                    out.writeLong(accounts[order[i]]);
+                    out.writeInt(order[i]);
+                }
+                for (int e = 0; e < ERROR_CODES.length; e++){
+                    for (int i = 0; i < count; i++){
+                        if (errorCode(i) == ERROR_CODES[e]){
+                            out.writeInt(i);
+                        }
+                    }
+                }
+                out.flush();
+                file.flush();
+            } finally {
+                file.close();
+            }
+            FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.WRITE);
+            try {
+                tempChannel.force(true);
+            } finally {
+                tempChannel.close();
+            }
+            Files.move(temp, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * A merge sort of the record numbers by account, which keeps records for
+         * the same account in the order they were made
+         */
+        private static void sort(long[] keys, int[] order, int[] scratch, int from, int to){
+            if (to - from < 2){
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            sort(keys, order, scratch, from, middle);
+            sort(keys, order, scratch, middle, to);
+            if (keys[order[middle - 1]] <= keys[order[middle]]){
+                return;
+            }
+            System.arraycopy(order, from, scratch, from, to - from);
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++){
+                if (right >= to || (left < middle && keys[scratch[left]] <= keys[scratch[right]])){
+                    order[i] = scratch[left++];
+                }
+                else{
+                    order[i] = scratch[right++];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,548 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of every withdrawal applied to the account ledger, so
+ * that the ATM cash and the account balances survive a crash.
+ *
+ * Withdrawals are appended to an in-memory buffer, and a background thread
+ * writes the buffer to the journal file and forces it to disk. Every withdrawal
+ * appended while one write is being forced goes out in the next write, so many
+ * withdrawals share a single fsync (group commit). Results should only be shown
+ * once their withdrawals are durable: see awaitDurable and guard.
+ *
+ * The journal directory holds:
+ *  - journal-{first sequence}.log files. Each record is the sequence number,
+ *    account number, amount, new balance and new overdraft (longs), followed by
+ *    a CRC32 of those 40 bytes (int). A new file is started once the current one
+ *    reaches SEGMENT_SIZE
+ *  - snapshot.bin, written every snapshotEvery withdrawals and on close: the
+ *    last sequence number and the ATM cash at that point (longs), followed by the
+ *    account ledger. Journal files holding only records covered by the snapshot
+ *    are deleted once it is written
+ *
+ * The ledger is written into the snapshot while sessions carry on running, so it
+ * may already hold some changes made after the snapshot's sequence number. As
+ * each record holds the new balance rather than the change, replaying the later
+ * records on recovery brings every account to its latest state either way.
+ */
+public class WithdrawalJournal implements Closeable {
+
+    static final int RECORD_SIZE = 5 * 8 + 4;
+    static final long SEGMENT_SIZE = 64L << 20;
+
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC = 0x41544d4a; //"ATMJ"
+
+    //Appends wait while this much is waiting to be written
+    private static final int MAX_PENDING = 16 << 20;
+
+    private final Path directory;
+    private final AccountLedger ledger;
+    private final long snapshotEvery;
+    private final CRC32 crc = new CRC32();
+
+    //Guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private long lastSequence;
+    private long cash;
+    private long sinceSnapshot;
+    private boolean closed;
+
+    //Guarded by durableLock
+    private final Object durableLock = new Object();
+    private long durableSequence;
+    private IOException failure;
+
+    //Only used by the writer thread
+    private FileChannel segment;
+    private long segmentSize;
+
+    private final Thread writer;
+
+    //Guarded by snapshotLock
+    private final Object snapshotLock = new Object();
+    private long snapshotSequence = -1;
+
+    /**
+     * Opens the journal for appending. Any state already in the directory must
+     * have been recovered first, and the ledger and cash passed in
+     * @param directory The journal directory
+     * @param ledger The account ledger the withdrawals are applied to
+     * @param cash The ATM cash, after every withdrawal in the journal so far
+     * @param lastSequence The sequence number of the last withdrawal in the journal
+     * @param snapshotEvery How many withdrawals to append between snapshots
+     * @throws IOException If the journal could not be opened
+     */
+    public WithdrawalJournal(Path directory, AccountLedger ledger, long cash, long lastSequence, long snapshotEvery) throws IOException{
+        this.directory = directory;
+        this.ledger = ledger;
+        this.cash = cash;
+        this.lastSequence = lastSequence;
+        this.durableSequence = lastSequence;
+        this.snapshotEvery = snapshotEvery;
+        Files.createDirectories(directory);
+
+        //A new journal starts with a snapshot, so the starting cash is on disk
+        if (!Files.exists(directory.resolve(SNAPSHOT))){
+            snapshot(lastSequence, cash);
+        }
+        startSegment(lastSequence + 1);
+
+        writer = new Thread(new Runnable() {
+            public void run(){
+                writeLoop();
+            }
+        }, "atm-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * The state rebuilt from a journal directory
+     */
+    public static class Recovery {
+        private final AccountLedger ledger;
+        private final long cash;
+        private final long lastSequence;
+
+        Recovery(AccountLedger ledger, long cash, long lastSequence){
+            this.ledger = ledger;
+            this.cash = cash;
+            this.lastSequence = lastSequence;
+        }
+
+        public AccountLedger getLedger(){
+            return ledger;
+        }
+        public long getCash(){
+            return cash;
+        }
+        public long getLastSequence(){
+            return lastSequence;
+        }
+    }
+
+    /**
+     * Rebuilds the ATM cash and the account ledger from a journal directory: loads
+     * the snapshot, and replays every journal record after it
+     * @param directory The journal directory
+     * @return The recovered state, or null if the directory holds no journal
+     * @throws IOException If the journal could not be read
+     */
+    public static Recovery recover(Path directory) throws IOException{
+        Path snapshot = directory.resolve(SNAPSHOT);
+        List<Path> segments = listSegments(directory);
+        if (!Files.exists(snapshot)){
+            if (!segments.isEmpty()){
+                throw new IOException("Journal snapshot is missing from " + directory);
+            }
+            return null;
+        }
+
+        AccountLedger ledger;
+        long cash;
+        long sequence;
+        InputStream is = Files.newInputStream(snapshot);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+            if (in.readInt() != SNAPSHOT_MAGIC){
+                throw new IOException("Not a journal snapshot: " + snapshot);
+            }
+            sequence = in.readLong();
+            cash = in.readLong();
+            ledger = AccountLedger.readFrom(in);
+        } finally {
+            is.close();
+        }
+
+        //Replay every record after the snapshot. A record that was only partly
+        //written when the ATM stopped ends that journal file, and is cut off, as
+        //the journal may carry on in the same file, and the records appended
+        //after it would otherwise be lost on the next recovery
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        CRC32 crc = new CRC32();
+        for (Path path : segments){
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                InputStream records = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+                long valid = 0;
+                while (readFully(records, record.array())){
+                    record.clear();
+                    crc.reset();
+                    crc.update(record.array(), 0, RECORD_SIZE - 4);
+                    if ((int) crc.getValue() != record.getInt(RECORD_SIZE - 4)){
+                        break;
+                    }
+                    valid += RECORD_SIZE;
+                    long recordSequence = record.getLong();
+                    if (recordSequence <= sequence){
+                        continue;
+                    }
+                    if (recordSequence != sequence + 1){
+                        throw new IOException("Journal record " + (sequence + 1) + " is missing");
+                    }
+                    long account = record.getLong();
+                    long amount = record.getLong();
+                    long balance = record.getLong();
+                    long overdraft = record.getLong();
+                    ledger.set(account, balance, overdraft);
+                    cash -= amount;
+                    sequence = recordSequence;
+                }
+                if (channel.size() > valid){
+                    channel.truncate(valid);
+                    channel.force(true);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+        return new Recovery(ledger, cash, sequence);
+    }
+
+    /**
+     * Appends a withdrawal that has been applied to the ledger. Called by the
+     * ledger with the account's segment locked
+     * @param account The account number
+     * @param amount The amount withdrawn
+     * @param balance The new account balance
+     * @param overdraft The new overdraft facility
+     * @return The sequence number of the withdrawal
+     */
+    synchronized long append(long account, long amount, long balance, long overdraft){
+        if (closed){
+            throw new IllegalStateException("Journal is closed");
+        }
+        while (pending.position() >= MAX_PENDING){
+            waitUninterruptibly(this);
+        }
+        if (pending.remaining() < RECORD_SIZE){
+            ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        long sequence = ++lastSequence;
+        cash -= amount;
+
+        int start = pending.position();
+        pending.putLong(sequence).putLong(account).putLong(amount).putLong(balance).putLong(overdraft);
+        crc.reset();
+        crc.update(pending.array(), start, RECORD_SIZE - 4);
+        pending.putInt((int) crc.getValue());
+
+        //Wake the writer if it is waiting for something to write
+        if (start == 0){
+            notifyAll();
+        }
+        return sequence;
+    }
+
+    /**
+     * @return The sequence number of the last withdrawal appended
+     */
+    public synchronized long getLastSequence(){
+        return lastSequence;
+    }
+
+    /**
+     * @return The ATM cash after every withdrawal appended so far
+     */
+    public synchronized long getCash(){
+        return cash;
+    }
+
+    /**
+     * Waits until every withdrawal appended so far is on disk
+     * @throws IOException If the journal could not be written
+     */
+    public void awaitDurable() throws IOException{
+        awaitDurable(getLastSequence());
+    }
+
+    /**
+     * Waits until the withdrawal with the given sequence number, and every one
+     * before it, is on disk
+     * @param sequence A sequence number returned by append
+     * @throws IOException If the journal could not be written
+     */
+    public void awaitDurable(long sequence) throws IOException{
+        synchronized (durableLock) {
+            while (durableSequence < sequence){
+                if (failure != null){
+                    throw failure;
+                }
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the journal");
+                }
+            }
+            if (failure != null){
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Wraps an output channel so that nothing is written to it until every
+     * withdrawal appended so far is on disk. Results written through the
+     * returned channel are never shown for a withdrawal a crash could lose
+     * @param channel Where the results are written
+     * @return A channel that waits for the journal before each write
+     */
+    public WritableByteChannel guard(final WritableByteChannel channel){
+        return new WritableByteChannel() {
+            public int write(ByteBuffer src) throws IOException{
+                awaitDurable();
+                return channel.write(src);
+            }
+            public boolean isOpen(){
+                return channel.isOpen();
+            }
+            public void close() throws IOException{
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Writes every pending withdrawal to disk, writes a final snapshot, and
+     * stops the writer thread
+     */
+    public void close() throws IOException{
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing the journal");
+        }
+        synchronized (durableLock) {
+            if (failure != null){
+                throw failure;
+            }
+        }
+        long sequence;
+        long snapshotCash;
+        synchronized (this) {
+            sequence = lastSequence;
+            snapshotCash = cash;
+        }
+        snapshot(sequence, snapshotCash);
+        segment.close();
+    }
+
+    /**
+     * The writer thread: swaps the pending buffer for an empty one, writes it out,
+     * and forces it to disk, for as long as there is anything to write
+     */
+    private void writeLoop(){
+        try {
+            while (true){
+                long sequence;
+                long snapshotCash = 0;
+                boolean snapshotDue = false;
+                synchronized (this) {
+                    while (pending.position() == 0 && !closed){
+                        waitUninterruptibly(this);
+                    }
+                    if (pending.position() == 0){
+                        return;
+                    }
+                    ByteBuffer full = pending;
+                    pending = writing;
+                    writing = full;
+                    sequence = lastSequence;
+
+                    //Every record up to this sequence is in the buffer being
+                    //written, which makes it a good point for a snapshot
+                    sinceSnapshot += writing.position() / RECORD_SIZE;
+                    if (snapshotEvery > 0 && sinceSnapshot >= snapshotEvery){
+                        snapshotDue = true;
+                        snapshotCash = cash;
+                        sinceSnapshot = 0;
+                    }
+                    notifyAll();
+                }
+
+                writing.flip();
+                while (writing.hasRemaining()){
+                    segmentSize += segment.write(writing);
+                }
+                writing.clear();
+                segment.force(false);
+
+                synchronized (durableLock) {
+                    durableSequence = sequence;
+                    durableLock.notifyAll();
+                }
+                if (segmentSize >= SEGMENT_SIZE){
+                    segment.close();
+                    startSegment(sequence + 1);
+                }
+                if (snapshotDue){
+                    startSnapshot(sequence, snapshotCash);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (durableLock) {
+                failure = e;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot on its own thread, so the writer can carry on committing
+     * withdrawals. A snapshot still being written when the next one is due delays it
+     */
+    private void startSnapshot(final long sequence, final long snapshotCash){
+        Thread thread = new Thread(new Runnable() {
+            public void run(){
+                try {
+                    snapshot(sequence, snapshotCash);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "atm-journal-snapshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Writes a snapshot as of the given sequence number, then deletes the journal
+     * files it covers
+     */
+    private void snapshot(long sequence, long snapshotCash) throws IOException{
+        synchronized (snapshotLock) {
+            //A later snapshot may already have been written
+            if (sequence <= snapshotSequence){
+                return;
+            }
+            Path target = directory.resolve(SNAPSHOT);
+            Path temp = Files.createTempFile(directory, SNAPSHOT, ".tmp");
+            try {
+                FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                try {
+                    OutputStream os = Channels.newOutputStream(channel);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+                    out.writeInt(SNAPSHOT_MAGIC);
+                    out.writeLong(sequence);
+                    out.writeLong(snapshotCash);
+                    ledger.writeTo(out);
+                    out.flush();
+                    channel.force(false);
+                } finally {
+                    channel.close();
+                }
+
+                //The ledger may hold changes made after the sequence number. Only
+                //publish the snapshot once the records of those changes are on
+                //disk, so that no change in it can be lost from the journal
+                awaitDurable();
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                snapshotSequence = sequence;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            deleteSegmentsBefore(sequence + 1);
+        }
+    }
+
+    /**
+     * Deletes every journal file that only holds records before the given
+     * sequence number
+     */
+    private void deleteSegmentsBefore(long sequence) throws IOException{
+        List<Path> segments = listSegments(directory);
+        for (int i = 0; i + 1 < segments.size(); i++){
+            if (firstSequence(segments.get(i + 1)) <= sequence){
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    private void startSegment(long firstSequence) throws IOException{
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = segment.size();
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException{
+        List<Path> segments = new ArrayList<Path>();
+        if (!Files.isDirectory(directory)){
+            return segments;
+        }
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX);
+        try {
+            for (Path path : stream){
+                segments.add(path);
+            }
+        } finally {
+            stream.close();
+        }
+
+        //The sequence numbers are zero padded, so the names sort in order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long firstSequence(Path segment){
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static boolean readFully(InputStream in, byte[] bytes) throws IOException{
+        int read = 0;
+        while (read < bytes.length){
+            int count = in.read(bytes, read, bytes.length - read);
+            if (count < 0){
+                return false;
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    private static void waitUninterruptibly(Object monitor){
+        try {
+            monitor.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted waiting for the journal"));
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.akqa.test.henrikpettersen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes synthetic input files of any size, in the format read by InputFileReader,
+ * to reproduce production load shapes locally.
+ *
+ * The shape of the load is configurable:
+ *  - The number of sessions, and the number of actions in each session
+ *  - The share of actions that are balance enquiries
+ *  - The share of sessions entered with the wrong PIN
+ *  - The share of withdrawals that ask for more than the account's balance plus
+ *    overdraft facility. Every other withdrawal is covered by the account
+ *  - When the ATM runs out of cash: the ATM is given exactly the cash dispensed
+ *    by the sessions before that point, when the file is run in order without a
+ *    ledger
+ *  - How the sessions are spread across accounts: account ranks are drawn from a
+ *    power law, so a skew of 0 spreads them evenly, and a skew of 1 or more sends
+ *    most sessions to a few hot accounts
+ *
+ * The sessions are generated in chunks on several threads. Each chunk has its
+ * own random generator, seeded from the seed and the chunk number, so the same
+ * seed always writes the same file, whatever the number of threads.
+ *
+ * Run with:
+ *  java com.akqa.test.henrikpettersen.WorkloadGenerator [--sessions N]
+ *      [--min-actions N] [--max-actions N] [--balance-share F] [--wrong-pin F]
+ *      [--overdraw F] [--exhaust-at F | --cash N] [--accounts N] [--skew S]
+ *      [--seed N] [--threads N] {output file}
+ */
+public class WorkloadGenerator {
+
+    static final int CHUNK_SESSIONS = 1 << 16;
+
+    private static final byte[] HEADER = "#Total cash in ATM\n".getBytes(StandardCharsets.US_ASCII);
+
+    //The ATM cash is written over a blank field once every chunk is written
+    private static final int CASH_FIELD_LENGTH = 20;
+
+    private long sessions = 1000000;
+    private int minActions = 1;
+    private int maxActions = 5;
+    private double balanceShare = 0.3;
+    private double wrongPinRate = 0.1;
+    private double overdrawShare = 0.1;
+    private double exhaustAt = 1;
+    private long cash = -1;
+    private long accounts = 1000000;
+    private double skew;
+    private long seed = 1;
+    private int maxBalance = 1000;
+    private int maxOverdraft = 200;
+    private int maxAmount = 600;
+
+    public static void main(String[] args) throws IOException, InterruptedException{
+        WorkloadGenerator generator = new WorkloadGenerator();
+        int threads = Runtime.getRuntime().availableProcessors();
+        String output = null;
+        for (int i = 0; i < args.length; i++){
+            String arg = args[i];
+            if (arg.equals("--sessions")){
+                generator.setSessions(Long.parseLong(args[++i]));
+            }
+            else if (arg.equals("--min-actions")){
+                generator.setMinActions(Integer.parseInt(args[++i]));
+            }
+            else if (arg.equals("--max-actions")){
+                generator.setMaxActions(Integer.parseInt(args[++i]));
+            }
+            else if (arg.equals("--balance-share")){
+                generator.setBalanceShare(Double.parseDouble(args[++i]));
+            }
+            else if (arg.equals("--wrong-pin")){
+                generator.setWrongPinRate(Double.parseDouble(args[++i]));
+            }
+            else if (arg.equals("--overdraw")){
+                generator.setOverdrawShare(Double.parseDouble(args[++i]));
+            }
+            else if (arg.equals("--exhaust-at")){
+                generator.setExhaustAt(Double.parseDouble(args[++i]));
+            }
+            else if (arg.equals("--cash")){
+                generator.setCash(Long.parseLong(args[++i]));
+            }
+            else if (arg.equals("--accounts")){
+                generator.setAccounts(Long.parseLong(args[++i]));
+            }
+            else if (arg.equals("--skew")){
+                generator.setSkew(Double.parseDouble(args[++i]));
+            }
+            else if (arg.equals("--seed")){
+                generator.setSeed(Long.parseLong(args[++i]));
+            }
+            else if (arg.equals("--threads")){
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (arg.startsWith("--")){
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else{
+                output = arg;
+            }
+        }
+        if (output == null){
+            System.err.println("Usage: WorkloadGenerator [options] {output file}");
+            System.exit(-1);
+        }
+
+        long start = System.nanoTime();
+        Path path = Paths.get(output);
+        long atmCash = generator.generate(path, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = path.toFile().length();
+        System.err.println("Wrote " + generator.getSessions() + " sessions, " + bytes + " bytes, ATM cash "
+                + atmCash + ", in " + seconds + "s (" + (long) (bytes / seconds / (1 << 20)) + " MB/s)");
+    }
+
+    /**
+     * Writes the input file
+     * @param path The file to write
+     * @param threads The number of threads generating sessions
+     * @return The cash held in the ATM, as written at the top of the file
+     * @throws IOException If the file could not be written
+     */
+    public long generate(Path path, int threads) throws IOException, InterruptedException{
+        if (minActions < 0 || maxActions < minActions){
+            throw new IllegalArgumentException("Invalid number of actions: " + minActions + " to " + maxActions);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            //The header, with a blank field for the ATM cash
+            byte[] header = Arrays.copyOf(HEADER, HEADER.length + CASH_FIELD_LENGTH + 2);
+            Arrays.fill(header, HEADER.length, header.length, (byte) ' ');
+            header[header.length - 2] = '\n';
+            header[header.length - 1] = '\n';
+            writeFully(channel, ByteBuffer.wrap(header));
+
+            //Generate a few chunks ahead on every thread, and write them in order
+            long exhaustSession = Math.round(exhaustAt * sessions);
+            long dispensedBeforeExhaust = 0;
+            long chunks = (sessions + CHUNK_SESSIONS - 1) / CHUNK_SESSIONS;
+            Deque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+            long next = 0;
+            while (next < chunks || !inFlight.isEmpty()){
+                while (next < chunks && inFlight.size() < threads * 2){
+                    final long index = next++;
+                    inFlight.add(executor.submit(new Callable<Chunk>() {
+                        public Chunk call(){
+                            return generateChunk(index);
+                        }
+                    }));
+                }
+                Chunk chunk = inFlight.poll().get();
+                writeFully(channel, ByteBuffer.wrap(chunk.bytes, 0, chunk.length));
+                dispensedBeforeExhaust += chunk.dispensedBefore(exhaustSession);
+            }
+
+            long atmCash = (cash >= 0) ? cash : dispensedBeforeExhaust;
+            byte[] field = Long.toString(atmCash).getBytes(StandardCharsets.US_ASCII);
+            channel.write(ByteBuffer.wrap(field), HEADER.length);
+            return atmCash;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Generating sessions failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            channel.close();
+        }
+    }
+
+    /**
+     * Generates one chunk of sessions
+     * @param index The chunk number
+     * @return The sessions as text
+     */
+    Chunk generateChunk(long index){
+        SplittableRandom random = new SplittableRandom(AccountLedger.hash(seed * 0x9e3779b97f4a7c15L + index));
+        long first = index * CHUNK_SESSIONS;
+        int count = (int) Math.min(CHUNK_SESSIONS, sessions - first);
+        Chunk chunk = new Chunk(first, count);
+
+        for (int s = 0; s < count; s++){
+            long pin = 1000 + random.nextInt(9000);
+            boolean wrongPin = random.nextDouble() < wrongPinRate;
+            chunk.putLong(10000000 + accountRank(random));
+            chunk.put(' ');
+            chunk.putLong(pin);
+            chunk.put(' ');
+            chunk.putLong(wrongPin ? (pin == 9999 ? 1000 : pin + 1) : pin);
+            chunk.put('\n');
+
+            long balance = random.nextInt(maxBalance + 1);
+            long overdraft = random.nextInt(maxOverdraft + 1);
+            chunk.putLong(balance);
+            chunk.put(' ');
+            chunk.putLong(overdraft);
+            chunk.put('\n');
+
+            long dispensed = 0;
+            int actions = minActions + random.nextInt(maxActions - minActions + 1);
+            for (int a = 0; a < actions; a++){
+                if (random.nextDouble() < balanceShare){
+                    chunk.put('B');
+                    chunk.put('\n');
+                    continue;
+                }
+
+                //Follow the account through the session the same way the ATM
+                //does, so that the withdrawal lands on the intended side of
+                //the available funds
+                long available = balance + overdraft;
+                long amount;
+                if (random.nextDouble() < overdrawShare || available < 1){
+                    amount = Math.max(available, 0) + 1 + random.nextInt(maxAmount);
+                }
+                else{
+                    amount = 1 + random.nextLong(Math.min(available, maxAmount));
+                    if (!wrongPin){
+                        balance -= amount;
+                        if (balance < 0){
+                            overdraft += balance;
+                        }
+                        dispensed += amount;
+                    }
+                }
+                chunk.put('W');
+                chunk.put(' ');
+                chunk.putLong(amount);
+                chunk.put('\n');
+            }
+            chunk.put('\n');
+            chunk.dispensed[s] = dispensed;
+        }
+        return chunk;
+    }
+
+    /**
+     * Draws an account from the power law set by the skew
+     * @return The rank of the account, 0 being the hottest
+     */
+    private long accountRank(SplittableRandom random){
+        if (skew <= 0){
+            return random.nextLong(accounts);
+        }
+        double u = random.nextDouble();
+        double rank;
+        if (skew == 1){
+            rank = Math.exp(u * Math.log(accounts + 1));
+        }
+        else{
+            double exponent = 1 - skew;
+            rank = Math.pow((Math.pow(accounts + 1, exponent) - 1) * u + 1, 1 / exponent);
+        }
+        return Math.min((long) rank - 1, accounts - 1);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException{
+        while (buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * A run of sessions as text, with the cash each one dispenses
+     */
+    static final class Chunk {
+        final long first;
+        final long[] dispensed;
+        byte[] bytes;
+        int length;
+
+        Chunk(long first, int count){
+            this.first = first;
+            this.dispensed = new long[count];
+            this.bytes = new byte[count * 48 + 64];
+        }
+
+        /**
+         * @return The cash dispensed by the sessions in this chunk before the
+         * given session number
+         */
+        long dispensedBefore(long session){
+            long total = 0;
+            for (int i = 0; i < dispensed.length && first + i < session; i++){
+                total += dispensed[i];
+            }
+            return total;
+        }
+
+        void put(char c){
+            if (length == bytes.length){
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = (byte) c;
+        }
+
+        /**
+         * Writes a non-negative number, without going through a String
+         */
+        void putLong(long value){
+            if (length + 20 > bytes.length){
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10){
+                digits++;
+            }
+            int end = length + digits;
+            for (int i = end - 1; i >= length; i--){
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length = end;
+        }
+    }
+
+    public long getSessions(){
+        return sessions;
+    }
+    public void setSessions(long sessions){
+        this.sessions = sessions;
+    }
+    public int getMinActions(){
+        return minActions;
+    }
+    public void setMinActions(int minActions){
+        this.minActions = minActions;
+    }
+    public int getMaxActions(){
+        return maxActions;
+    }
+    public void setMaxActions(int maxActions){
+        this.maxActions = maxActions;
+    }
+    public double getBalanceShare(){
+        return balanceShare;
+    }
+    public void setBalanceShare(double balanceShare){
+        this.balanceShare = balanceShare;
+    }
+    public double getWrongPinRate(){
+        return wrongPinRate;
+    }
+    public void setWrongPinRate(double wrongPinRate){
+        this.wrongPinRate = wrongPinRate;
+    }
+    public double getOverdrawShare(){
+        return overdrawShare;
+    }
+    public void setOverdrawShare(double overdrawShare){
+        this.overdrawShare = overdrawShare;
+    }
+    public double getExhaustAt(){
+        return exhaustAt;
+    }
+    /**
+     * @param exhaustAt The share of sessions, from 0 to 1, after which the ATM is
+     * out of cash. Ignored if the cash is set
+     */
+    public void setExhaustAt(double exhaustAt){
+        this.exhaustAt = exhaustAt;
+    }
+    public long getCash(){
+        return cash;
+    }
+    public void setCash(long cash){
+        this.cash = cash;
+    }
+    public long getAccounts(){
+        return accounts;
+    }
+    public void setAccounts(long accounts){
+        this.accounts = accounts;
+    }
+    public double getSkew(){
+        return skew;
+    }
+    public void setSkew(double skew){
+        this.skew = skew;
+    }
+    public long getSeed(){
+        return seed;
+    }
+    public void setSeed(long seed){
+        this.seed = seed;
+    }
+}
@@ -0,0 +1,110 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class AccountLedgerTest {
+
+    @Test
+    public void testLaterSessionsSeeEarlierWithdrawals() throws Exception {
+        Atm atm = new Atm();
+        atm.setAtmBalance(1000);
+        atm.setLedger(new AccountLedger());
+        
+        Session first = createSession("87654321", 100, 0);
+        atm.getLedger().open(first);
+        assertEquals(90, atm.withdrawFunds(first, Action.createWithdrawal(10)));
+        
+        //The second session comes in with the stale balance from the input file
+        Session second = createSession("87654321", 100, 0);
+        atm.getLedger().open(second);
+        assertEquals(90, second.getBalance());
+        try {
+            atm.withdrawFunds(second, Action.createWithdrawal(95));
+            fail("Expected FUNDS_ERR");
+        } catch (AtmException e) {
+            assertEquals(ErrorCode.FUNDS_ERR, e.getErrorCode());
+        }
+        
+        //The ATM cash taken out for the declined withdrawal is put back
+        assertEquals(990, atm.getAtmBalance());
+    }
+    
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        AccountLedger ledger = new AccountLedger();
+        for (int i = 0; i < 10000; i++){
+            ledger.open(createSession(Integer.toString(i), i, i % 7));
+        }
+        Session session = createSession("40", 0, 0);
+        ledger.open(session);
+        assertTrue(ledger.withdraw(session, 45));
+        
+        File file = File.createTempFile("ledger", ".bin");
+        file.deleteOnExit();
+        ledger.save(file.toPath());
+        AccountLedger loaded = AccountLedger.load(file.toPath());
+        
+        assertEquals(10000, loaded.size());
+        for (int i = 0; i < 10000; i++){
+            Session check = createSession(Integer.toString(i), -1, -1);
+            loaded.refresh(check);
+            if (i == 40){
+                assertEquals(-5, check.getBalance());
+                assertEquals(0, check.getOverdraft());
+            }
+            else{
+                assertEquals(i, check.getBalance());
+                assertEquals(i % 7, check.getOverdraft());
+            }
+        }
+    }
+    
+    @Test
+    public void testOnlyCanonicalAccountNumbers() throws Exception {
+        for (String account : new String[]{ "0", "12345", "9223372036854775807" }){
+            assertTrue(account, AccountLedger.isValidAccount(account));
+            assertEquals(Long.parseLong(account), AccountLedger.accountKey(account));
+        }
+        for (String account : new String[]{ "", "0012345", "+12345", "-1", "12a45", "9223372036854775808" }){
+            assertFalse(account, AccountLedger.isValidAccount(account));
+            try {
+                AccountLedger.accountKey(account);
+                fail("Expected " + account + " to be refused");
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        
+        //An account that would share another's key is turned away, and the run goes on
+        Atm atm = new Atm();
+        atm.setAtmBalance(1000);
+        atm.setLedger(new AccountLedger());
+        CollectingResultSink results = new CollectingResultSink();
+        Session padded = createSession("0012345", 100, 0);
+        padded.addAction(Action.createWithdrawal(10));
+        atm.performActions(padded, results);
+        Session letters = createSession("ABC", 100, 0);
+        letters.addAction(Action.createBalanceEnquiry());
+        atm.performActions(letters, results);
+        Session plain = createSession("12345", 50, 0);
+        plain.addAction(Action.createBalanceEnquiry());
+        atm.performActions(plain, results);
+        assertEquals("ACCOUNT_ERR", results.getResults().get(0));
+        assertEquals("ACCOUNT_ERR", results.getResults().get(1));
+        assertEquals("50", results.getResults().get(2));
+        assertEquals(1, atm.getLedger().size());
+    }
+    
+    private Session createSession(String accountNumber, long balance, long overdraft){
+        Session session = new Session();
+        session.setAccountNumber(accountNumber);
+        session.setExpectedPin("1234");
+        session.setEnteredPin("1234");
+        session.setBalance(balance);
+        session.setOverdraft(overdraft);
+        return session;
+    }
+}
@@ -0,0 +1,132 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+
+public class AccountLimitsTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void testDailyLimit() {
+        SettableClock clock = new SettableClock(10 * HOUR);
+        AccountLimits limits = new AccountLimits(500, 0, 0, 0, 0, clock);
+        assertTrue(limits.acquire("12345678", 300));
+        assertFalse(limits.acquire("12345678", 300));
+        assertTrue(limits.acquire("12345678", 200));
+        assertTrue(limits.acquire("87654321", 500));
+        
+        //A declined withdrawal is taken back
+        limits.release("12345678", 200);
+        assertTrue(limits.acquire("12345678", 200));
+        
+        //The limit starts again the next day
+        clock.millis = 24 * HOUR;
+        assertTrue(limits.acquire("12345678", 500));
+    }
+    
+    @Test
+    public void testSlidingWindow() {
+        SettableClock clock = new SettableClock(0);
+        AccountLimits limits = new AccountLimits(0, 2, HOUR, 0, 0, clock);
+        assertTrue(limits.acquire("12345678", 10));
+        clock.millis = HOUR / 2;
+        assertTrue(limits.acquire("12345678", 10));
+        assertFalse(limits.acquire("12345678", 10));
+        
+        //Half way through the next window, both withdrawals still fall in the
+        //last hour, as counted by the sliding window
+        clock.millis = HOUR + HOUR / 4;
+        assertFalse(limits.acquire("12345678", 10));
+        clock.millis = HOUR + HOUR / 2 + 1;
+        assertTrue(limits.acquire("12345678", 10));
+    }
+    
+    @Test
+    public void testPinLockout() {
+        SettableClock clock = new SettableClock(0);
+        AccountLimits limits = new AccountLimits(0, 0, 0, 3, HOUR, clock);
+        assertFalse(limits.checkPin("12345678", false));
+        assertFalse(limits.checkPin("12345678", false));
+        
+        //A right pin clears the count
+        assertTrue(limits.checkPin("12345678", true));
+        assertFalse(limits.checkPin("12345678", false));
+        assertFalse(limits.checkPin("12345678", false));
+        assertFalse(limits.checkPin("12345678", false));
+        
+        //Locked, even with the right pin, until the lockout ends
+        assertFalse(limits.checkPin("12345678", true));
+        clock.millis = HOUR;
+        assertTrue(limits.checkPin("12345678", true));
+    }
+    
+    @Test
+    public void testIdleAccountsExpire() {
+        SettableClock clock = new SettableClock(0);
+        AccountLimits limits = new AccountLimits(1000, 5, HOUR, 0, 0, clock);
+        for (int i = 0; i < 10000; i++){
+            assertTrue(limits.acquire(Integer.toString(10000000 + i), 10));
+        }
+        long busy = limits.size();
+        
+        //A day later, the same number of different accounts replaces the old ones
+        clock.millis = 48 * HOUR;
+        for (int i = 0; i < 10000; i++){
+            assertTrue(limits.acquire(Integer.toString(20000000 + i), 10));
+        }
+        assertTrue(limits.size() < busy * 3 / 2);
+    }
+    
+    @Test
+    public void testAtmReportsLimits() {
+        Atm atm = new Atm();
+        atm.setAtmBalance(10000);
+        atm.setLimits(new AccountLimits(150, 0, 0, 0, 0, new SettableClock(0)));
+        Session session = new Session();
+        session.setAccountNumber("12345678");
+        session.setExpectedPin("1234");
+        session.setEnteredPin("1234");
+        session.setBalance(500);
+        session.setOverdraft(0);
+        Action withdrawal = Action.createAction("W");
+        withdrawal.setAmount(100);
+        session.addAction(withdrawal);
+        session.addAction(withdrawal);
+        
+        CollectingResultSink results = new CollectingResultSink();
+        atm.performActions(session, results);
+        assertEquals("400", results.getResults().get(0));
+        assertEquals("LIMIT_ERR", results.getResults().get(1));
+        assertEquals(9900, atm.getAtmBalance());
+    }
+    
+    /**
+     * A clock whose time is set by the test
+     */
+    private static class SettableClock extends Clock {
+        long millis;
+        
+        SettableClock(long millis){
+            this.millis = millis;
+        }
+        public long millis(){
+            return millis;
+        }
+        public Instant instant(){
+            return Instant.ofEpochMilli(millis);
+        }
+        public ZoneId getZone(){
+            return ZoneOffset.UTC;
+        }
+        public Clock withZone(ZoneId zone){
+            return this;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class AtmMetricsTest {
+
+    @Test
+    public void testCountsEachOutcome() throws Exception {
+        String input = "8000\n\n"
+                + "12345678 1234 1234\n500 100\nB\nW 100\n\n"
+                + "87654321 4321 4321\n0 0\nW 10\nB\n\n"
+                + "11111111 1111 2222\n0 0\nB\n\n"
+                + "22222222 2222 2222\n10000 0\nW 9000\n";
+        SessionReader sessions = new SessionReader(new BufferedReader(new StringReader(input)));
+        
+        Atm atm = new Atm();
+        atm.setAtmBalance(sessions.getAtmBalance());
+        AtmMetrics metrics = new AtmMetrics(atm);
+        atm.setMetrics(metrics);
+        CollectingResultSink results = new CollectingResultSink();
+        while (sessions.hasNext()){
+            atm.performActions(sessions.next(), results);
+        }
+        
+        assertEquals(3, metrics.getWithdrawals());
+        assertEquals(2, metrics.getBalanceEnquiries());
+        assertEquals(1, metrics.getErrors(ErrorCode.ACCOUNT_ERR));
+        assertEquals(1, metrics.getErrors(ErrorCode.FUNDS_ERR));
+        assertEquals(1, metrics.getErrors(ErrorCode.ATM_ERR));
+        
+        long recorded = 0;
+        for (long count : metrics.getWithdrawalLatency().getCounts()){
+            recorded += count;
+        }
+        assertEquals(3, recorded);
+        assertTrue(metrics.toJson().contains("\"atm_cash\":7900"));
+    }
+    
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++){
+            histogram.record(100);
+        }
+        histogram.record(100000);
+        
+        long[] counts = histogram.getCounts();
+        assertEquals(127, LatencyHistogram.percentile(counts, 50));
+        assertEquals(127, LatencyHistogram.percentile(counts, 99));
+        assertEquals(131071, LatencyHistogram.percentile(counts, 99.9));
+    }
+}
@@ -0,0 +1,48 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class AtmServerTest {
+
+    @Test
+    public void testAnswersEachAction() throws Exception {
+        Atm atm = new Atm();
+        atm.setAtmBalance(8000);
+        AtmServer server = new AtmServer(atm, 0, 2);
+        try {
+            Socket socket = new Socket("localhost", server.getPort());
+            try {
+                OutputStream out = socket.getOutputStream();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                
+                send(out, "12345678 1234 1234\n500 100\nB\n");
+                assertEquals("500", in.readLine());
+                send(out, "W 100\n");
+                assertEquals("400", in.readLine());
+                send(out, "\n#Wrong PIN\n87654321 4321 4320\n100 0\n");
+                assertEquals("ACCOUNT_ERR", in.readLine());
+                send(out, "W 10\n\n87654321 4321 4321\n0 0\nW 10\nB\n\n");
+                assertEquals("FUNDS_ERR", in.readLine());
+                assertEquals("0", in.readLine());
+            } finally {
+                socket.close();
+            }
+        } finally {
+            server.close();
+        }
+        assertEquals(7900, atm.getAtmBalance());
+    }
+    
+    private void send(OutputStream out, String text) throws Exception {
+        out.write(text.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -2,6 +2,8 @@ package com.akqa.test.henrikpettersen;
 
 import static org.junit.Assert.*;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -87,6 +89,61 @@ public class AtmTest {
         }
     }
     
+    @Test
+    public void testWholeSessionsMatchActionByAction() throws Exception {
+        //Long sessions, going into the overdraft, until the ATM runs out
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setSessions(5000);
+        generator.setMinActions(1);
+        generator.setMaxActions(20);
+        generator.setOverdrawShare(0.02);
+        generator.setExhaustAt(0.7);
+        Path path = Files.createTempFile("atm", ".txt");
+        generator.generate(path, 1);
+        
+        Atm whole = new Atm();
+        Atm byAction = new Atm();
+        SessionSource sessions = MappedSessionReader.open(path);
+        try {
+            whole.setAtmBalance(sessions.getAtmBalance());
+            byAction.setAtmBalance(sessions.getAtmBalance());
+            while (sessions.hasNext()){
+                Session session = sessions.next();
+                Session copy = copy(session);
+                CollectingResultSink expected = new CollectingResultSink();
+                if (byAction.openSession(copy)){
+                    for (Action action : copy.getActions()){
+                        Outcome.report(byAction.performAction(copy, action), expected);
+                    }
+                }
+                else{
+                    expected.error(ErrorCode.ACCOUNT_ERR);
+                }
+                
+                CollectingResultSink actual = new CollectingResultSink();
+                whole.performActions(session, actual);
+                assertEquals(expected.getResults(), actual.getResults());
+                assertEquals(copy.getBalance(), session.getBalance());
+                assertEquals(copy.getOverdraft(), session.getOverdraft());
+                assertEquals(byAction.getAtmBalance(), whole.getAtmBalance());
+            }
+        } finally {
+            sessions.close();
+            Files.delete(path);
+        }
+    }
+    
+    private Session copy(Session session){
+        Session copy = new Session();
+        copy.setAccountNumber(session.getAccountNumber());
+        copy.setExpectedPin(session.getExpectedPin());
+        copy.setEnteredPin(session.getEnteredPin());
+        copy.setBalance(session.getBalance());
+        copy.setOverdraft(session.getOverdraft());
+        copy.setActions(session.getActions());
+        return copy;
+    }
+    
     private void performActions(Session session, Atm atm) throws AtmException{
         atm.verifyPin(session);
         for (Action action : session.getActions()){
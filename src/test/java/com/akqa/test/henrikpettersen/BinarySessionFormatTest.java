@@ -0,0 +1,75 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BinarySessionFormatTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        InputFileReader reader = new InputFileReader("input.txt");
+        List<Session> sessions = reader.readFile();
+        
+        Session extreme = new Session();
+        extreme.setAccountNumber("0012345678");
+        extreme.setExpectedPin("0000");
+        extreme.setEnteredPin("0001");
+        extreme.setBalance(Long.MIN_VALUE);
+        extreme.setOverdraft(Long.MAX_VALUE);
+        extreme.addAction(Action.createWithdrawal(-1));
+        extreme.addAction(Action.createBalanceEnquiry());
+        List<Session> expected = new ArrayList<Session>(sessions);
+        expected.add(extreme);
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinarySessionWriter writer = new BinarySessionWriter(bytes, reader.getAtmBalance());
+        for (Session session : expected){
+            writer.write(session);
+        }
+        writer.close();
+        
+        BinarySessionReader binary = new BinarySessionReader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(8000, binary.getAtmBalance());
+        for (Session session : expected){
+            assertTrue(binary.hasNext());
+            assertEquals(session.toString(), binary.next().toString());
+        }
+        assertFalse(binary.hasNext());
+    }
+    
+    @Test
+    public void testUnknownActionIsRefused() throws Exception {
+        Session session = new Session();
+        session.setAccountNumber("12345678");
+        session.setExpectedPin("1234");
+        session.setEnteredPin("1234");
+        session.addAction(Action.createBalanceEnquiry());
+        session.addAction(Action.createAction("X"));
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinarySessionWriter writer = new BinarySessionWriter(bytes, 0);
+        writer.flush();
+        int header = bytes.size();
+        try {
+            writer.write(session);
+            fail("Expected an unknown action to be refused");
+        } catch (IOException e) {
+        }
+        writer.flush();
+        assertEquals(header, bytes.size());
+    }
+    
+    @Test
+    public void testZigzag() {
+        for (long value : new long[]{ 0, 1, -1, 63, -64, Long.MAX_VALUE, Long.MIN_VALUE }){
+            assertEquals(value, BinarySessionFormat.unzigzag(BinarySessionFormat.zigzag(value)));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CashCassettesTest {
+
+    @Test
+    public void testDispensesFewestNotes() {
+        CashCassettes cassettes = new CashCassettes(new int[]{20, 50}, new long[]{100, 100}, 1000);
+        long plan = cassettes.dispense(110);
+        assertEquals(3, cassettes.getNotes(plan, 0));
+        assertEquals(1, cassettes.getNotes(plan, 1));
+        assertEquals(97, cassettes.getCount(0));
+        assertEquals(99, cassettes.getCount(1));
+        
+        //Greedy would take two fifties and be stuck with 10
+        plan = cassettes.dispense(60);
+        assertEquals(3, cassettes.getNotes(plan, 0));
+        assertEquals(0, cassettes.getNotes(plan, 1));
+        
+        assertEquals(CashCassettes.NO_NOTES, cassettes.dispense(30));
+        assertEquals(CashCassettes.NO_NOTES, cassettes.dispense(1020));
+        assertEquals(94 * 20 + 99 * 50, cassettes.getTotal());
+    }
+    
+    @Test
+    public void testDepletedCassettes() {
+        CashCassettes cassettes = new CashCassettes(new int[]{10, 50}, new long[]{2, 3}, 500);
+        assertEquals(CashCassettes.NO_NOTES, cassettes.dispense(30));
+        assertTrue(cassettes.dispense(70) != CashCassettes.NO_NOTES);
+        
+        //No tens left, so only multiples of 50 can be dispensed
+        assertEquals(CashCassettes.NO_NOTES, cassettes.dispense(60));
+        long plan = cassettes.dispense(100);
+        assertEquals(2, cassettes.getNotes(plan, 1));
+        assertEquals(CashCassettes.NO_NOTES, cassettes.dispense(50));
+        assertEquals(0, cassettes.getTotal());
+        
+        //Putting the notes back makes them available again
+        cassettes.restock(plan);
+        assertEquals(plan, cassettes.dispense(100));
+    }
+    
+    @Test
+    public void testManyNotesFromOneCassette() {
+        //A withdrawal can take far more than 255 notes of 1
+        CashCassettes cassettes = CashCassettes.parse("1x10000", 5000);
+        long plan = cassettes.dispense(300);
+        assertEquals(300, cassettes.getNotes(plan, 0));
+        plan = cassettes.dispense(5000);
+        assertEquals(5000, cassettes.getNotes(plan, 0));
+        assertEquals(4700, cassettes.getTotal());
+        
+        cassettes = CashCassettes.parse("1x10000,5x2000,10x500", 5000);
+        plan = cassettes.dispense(4999);
+        assertEquals(4, cassettes.getNotes(plan, 0));
+        assertEquals(1, cassettes.getNotes(plan, 1));
+        assertEquals(499, cassettes.getNotes(plan, 2));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCassettesThatDoNotFit() {
+        //5000 notes need 13 bits for each of the 5 cassettes
+        CashCassettes.parse("1x10000,2x10000,5x10000,10x10000,20x10000", 5000);
+    }
+    
+    @Test
+    public void testMatchesSearch() {
+        int[] denominations = {5, 10, 20, 50};
+        long[] counts = {3, 4, 6, 5};
+        CashCassettes cassettes = new CashCassettes(denominations, counts, 400);
+        for (int amount = 0; amount <= 400; amount++){
+            boolean possible = false;
+            for (int a = 0; a <= 3 && !possible; a++){
+                for (int b = 0; b <= 4 && !possible; b++){
+                    for (int c = 0; c <= 6 && !possible; c++){
+                        int rest = amount - 5 * a - 10 * b - 20 * c;
+                        possible = rest >= 0 && rest % 50 == 0 && rest / 50 <= 5;
+                    }
+                }
+            }
+            CashCassettes copy = new CashCassettes(denominations, counts, 400);
+            assertEquals("Amount " + amount, possible && amount > 0, copy.dispense(amount) != CashCassettes.NO_NOTES);
+        }
+    }
+    
+    @Test
+    public void testAtmOnlyDispensesExactAmounts() {
+        Atm atm = new Atm();
+        atm.setCassettes(new CashCassettes(new int[]{20}, new long[]{10}, 1000));
+        assertEquals(200, atm.getAtmBalance());
+        
+        Session session = new Session();
+        session.setAccountNumber("12345678");
+        session.setExpectedPin("1234");
+        session.setEnteredPin("1234");
+        session.setBalance(500);
+        session.setOverdraft(0);
+        CollectingResultSink results = new CollectingResultSink();
+        session.addAction(Action.createWithdrawal(30));
+        session.addAction(Action.createWithdrawal(40));
+        atm.performActions(session, results);
+        assertEquals("ATM_ERR", results.getResults().get(0));
+        assertEquals("460", results.getResults().get(1));
+        assertEquals(160, atm.getAtmBalance());
+    }
+}
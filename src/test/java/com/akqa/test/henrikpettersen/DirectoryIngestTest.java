@@ -0,0 +1,144 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryIngestTest {
+
+    private Path directory;
+    private Path output;
+    
+    @Before
+    public void setUp() throws Exception {
+        //Each file runs out of cash part way through, so each must start with
+        //its own balance
+        directory = Files.createTempDirectory("ingest");
+        output = Files.createTempDirectory("ingest-out");
+        for (int i = 0; i < 4; i++){
+            WorkloadGenerator generator = new WorkloadGenerator();
+            generator.setSessions((i == 2) ? 20000 : 500);
+            generator.setSeed(i);
+            generator.setExhaustAt(0.7);
+            generator.generate(directory.resolve("atm-" + i + ".txt"), 1);
+        }
+        Files.write(directory.resolve("notes.log"), "not an input file".getBytes("US-ASCII"));
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        for (Path dir : new Path[]{directory, output}){
+            for (Path file : Files.newDirectoryStream(dir)){
+                Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+    
+    @Test
+    public void testResolveGlob() throws Exception {
+        List<Path> files = DirectoryIngest.resolve(directory.resolve("atm-*.txt").toString());
+        assertEquals(4, files.size());
+        assertEquals("atm-0.txt", files.get(0).getFileName().toString());
+        assertEquals("atm-3.txt", files.get(3).getFileName().toString());
+        assertEquals(5, DirectoryIngest.resolve(directory.toString()).size());
+        assertTrue(DirectoryIngest.isPattern(directory.toString()));
+        assertFalse(DirectoryIngest.isPattern(files.get(0).toString()));
+    }
+    
+    @Test
+    public void testLargeFilesAreSplitBetweenSessions() throws Exception {
+        DirectoryIngest ingest = new DirectoryIngest(DirectoryIngest.resolve(directory.resolve("atm-*.txt").toString()), 3);
+        ingest.setSplitSize(4096);
+        Path file = directory.resolve("atm-2.txt");
+        List<DirectoryIngest.Piece> pieces = ingest.split(file);
+        assertTrue(pieces.size() > 100);
+        
+        int sessions = 0;
+        for (DirectoryIngest.Piece piece : pieces){
+            piece.parse();
+            sessions += piece.sessions.size();
+        }
+        assertEquals(20000, sessions);
+    }
+    
+    @Test
+    public void testMergedInFileOrder() throws Exception {
+        List<Path> files = DirectoryIngest.resolve(directory.resolve("atm-*.txt").toString());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (Path file : files){
+            expected.write(runAlone(file));
+        }
+        
+        DirectoryIngest ingest = new DirectoryIngest(files, 3);
+        ingest.setSplitSize(4096);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        ingest.runMerged(new Atm(), Channels.newChannel(actual));
+        assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+    }
+    
+    @Test
+    public void testPerFile() throws Exception {
+        List<Path> files = DirectoryIngest.resolve(directory.resolve("atm-*.txt").toString());
+        DirectoryIngest ingest = new DirectoryIngest(files, 3);
+        ingest.setSplitSize(4096);
+        ingest.runPerFile(output);
+        for (Path file : files){
+            byte[] actual = Files.readAllBytes(output.resolve(file.getFileName() + ".out"));
+            assertTrue(Arrays.equals(runAlone(file), actual));
+        }
+    }
+    
+    @Test
+    public void testBinaryFilesAreReadInBlocks() throws Exception {
+        Path text = directory.resolve("atm-2.txt");
+        Path binary = directory.resolve("atm-2.atmb");
+        BinarySessionWriter.convert(text, binary);
+        List<Path> files = Arrays.asList(directory.resolve("atm-1.txt"), binary, directory.resolve("atm-3.txt"));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(runAlone(files.get(0)));
+        expected.write(runAlone(text));
+        expected.write(runAlone(files.get(2)));
+        
+        DirectoryIngest ingest = new DirectoryIngest(files, 3);
+        ingest.setBinaryBlock(100);
+        DirectoryIngest.Piece piece = ingest.split(binary).get(0);
+        piece.parse();
+        piece.open();
+        assertEquals(100, piece.sessions.size());
+        piece.close();
+        
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        ingest.runMerged(new Atm(), Channels.newChannel(actual));
+        assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+        
+        ingest.runPerFile(output);
+        assertTrue(Arrays.equals(runAlone(text), Files.readAllBytes(output.resolve("atm-2.atmb.out"))));
+    }
+    
+    private static byte[] runAlone(Path file) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Atm atm = new Atm();
+        SessionSource sessions = MappedSessionReader.open(file);
+        try {
+            atm.setAtmBalance(sessions.getAtmBalance());
+            ResultSink results = new BufferedResultSink(Channels.newChannel(out));
+            while (sessions.hasNext()){
+                atm.performActions(sessions.next(), results);
+            }
+            results.flush();
+        } finally {
+            sessions.close();
+        }
+        return out.toByteArray();
+    }
+}
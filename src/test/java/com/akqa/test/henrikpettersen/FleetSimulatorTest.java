@@ -0,0 +1,121 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FleetSimulatorTest {
+
+    @Test
+    public void testEachAtmRunsItsOwnSessions() throws Exception {
+        Path input = Files.createTempDirectory("fleet");
+        Path output = Files.createTempDirectory("fleet-out");
+        
+        //Only the last ATM runs out of cash, half way through its sessions
+        for (int i = 0; i < 6; i++){
+            WorkloadGenerator generator = new WorkloadGenerator();
+            generator.setSessions(2000);
+            generator.setSeed(i);
+            if (i == 5){
+                generator.setExhaustAt(0.5);
+            }
+            else{
+                generator.setCash(1000000000L);
+            }
+            generator.generate(input.resolve("atm" + i + ".txt"), 1);
+        }
+        
+        FleetSimulator fleet = new FleetSimulator(3, output);
+        fleet.addDirectory(input);
+        fleet.run();
+        
+        assertEquals(6, fleet.getAtms().size());
+        for (FleetSimulator.FleetAtm atm : fleet.getAtms()){
+            Path file = input.resolve(atm.getId() + ".txt");
+            assertEquals(2000, atm.getSessions());
+            assertTrue(Arrays.equals(runAlone(file), Files.readAllBytes(output.resolve(atm.getId() + ".out"))));
+            if (atm.getId().equals("atm5")){
+                assertTrue(atm.getAtmErrors() > 0);
+                //An overdrawn withdrawal just before the half way point may 
+                //already find the ATM short
+                assertTrue(atm.getFirstAtmErrorSession() >= 990 && atm.getFirstAtmErrorSession() <= 1000);
+            }
+            else{
+                assertEquals(0, atm.getAtmErrors());
+                assertEquals(-1, atm.getFirstAtmErrorSession());
+            }
+            Files.delete(file);
+            Files.delete(output.resolve(atm.getId() + ".out"));
+        }
+        Files.delete(input);
+        Files.delete(output);
+        
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        fleet.report(new PrintStream(report, true, "US-ASCII"));
+        assertTrue(report.toString("US-ASCII").contains("fleet: atms=6 loops=3 sessions=12000 "));
+        assertTrue(report.toString("US-ASCII").contains("atms_out_of_cash=1"));
+    }
+    
+    @Test
+    public void testMoreAtmsThanALoopRunsAtOnce() throws Exception {
+        Path input = Files.createTempDirectory("fleet");
+        Path output = Files.createTempDirectory("fleet-out");
+        int count = FleetSimulator.MAX_OPEN_PER_LOOP * 3 + 5;
+        for (int i = 0; i < count; i++){
+            WorkloadGenerator generator = new WorkloadGenerator();
+            generator.setSessions(100 + i);
+            generator.setSeed(i);
+            generator.generate(input.resolve("atm" + i + ".txt"), 1);
+        }
+        
+        FleetSimulator fleet = new FleetSimulator(1, output);
+        fleet.addDirectory(input);
+        fleet.run();
+        
+        assertEquals(count, fleet.getAtms().size());
+        for (FleetSimulator.FleetAtm atm : fleet.getAtms()){
+            Path file = input.resolve(atm.getId() + ".txt");
+            assertEquals(100 + Integer.parseInt(atm.getId().substring(3)), atm.getSessions());
+            assertTrue(Arrays.equals(runAlone(file), Files.readAllBytes(output.resolve(atm.getId() + ".out"))));
+            Files.delete(file);
+            Files.delete(output.resolve(atm.getId() + ".out"));
+        }
+        Files.delete(input);
+        Files.delete(output);
+    }
+    
+    @Test
+    public void testLoopForSpreadsAtms() {
+        int[] counts = new int[4];
+        for (int i = 0; i < 4000; i++){
+            counts[FleetSimulator.loopFor("atm" + i, 4)]++;
+        }
+        for (int count : counts){
+            assertTrue(count > 800);
+        }
+    }
+    
+    private static byte[] runAlone(Path file) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Atm atm = new Atm();
+        SessionSource sessions = MappedSessionReader.open(file);
+        try {
+            atm.setAtmBalance(sessions.getAtmBalance());
+            ResultSink results = new BufferedResultSink(Channels.newChannel(out));
+            while (sessions.hasNext()){
+                atm.performActions(sessions.next(), results);
+            }
+            results.flush();
+        } finally {
+            sessions.close();
+        }
+        return out.toByteArray();
+    }
+}
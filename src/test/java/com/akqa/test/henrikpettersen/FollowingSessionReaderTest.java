@@ -0,0 +1,75 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class FollowingSessionReaderTest {
+
+    @Test
+    public void testPicksUpAppendedSessions() throws Exception {
+        final Path path = Files.createTempFile("follow", ".txt");
+        append(path, "#Total cash in ATM\n8000\n\n12345678 1234 1234\n500 100\nB\nW 100\n\n87654321 4321 4321\n100 0\n");
+        
+        final FollowingSessionReader reader = new FollowingSessionReader(path, 10);
+        try {
+            assertEquals(8000, reader.getAtmBalance());
+            assertTrue(reader.hasNext());
+            Session first = reader.next();
+            assertEquals("12345678", first.getAccountNumber());
+            assertEquals(2, first.getActions().size());
+            long committed = reader.getCommittedOffset();
+            
+            //The rest of the second session is written while the reader waits for it
+            Thread writer = new Thread() {
+                public void run(){
+                    try {
+                        Thread.sleep(50);
+                        append(path, "W 1");
+                        Thread.sleep(50);
+                        append(path, "0\n\n");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writer.start();
+            assertTrue(reader.hasNext());
+            Session second = reader.next();
+            assertEquals("87654321", second.getAccountNumber());
+            assertEquals(1, second.getActions().size());
+            assertEquals(10, second.getActions().get(0).getAmount());
+            assertEquals(Files.size(path), reader.getCommittedOffset());
+            assertTrue(reader.getCommittedOffset() > committed);
+            writer.join();
+            
+            //A partly written session is not returned, even once the reader is stopped
+            append(path, "11111111 1111 1111\n");
+            Thread stopper = new Thread() {
+                public void run(){
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    reader.stop();
+                }
+            };
+            stopper.start();
+            assertFalse(reader.hasNext());
+            stopper.join();
+        } finally {
+            reader.close();
+            Files.delete(path);
+        }
+    }
+    
+    private static void append(Path path, String text) throws Exception {
+        Files.write(path, text.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,166 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HashedPinVerifierTest {
+
+    //Few iterations, so the tests run quickly
+    private static final int ITERATIONS = 1000;
+
+    @Test
+    public void testHashedPins() {
+        String stored = HashedPinVerifier.hash("1234", ITERATIONS);
+        assertTrue(stored.startsWith(HashedPinVerifier.SCHEME + "$" + ITERATIONS + "$"));
+        assertTrue(HashedPinVerifier.matches(stored, "1234"));
+        assertFalse(HashedPinVerifier.matches(stored, "4321"));
+
+        //Each hash has its own salt
+        assertNotEquals(stored, HashedPinVerifier.hash("1234", ITERATIONS));
+
+        //Plain text pins are not hashes, so never match
+        assertFalse(HashedPinVerifier.matches("1234", "1234"));
+        assertFalse(HashedPinVerifier.matches(HashedPinVerifier.SCHEME + "$x$y$z", "1234"));
+    }
+
+    @Test
+    public void testCachedChecks() {
+        SettableClock clock = new SettableClock(0);
+        HashedPinVerifier verifier = new HashedPinVerifier(2, 16, 1000, clock);
+        try {
+            String stored = HashedPinVerifier.hash("1234", ITERATIONS);
+            assertTrue(verifier.verify(session("12345678", stored, "1234")));
+            assertTrue(verifier.verify(session("12345678", stored, "1234")));
+            assertEquals(1, verifier.getHashCount());
+
+            //Wrong pins are cached as well, without matching the right pin
+            assertFalse(verifier.verify(session("12345678", stored, "4321")));
+            assertFalse(verifier.verify(session("12345678", stored, "4321")));
+            assertEquals(2, verifier.getHashCount());
+
+            //The same pin for another account is a different check
+            assertTrue(verifier.verify(session("87654321", stored, "1234")));
+            assertEquals(3, verifier.getHashCount());
+
+            //Checks are hashed again once they expire
+            clock.millis = 1000;
+            assertTrue(verifier.verify(session("12345678", stored, "1234")));
+            assertEquals(4, verifier.getHashCount());
+        } finally {
+            verifier.close();
+        }
+    }
+
+    @Test
+    public void testChecksAheadRunInOrder() {
+        String good = HashedPinVerifier.hash("1234", ITERATIONS);
+        String other = HashedPinVerifier.hash("5555", ITERATIONS);
+        HashedPinVerifier verifier = new HashedPinVerifier(4, 64, 60000, Clock.systemUTC());
+        try {
+            //Running one session at a time gives the expected results
+            Atm inTurn = new Atm();
+            inTurn.setAtmBalance(2500);
+            inTurn.setPinVerifier(verifier);
+            CollectingResultSink expected = new CollectingResultSink();
+            for (Session session : sessions(good, other)){
+                inTurn.performActions(session, expected);
+            }
+
+            Atm ahead = new Atm();
+            ahead.setAtmBalance(2500);
+            ahead.setPinVerifier(verifier);
+            CollectingResultSink results = new CollectingResultSink();
+            ahead.performActions(sessions(good, other).iterator(), verifier, 8, results);
+            assertEquals(expected.getResults(), results.getResults());
+            assertEquals(inTurn.getAtmBalance(), ahead.getAtmBalance());
+            assertTrue(results.getResults().contains("ACCOUNT_ERR"));
+            assertTrue(results.getResults().contains("ATM_ERR"));
+        } finally {
+            verifier.close();
+        }
+    }
+
+    @Test
+    public void testChecksAheadShareTheSameCheck() {
+        String stored = HashedPinVerifier.hash("1234", ITERATIONS);
+        HashedPinVerifier verifier = new HashedPinVerifier(4, 64, 60000, Clock.systemUTC());
+        try {
+            //Every session is queued up before the first check is cached
+            List<Session> sessions = new ArrayList<Session>();
+            for (int i = 0; i < 20; i++){
+                Session session = session("12345678", stored, "1234");
+                session.setBalance(500);
+                session.addAction(Action.createBalanceEnquiry());
+                sessions.add(session);
+            }
+            Atm atm = new Atm();
+            atm.setAtmBalance(1000);
+            atm.setPinVerifier(verifier);
+            CollectingResultSink results = new CollectingResultSink();
+            atm.performActions(sessions.iterator(), verifier, 8, results);
+            assertFalse(results.getResults().contains("ACCOUNT_ERR"));
+            assertEquals(1, verifier.getHashCount());
+        } finally {
+            verifier.close();
+        }
+    }
+
+    /**
+     * @return Sessions for a few accounts with two pins, with some wrong pins,
+     * which take more cash than the ATM holds
+     */
+    private static List<Session> sessions(String good, String other){
+        List<Session> sessions = new ArrayList<Session>();
+        for (int i = 0; i < 40; i++){
+            Session session = session(Integer.toString(10000000 + i % 5), (i % 2 == 0) ? good : other,
+                    (i % 3 == 0) ? "0000" : (i % 2 == 0) ? "1234" : "5555");
+            session.setBalance(500);
+            session.setOverdraft(0);
+            Action withdrawal = Action.createAction("W");
+            withdrawal.setAmount(100);
+            session.addAction(withdrawal);
+            session.addAction(Action.createAction("B"));
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    private static Session session(String account, String expectedPin, String enteredPin){
+        Session session = new Session();
+        session.setAccountNumber(account);
+        session.setExpectedPin(expectedPin);
+        session.setEnteredPin(enteredPin);
+        return session;
+    }
+
+    /**
+     * A clock whose time is set by the test
+     */
+    private static class SettableClock extends Clock {
+        long millis;
+
+        SettableClock(long millis){
+            this.millis = millis;
+        }
+        public long millis(){
+            return millis;
+        }
+        public Instant instant(){
+            return Instant.ofEpochMilli(millis);
+        }
+        public ZoneId getZone(){
+            return ZoneOffset.UTC;
+        }
+        public Clock withZone(ZoneId zone){
+            return this;
+        }
+    }
+}
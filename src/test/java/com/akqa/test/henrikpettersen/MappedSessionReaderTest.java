@@ -0,0 +1,43 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class MappedSessionReaderTest {
+
+    private static final String INPUT = "#Total cash in ATM\n8000\n\n"
+            + "#Session 1\n12345678 1234 1234\n500 100\nB #Out: 500\nW 100 #Out: 400\n\n"
+            + "#Session 2\r\n87654321 4321 4320\r\n100 -5\r\nW 10\r\n\r\n"
+            + "11111111 1111 1111\n0 0\nb\nW 20";
+
+    @Test
+    public void testMatchesSessionReader() throws Exception {
+        File file = File.createTempFile("mapped", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), INPUT.getBytes(StandardCharsets.US_ASCII));
+        
+        //A tiny window forces the reader to remap in the middle of sessions
+        for (int windowSize : new int[]{ 64, 80, 1 << 20 }){
+            SessionReader expected = new SessionReader(new BufferedReader(new StringReader(INPUT)));
+            MappedSessionReader actual = new MappedSessionReader(
+                    FileChannel.open(file.toPath(), StandardOpenOption.READ), windowSize);
+            
+            assertEquals(expected.getAtmBalance(), actual.getAtmBalance());
+            while (expected.hasNext()){
+                assertTrue(actual.hasNext());
+                assertEquals(expected.next().toString(), actual.next().toString());
+            }
+            assertFalse(actual.hasNext());
+            actual.close();
+        }
+    }
+}
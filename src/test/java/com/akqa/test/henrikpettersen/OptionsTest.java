@@ -0,0 +1,58 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class OptionsTest {
+
+    @Test
+    public void testCompatibleOptions() throws Exception {
+        Path directory = Files.createTempDirectory("spool");
+        Options.parse(new String[]{"--threads", "4", "--unordered", "input.txt"});
+        Options.parse(new String[]{"--pipeline", "--threads", "4", "--ledger", "ledger.bin", "--journal", "journal"});
+        Options.parse(new String[]{"--shards", "3", "--ledger", "ledger.bin", "--output", "results.txt"});
+        Options.parse(new String[]{"--threads", "4", "--ledger", "ledger.bin", directory.toString()});
+        Options.parse(new String[]{"--checkpoint", "replay.ckpt", "--resume", "input.txt"});
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testThreadsWithJournalNamesJournal() {
+        assertRefused("--journal", "--threads", "4", "--journal", "journal");
+    }
+
+    @Test
+    public void testIncompatibleOptions() throws Exception {
+        assertRefused("--threads", "--threads", "4", "--ledger", "ledger.bin");
+        assertRefused("--threads", "--threads", "4", "--limits", "daily=1000");
+        assertRefused("--threads", "--threads", "4", "--history", "history");
+        assertRefused("--cassettes", "--journal", "journal", "--cassettes", "20x500");
+        assertRefused("--checkpoint", "--checkpoint", "replay.ckpt", "--ledger", "ledger.bin");
+        assertRefused("--checkpoint", "--resume");
+        assertRefused("--shards", "--shards", "3", "--limits", "daily=1000");
+        assertRefused("--shards", "--shards", "3", "--threads", "4");
+        assertRefused("--follow", "--follow");
+        assertRefused("--follow", "--follow", "--pipeline", "input.txt");
+
+        Path directory = Files.createTempDirectory("spool");
+        try {
+            assertRefused("Input directories", "--follow", directory.toString());
+            assertRefused("Input directories", "--per-file", "out", "--ledger", "ledger.bin", directory.toString());
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    private static void assertRefused(String named, String... args) {
+        try {
+            Options.parse(args);
+            fail("Expected the options to be refused");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(named));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+public class OutcomeTest {
+
+    @Test
+    public void testOutcomeRoundTrip() {
+        for (ErrorCode errorCode : ErrorCode.values()){
+            long outcome = Outcome.error(errorCode);
+            assertTrue(Outcome.isError(outcome));
+            assertEquals(errorCode, Outcome.errorCode(outcome));
+        }
+        for (long balance : new long[]{ 0, 500, -100, Long.MAX_VALUE }){
+            assertFalse(Outcome.isError(balance));
+        }
+    }
+    
+    @Test
+    public void testWithdrawReturnsOutcomes() {
+        Atm atm = new Atm();
+        atm.setAtmBalance(1000);
+        Session session = createSession(500, 100);
+        
+        assertEquals(Outcome.error(ErrorCode.ATM_ERR), atm.withdraw(session, Action.createWithdrawal(1500)));
+        assertEquals(Outcome.error(ErrorCode.FUNDS_ERR), atm.withdraw(session, Action.createWithdrawal(700)));
+        assertEquals(-50, atm.withdraw(session, Action.createWithdrawal(550)));
+        assertEquals(50, session.getOverdraft());
+        assertEquals(450, atm.getAtmBalance());
+    }
+    
+    @Test
+    public void testDeclinesDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)){
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        
+        Atm atm = new Atm();
+        atm.setAtmBalance(1000);
+        Session session = createSession(500, 100);
+        Action tooMuchForAtm = Action.createWithdrawal(1500);
+        Action tooMuchForAccount = Action.createWithdrawal(700);
+        CountingSink results = new CountingSink();
+        
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 100000; i++){
+            Outcome.report(atm.withdraw(session, tooMuchForAtm), results);
+            Outcome.report(atm.withdraw(session, tooMuchForAccount), results);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        
+        assertEquals(200000, results.errors);
+        
+        //Throwing an exception per decline would allocate well over 10MB here
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1000000);
+    }
+    
+    private Session createSession(long balance, long overdraft){
+        Session session = new Session();
+        session.setAccountNumber("123456");
+        session.setExpectedPin("1234");
+        session.setEnteredPin("1234");
+        session.setBalance(balance);
+        session.setOverdraft(overdraft);
+        return session;
+    }
+    
+    private static class CountingSink implements ResultSink {
+        int errors;
+        
+        public void balance(long balance){
+        }
+        public void error(ErrorCode errorCode){
+            errors++;
+        }
+        public void flush(){
+        }
+    }
+}
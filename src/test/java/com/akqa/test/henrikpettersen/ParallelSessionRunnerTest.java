@@ -0,0 +1,116 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+public class ParallelSessionRunnerTest {
+
+    @Test
+    public void testOrderedOutputMatchesSequentialRun() throws Exception {
+        String input = createInput(1000000, 2000);
+        
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        Atm atm = new Atm();
+        SessionReader sessions = open(input);
+        atm.setAtmBalance(sessions.getAtmBalance());
+        ResultSink results = new BufferedResultSink(Channels.newChannel(sequential));
+        while (sessions.hasNext()){
+            atm.performActions(sessions.next(), results);
+        }
+        results.flush();
+        
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        atm = new Atm();
+        sessions = open(input);
+        atm.setAtmBalance(sessions.getAtmBalance());
+        new ParallelSessionRunner(atm, 4, true).run(sessions, parallel);
+        
+        assertEquals(sequential.toString(), parallel.toString());
+    }
+    
+    @Test
+    public void testOrderedOutputMatchesSequentialRunOnceCashRunsOut() throws Exception {
+        //Withdrawals of different sizes, so once the cash runs low a smaller 
+        //withdrawal may be paid out after a bigger one has been turned away
+        StringBuilder input = new StringBuilder();
+        input.append(20000).append("\n\n");
+        for (int i = 0; i < 5000; i++){
+            input.append(i).append(" 1234 1234\n100 0\nW ").append(10 * (i % 7 + 1)).append("\nB\n\n");
+        }
+        
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        Atm atm = new Atm();
+        SessionReader sessions = open(input.toString());
+        atm.setAtmBalance(sessions.getAtmBalance());
+        ResultSink results = new BufferedResultSink(Channels.newChannel(sequential));
+        while (sessions.hasNext()){
+            atm.performActions(sessions.next(), results);
+        }
+        results.flush();
+        assertTrue(sequential.toString().contains(ErrorCode.ATM_ERR.toString()));
+        
+        //The threads run in a different order each time
+        for (int run = 0; run < 20; run++){
+            ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            Atm parallelAtm = new Atm();
+            sessions = open(input.toString());
+            parallelAtm.setAtmBalance(sessions.getAtmBalance());
+            new ParallelSessionRunner(parallelAtm, 8, true).run(sessions, parallel);
+            
+            assertEquals(sequential.toString(), parallel.toString());
+            assertEquals(atm.getAtmBalance(), parallelAtm.getAtmBalance());
+        }
+    }
+    
+    @Test
+    public void testAtmCashNeverGoesNegative() throws Exception {
+        //Every session tries to take out 10, but there is only enough cash for 100 of them
+        String input = createInput(1000, 2000);
+        Atm atm = new Atm();
+        SessionReader sessions = open(input);
+        atm.setAtmBalance(sessions.getAtmBalance());
+        
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+        new ParallelSessionRunner(atm, 8, false).run(sessions, results);
+        
+        int dispensed = 0;
+        int atmErrors = 0;
+        for (String line : results.toString().split("\\s+")){
+            if (line.equals("90")){
+                dispensed++;
+            }
+            else if (line.equals(ErrorCode.ATM_ERR.toString())){
+                atmErrors++;
+            }
+        }
+        assertEquals(0, atm.getAtmBalance());
+        assertEquals(100, dispensed);
+        assertEquals(1900, atmErrors);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testLedgerIsNotShared() throws Exception {
+        Atm atm = new Atm();
+        atm.setLedger(new AccountLedger());
+        new ParallelSessionRunner(atm, 4, true);
+    }
+    
+    private SessionReader open(String input){
+        return new SessionReader(new BufferedReader(new StringReader(input)));
+    }
+    
+    private String createInput(long atmBalance, int sessions){
+        StringBuilder input = new StringBuilder();
+        input.append(atmBalance).append("\n\n");
+        for (int i = 0; i < sessions; i++){
+            input.append(i).append(" 1234 1234\n100 0\nW 10\n\n");
+        }
+        return input.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReplayCheckpointTest {
+
+    private Path directory;
+    private Path input;
+
+    @Before
+    public void setUp() throws Exception {
+        //The ATM runs out of cash after the checkpoint, so the cash must be restored
+        directory = Files.createTempDirectory("checkpoint");
+        input = directory.resolve("input.txt");
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setSessions(5000);
+        generator.setSeed(3);
+        generator.setExhaustAt(0.7);
+        generator.generate(input, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Path file : Files.newDirectoryStream(directory)){
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testResumeGivesSameResults() throws Exception {
+        Path expected = directory.resolve("expected.out");
+        Atm.main(new String[]{"--output", expected.toString(), input.toString()});
+
+        //Run part of the input, and stop without a checkpoint at the end, with
+        //some results written after the last checkpoint
+        Path checkpointPath = directory.resolve("replay.ckpt");
+        Path output = directory.resolve("replay.out");
+        runPart(checkpointPath, output, 2345, 1000);
+        ReplayCheckpoint.State state = ReplayCheckpoint.load(checkpointPath);
+        assertEquals(2000, state.getSessions());
+        assertTrue(Files.size(output) > state.getOutputPosition());
+
+        Atm.main(new String[]{"--checkpoint", checkpointPath.toString(), "--resume",
+                "--output", output.toString(), input.toString()});
+        assertTrue(Arrays.equals(Files.readAllBytes(expected), Files.readAllBytes(output)));
+        assertEquals(5000, ReplayCheckpoint.load(checkpointPath).getSessions());
+    }
+
+    @Test
+    public void testResumeWithoutCheckpointStartsOver() throws Exception {
+        Path expected = directory.resolve("expected.out");
+        Atm.main(new String[]{"--output", expected.toString(), input.toString()});
+        Path output = directory.resolve("replay.out");
+        Atm.main(new String[]{"--checkpoint", directory.resolve("replay.ckpt").toString(), "--resume",
+                "--checkpoint-every", "700", "--output", output.toString(), input.toString()});
+        assertTrue(Arrays.equals(Files.readAllBytes(expected), Files.readAllBytes(output)));
+    }
+
+    @Test
+    public void testSkipWithoutOffset() throws Exception {
+        Path checkpointPath = directory.resolve("replay.ckpt");
+        runPart(checkpointPath, directory.resolve("replay.out"), 1500, 500);
+        ReplayCheckpoint.State state = ReplayCheckpoint.load(checkpointPath);
+
+        //Input that is not memory mapped is read through to the checkpoint
+        SessionSource expected = MappedSessionReader.openRange(input, state.getInputOffset(),
+                Files.size(input), state.getAtmBalance());
+        SessionSource skipped = ReplayCheckpoint.skip(new SessionReader(Files.newBufferedReader(input)), null, state);
+        try {
+            assertEquals(expected.next().getAccountNumber(), skipped.next().getAccountNumber());
+        } finally {
+            expected.close();
+            skipped.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testDamagedCheckpoint() throws Exception {
+        Path checkpointPath = directory.resolve("replay.ckpt");
+        runPart(checkpointPath, directory.resolve("replay.out"), 1000, 1000);
+        byte[] bytes = Files.readAllBytes(checkpointPath);
+        bytes[10] ^= 1;
+        Files.write(checkpointPath, bytes);
+        ReplayCheckpoint.load(checkpointPath);
+    }
+
+    /**
+     * Runs the first sessions of the input, taking checkpoints as the ATM does,
+     * and writes out every result
+     */
+    private void runPart(Path checkpointPath, Path output, int sessions, long every) throws IOException{
+        Atm atm = new Atm();
+        MappedSessionReader source = MappedSessionReader.open(input);
+        FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ReplayCheckpoint checkpoint = new ReplayCheckpoint(checkpointPath, every, input, null);
+        try {
+            atm.setAtmBalance(source.getAtmBalance());
+            ResultSink results = new BufferedResultSink(checkpoint.track(channel, channel));
+            for (int i = 0; i < sessions; i++){
+                atm.performActions(source.next(), results);
+                checkpoint.sessionDone(source, atm, results);
+            }
+            results.flush();
+        } finally {
+            checkpoint.close();
+            channel.close();
+            source.close();
+        }
+    }
+}
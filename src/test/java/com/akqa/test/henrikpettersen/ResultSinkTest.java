@@ -0,0 +1,60 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ResultSinkTest {
+
+    @Test
+    public void testBufferedSinkMatchesPrintln() throws Exception {
+        long[] balances = { 0, 7, -7, 500, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE };
+        
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(expected);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        
+        //A small buffer makes the sink flush part way through
+        BufferedResultSink sink = new BufferedResultSink(Channels.newChannel(actual), 32);
+        for (int i = 0; i < 10; i++){
+            for (long balance : balances){
+                out.println(balance);
+                sink.balance(balance);
+            }
+            for (ErrorCode errorCode : ErrorCode.values()){
+                out.println(errorCode);
+                sink.error(errorCode);
+            }
+        }
+        out.flush();
+        sink.flush();
+        
+        assertEquals(expected.toString(), actual.toString());
+    }
+    
+    @Test
+    public void testCollectingSink() {
+        Atm atm = new Atm();
+        atm.setAtmBalance(8000);
+        
+        Session session = new Session();
+        session.setAccountNumber("87654321");
+        session.setExpectedPin("4321");
+        session.setEnteredPin("4321");
+        session.setBalance(100);
+        session.setOverdraft(0);
+        session.addAction(Action.createWithdrawal(10));
+        session.addAction(Action.createWithdrawal(100));
+        session.addAction(Action.createAction("B"));
+        
+        CollectingResultSink results = new CollectingResultSink();
+        atm.performActions(session, results);
+        
+        assertEquals(Arrays.asList("90", "FUNDS_ERR", "90"), results.getResults());
+    }
+}
@@ -0,0 +1,171 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SessionPipelineTest {
+
+    @Test
+    public void testSameResultsAsSequential() throws Exception {
+        //The ATM runs out of cash half way through, so the order sessions run in matters
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setSessions(20000);
+        generator.setExhaustAt(0.5);
+        Path path = Files.createTempFile("pipeline", ".txt");
+        generator.generate(path, 1);
+        
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Atm atm = new Atm();
+        SessionSource sessions = MappedSessionReader.open(path);
+        try {
+            atm.setAtmBalance(sessions.getAtmBalance());
+            ResultSink results = new BufferedResultSink(Channels.newChannel(expected));
+            while (sessions.hasNext()){
+                atm.performActions(sessions.next(), results);
+            }
+            results.flush();
+        } finally {
+            sessions.close();
+        }
+        
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        atm = new Atm();
+        sessions = MappedSessionReader.open(path);
+        SessionPipeline pipeline = new SessionPipeline(atm, 4);
+        try {
+            atm.setAtmBalance(sessions.getAtmBalance());
+            pipeline.run(sessions, Channels.newChannel(actual));
+        } finally {
+            sessions.close();
+            Files.delete(path);
+        }
+        assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+        assertTrue(pipeline.describe().contains("pipeline_execute: sessions=20000 "));
+    }
+    
+    @Test
+    public void testFailureStopsEveryStage() throws Exception {
+        Atm atm = new Atm();
+        atm.setAtmBalance(1000);
+        Session session = new Session();
+        session.setAccountNumber("12345678");
+        session.setExpectedPin("1234");
+        session.setEnteredPin("1234");
+        session.addAction(Action.createAction("X"));
+        
+        RepeatingSource sessions = new RepeatingSource(session);
+        try {
+            new SessionPipeline(atm, 2).run(sessions, Channels.newChannel(new ByteArrayOutputStream()));
+            fail("Expected the unsupported action to fail the run");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof RuntimeException);
+        }
+    }
+    
+    @Test
+    public void testSlowBatchHoldsUpParsing() throws Exception {
+        //The pin check of the first session takes until the test lets it go
+        final CountDownLatch release = new CountDownLatch(1);
+        Atm atm = new Atm();
+        atm.setAtmBalance(1000);
+        atm.setPinVerifier(new PinVerifier() {
+            public boolean verify(Session session){
+                if (session.getAccountNumber().equals("0")){
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return true;
+            }
+        });
+        final CountingSource sessions = new CountingSource(200000);
+        final SessionPipeline pipeline = new SessionPipeline(atm, 4);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Thread runner = new Thread(new Runnable() {
+            public void run(){
+                pipeline.run(sessions, Channels.newChannel(output));
+            }
+        });
+        runner.start();
+        
+        //The other verifiers carry on, but the batches behind the slow one are
+        //not all read in while it waits
+        int read;
+        do {
+            read = sessions.count.get();
+            Thread.sleep(200);
+        } while (read != sessions.count.get());
+        assertTrue(read < 200000);
+        release.countDown();
+        runner.join();
+        assertEquals(200000, sessions.count.get());
+        assertEquals(200000, output.toString().split("\n").length);
+    }
+    
+    /**
+     * Returns a number of sessions, each a balance enquiry, numbered from 0
+     */
+    private static class CountingSource implements SessionSource {
+        private final int sessions;
+        final AtomicInteger count = new AtomicInteger();
+        
+        CountingSource(int sessions){
+            this.sessions = sessions;
+        }
+        public long getAtmBalance(){
+            return 1000;
+        }
+        public boolean hasNext(){
+            return count.get() < sessions;
+        }
+        public Session next(){
+            Session session = new Session();
+            session.setAccountNumber(Integer.toString(count.getAndIncrement()));
+            session.setExpectedPin("1234");
+            session.setEnteredPin("1234");
+            session.addAction(Action.createBalanceEnquiry());
+            return session;
+        }
+        public void remove(){
+            throw new UnsupportedOperationException();
+        }
+        public void close(){
+        }
+    }
+    
+    /**
+     * Returns the same session over and over
+     */
+    private static class RepeatingSource implements SessionSource {
+        private final Session session;
+        
+        RepeatingSource(Session session){
+            this.session = session;
+        }
+        public long getAtmBalance(){
+            return 0;
+        }
+        public boolean hasNext(){
+            return true;
+        }
+        public Session next(){
+            return session;
+        }
+        public void remove(){
+            throw new UnsupportedOperationException();
+        }
+        public void close(){
+        }
+    }
+}
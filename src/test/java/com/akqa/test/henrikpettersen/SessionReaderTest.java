@@ -0,0 +1,38 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class SessionReaderTest {
+
+    @Test
+    public void testReadsSessionsOneAtATime() throws Exception {
+        String input = "#Total cash in ATM\n8000\n\n"
+                + "#Session 1\n12345678 1234 1234\n500 100\nB\nW 100 #comment\n\n"
+                + "87654321 4321 4320\n100 0\nW 10\n";
+        SessionReader reader = new SessionReader(new BufferedReader(new StringReader(input)));
+        
+        assertEquals(8000, reader.getAtmBalance());
+        
+        assertTrue(reader.hasNext());
+        Session first = reader.next();
+        assertEquals("12345678", first.getAccountNumber());
+        assertEquals(500, first.getBalance());
+        assertEquals(100, first.getOverdraft());
+        assertEquals(2, first.getActions().size());
+        assertTrue(first.getActions().get(0).isBalanceEnquiry());
+        assertEquals(100, first.getActions().get(1).getAmount());
+        
+        assertTrue(reader.hasNext());
+        Session second = reader.next();
+        assertEquals("4320", second.getEnteredPin());
+        assertEquals(1, second.getActions().size());
+        
+        assertFalse(reader.hasNext());
+        reader.close();
+    }
+}
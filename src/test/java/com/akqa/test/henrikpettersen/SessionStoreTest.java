@@ -0,0 +1,64 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class SessionStoreTest {
+
+    private static final String INPUT = "1000\n\n"
+            + "00012345 0123 0123\n500 100\nB\nW 550\nB\n\n"
+            + "87654321 4321 4321\n100 0\nW 10\n\n"
+            + "ABC-123 12a4 12a4\n100 0\nW 500\n\n"
+            + "87654321 4321 0432\n0 0\nW 10\nB\n\n"
+            + "99999999 1111 1111\n1000 0\nW 600\n";
+
+    @Test
+    public void testStoreMatchesSessions() throws Exception {
+        SessionReader sessions = open();
+        SessionStore store = SessionStore.load(open());
+        
+        assertEquals(5, store.size());
+        for (int i = 0; i < store.size(); i++){
+            assertEquals(sessions.next().toString(), store.getSession(i).toString());
+        }
+    }
+    
+    @Test
+    public void testRunFromStoreMatchesSessions() throws Exception {
+        SessionReader sessions = open();
+        Atm atm = new Atm();
+        atm.setAtmBalance(sessions.getAtmBalance());
+        CollectingResultSink expected = new CollectingResultSink();
+        while (sessions.hasNext()){
+            atm.performActions(sessions.next(), expected);
+        }
+        
+        SessionStore store = SessionStore.load(open());
+        atm = new Atm();
+        atm.setAtmBalance(1000);
+        CollectingResultSink actual = new CollectingResultSink();
+        atm.performActions(store, actual);
+        
+        assertEquals(expected.getResults(), actual.getResults());
+        assertEquals(-50, store.getBalance(0));
+        assertEquals(50, store.getOverdraft(0));
+    }
+    
+    @Test
+    public void testEncodedFieldsKeepLeadingZeros() {
+        SessionStore store = new SessionStore();
+        assertNotEquals(store.encode("0123"), store.encode("123"));
+        assertEquals(store.encode("x1"), store.encode("x1"));
+        for (String value : new String[]{ "0", "0123", "12345678901234567", "123456789012345678", "PIN" }){
+            assertEquals(value, store.decode(store.encode(value)));
+        }
+    }
+    
+    private SessionReader open(){
+        return new SessionReader(new BufferedReader(new StringReader(INPUT)));
+    }
+}
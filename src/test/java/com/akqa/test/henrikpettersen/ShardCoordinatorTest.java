@@ -0,0 +1,157 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ShardCoordinatorTest {
+
+    @Test
+    public void testSameResultsAsSequential() throws Exception {
+        //The ATM never runs out of cash, so the results do not depend on which
+        //worker holds it
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setSessions(20000);
+        generator.setCash(1000000000L);
+        Path path = Files.createTempFile("shards", ".txt");
+        long cash = generator.generate(path, 1);
+        assertTrue(assertSameResultsAsSequential(path) < cash);
+    }
+    
+    @Test
+    public void testCashIsSharedWhenLow() throws Exception {
+        //The ATM holds a little more than the sessions take, far less than a
+        //block for each worker, so workers need cash another has been given
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setSessions(600);
+        Path path = Files.createTempFile("shards", ".txt");
+        long cash = generator.generate(path, 1) + 10000;
+        generator.setCash(cash);
+        generator.generate(path, 1);
+        assertTrue(cash < 3 * ShardCoordinator.CASH_BLOCK);
+        assertTrue(assertSameResultsAsSequential(path) > 0);
+    }
+    
+    /**
+     * Runs the sessions one after the other, and across 3 shards, and checks
+     * the results are the same. Deletes the input file
+     * @return The cash left
+     */
+    private static long assertSameResultsAsSequential(Path path) throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Atm atm = new Atm();
+        SessionSource sessions = MappedSessionReader.open(path);
+        long left;
+        try {
+            atm.setAtmBalance(sessions.getAtmBalance());
+            ResultSink results = new BufferedResultSink(Channels.newChannel(expected));
+            while (sessions.hasNext()){
+                atm.performActions(sessions.next(), results);
+            }
+            results.flush();
+            left = atm.getAtmBalance();
+        } finally {
+            sessions.close();
+        }
+        
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        sessions = MappedSessionReader.open(path);
+        try {
+            long shardLeft = new ShardCoordinator(3, null).run(sessions, actual);
+            assertEquals(left, shardLeft);
+        } finally {
+            sessions.close();
+            Files.delete(path);
+        }
+        assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+        return left;
+    }
+    
+    @Test
+    public void testEachWorkerKeepsItsOwnLedger() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setSessions(5000);
+        Path path = Files.createTempFile("shards", ".txt");
+        generator.generate(path, 1);
+        Path ledger = Files.createTempFile("shards", ".bin");
+        Files.delete(ledger);
+        
+        //Every account with a session past the pin check is loaded into the
+        //ledger of exactly one worker
+        Atm atm = new Atm();
+        AccountLedger expected = new AccountLedger();
+        SessionSource sessions = MappedSessionReader.open(path);
+        try {
+            while (sessions.hasNext()){
+                Session session = sessions.next();
+                if (atm.isPinValid(session)){
+                    expected.open(session);
+                }
+            }
+        } finally {
+            sessions.close();
+        }
+        sessions = MappedSessionReader.open(path);
+        try {
+            new ShardCoordinator(3, ledger.toString()).run(sessions, new ByteArrayOutputStream());
+        } finally {
+            sessions.close();
+            Files.delete(path);
+        }
+        long accounts = 0;
+        for (int i = 0; i < 3; i++){
+            Path shardLedger = Paths.get(ShardCoordinator.shardLedgerPath(ledger.toString(), i, 3));
+            long size = AccountLedger.load(shardLedger).size();
+            assertTrue(size > 0);
+            accounts += size;
+            Files.delete(shardLedger);
+        }
+        assertEquals(expected.size(), accounts);
+    }
+    
+    @Test
+    public void testLedgerKeptWithOtherShardCountIsRefused() throws Exception {
+        Path ledger = Files.createTempFile("shards", ".bin");
+        Files.delete(ledger);
+        Path shardLedger = Paths.get(ShardCoordinator.shardLedgerPath(ledger.toString(), 1, 3));
+        new AccountLedger().save(shardLedger);
+        try {
+            ShardCoordinator.checkShardLedgers(ledger.toString(), 3);
+            try {
+                ShardCoordinator.checkShardLedgers(ledger.toString(), 4);
+                fail("Expected a ledger kept with 3 shards to be refused for 4");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains(shardLedger.getFileName().toString()));
+            }
+            
+            //Nor can the shard count of a file without it in the name be told
+            Files.move(shardLedger, Paths.get(ledger + ".1"));
+            try {
+                ShardCoordinator.checkShardLedgers(ledger.toString(), 3);
+                fail("Expected a ledger without the shard count to be refused");
+            } catch (IOException e) {
+            }
+        } finally {
+            Files.deleteIfExists(shardLedger);
+            Files.deleteIfExists(Paths.get(ledger + ".1"));
+        }
+    }
+    
+    @Test
+    public void testShardForIsStable() {
+        for (int i = 0; i < 1000; i++){
+            String account = Integer.toString(10000000 + i * 7919);
+            int shard = ShardCoordinator.shardFor(account, 5);
+            assertTrue(shard >= 0 && shard < 5);
+            assertEquals(shard, ShardCoordinator.shardFor(account, 5));
+        }
+    }
+}
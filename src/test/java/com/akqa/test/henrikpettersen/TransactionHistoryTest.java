@@ -0,0 +1,139 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionHistoryTest {
+
+    private Path directory;
+    private TickingClock clock;
+    
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("history");
+        clock = new TickingClock();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        for (Path file : Files.newDirectoryStream(directory)){
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+    
+    @Test
+    public void testAccountAndErrorLookupsAcrossSegments() throws Exception {
+        TransactionHistory history = new TransactionHistory(directory, 100, clock);
+        Atm atm = new Atm();
+        atm.setAtmBalance(5000);
+        atm.setHistory(history);
+        
+        //Ten accounts take turns, so each segment holds every account
+        for (int i = 0; i < 1000; i++){
+            Session session = session(Integer.toString(10000000 + i % 10), (i % 50 == 0) ? "9999" : "1234");
+            atm.performActions(session, new CollectingResultSink());
+        }
+        //One record for each wrong pin, and two for every other session
+        assertEquals(20 + 980 * 2, history.size());
+        
+        //The first account has 100 sessions, of which the 20 with the wrong pin
+        List<TransactionHistory.Entry> entries = history.forAccount("10000000");
+        assertEquals(20 + 80 * 2, entries.size());
+        assertEquals(200, history.forAccount("10000001").size());
+        for (int i = 1; i < entries.size(); i++){
+            assertTrue(entries.get(i).getSequence() > entries.get(i - 1).getSequence());
+            assertEquals(10000000, entries.get(i).getAccount());
+        }
+        assertEquals(TransactionHistory.PIN_CHECK, entries.get(0).getKind());
+        assertEquals(ErrorCode.ACCOUNT_ERR, entries.get(0).getErrorCode());
+        
+        //The ATM runs out of cash after 50 withdrawals of 100
+        assertEquals(20, history.countErrors(ErrorCode.ACCOUNT_ERR));
+        assertEquals(980 - 50, history.countErrors(ErrorCode.ATM_ERR));
+        List<TransactionHistory.Entry> atmErrors = history.withError(ErrorCode.ATM_ERR, Long.MIN_VALUE, Long.MAX_VALUE, 5);
+        assertEquals(5, atmErrors.size());
+        assertEquals(TransactionHistory.WITHDRAWAL, atmErrors.get(0).getKind());
+        assertEquals(100, atmErrors.get(0).getAmount());
+        
+        //Only the records made in the time asked for
+        long from = entries.get(10).getTimeMillis();
+        long to = entries.get(20).getTimeMillis();
+        assertEquals(10, history.forAccount("10000000", from, to).size());
+        history.close();
+        
+        //The records are still there once the history is opened again
+        history = new TransactionHistory(directory, 100, clock);
+        assertEquals(20 + 980 * 2, history.size());
+        assertEquals(entries.size(), history.forAccount("10000000").size());
+        assertEquals(980 - 50, history.countErrors(ErrorCode.ATM_ERR));
+        history.close();
+    }
+    
+    @Test
+    public void testSegmentNotSealedBeforeStoppingIsSealedOnOpen() throws Exception {
+        TransactionHistory history = new TransactionHistory(directory, 100, clock);
+        Atm atm = new Atm();
+        atm.setAtmBalance(1000000);
+        atm.setHistory(history);
+        for (int i = 0; i < 75; i++){
+            atm.performActions(session(Integer.toString(10000000 + i % 10), "1234"), new CollectingResultSink());
+        }
+        history.close();
+        
+        //The history stopped before the sealer wrote the first segment's index
+        Path index = directory.resolve(String.format("history-%020d.idx", 0));
+        assertTrue(Files.exists(index));
+        Files.delete(index);
+        
+        history = new TransactionHistory(directory, 100, clock);
+        assertTrue(Files.exists(index));
+        assertEquals(150, history.size());
+        assertEquals(16, history.forAccount("10000003").size());
+        assertEquals(0, history.countErrors(ErrorCode.ATM_ERR));
+        history.close();
+    }
+    
+    private static Session session(String account, String enteredPin){
+        Session session = new Session();
+        session.setAccountNumber(account);
+        session.setExpectedPin("1234");
+        session.setEnteredPin(enteredPin);
+        session.setBalance(1000000);
+        session.setOverdraft(0);
+        session.addAction(Action.createWithdrawal(100));
+        session.addAction(Action.createBalanceEnquiry());
+        return session;
+    }
+    
+    /**
+     * A clock that moves on a millisecond each time it is read
+     */
+    private static class TickingClock extends Clock {
+        long millis = 1000000;
+        
+        public long millis(){
+            return millis++;
+        }
+        public Instant instant(){
+            return Instant.ofEpochMilli(millis());
+        }
+        public ZoneId getZone(){
+            return ZoneOffset.UTC;
+        }
+        public Clock withZone(ZoneId zone){
+            return this;
+        }
+    }
+}
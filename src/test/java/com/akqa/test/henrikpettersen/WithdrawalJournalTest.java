@@ -0,0 +1,168 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class WithdrawalJournalTest {
+
+    @Test
+    public void testRecoverAfterCrash() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Atm atm = createAtm(directory, 1000, 0);
+        
+        runWithdrawals(atm, 100);
+        WithdrawalJournal journal = atm.getLedger().getJournal();
+        journal.awaitDurable();
+        
+        //The journal is not closed, as if the ATM had crashed
+        WithdrawalJournal.Recovery recovery = WithdrawalJournal.recover(directory);
+        assertEquals(100, recovery.getLastSequence());
+        assertEquals(atm.getAtmBalance(), recovery.getCash());
+        assertLedgersEqual(atm.getLedger(), recovery.getLedger());
+    }
+    
+    @Test
+    public void testRecoverFromSnapshots() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Atm atm = createAtm(directory, 1000, 7);
+        
+        runWithdrawals(atm, 500);
+        atm.getLedger().getJournal().close();
+        
+        WithdrawalJournal.Recovery recovery = WithdrawalJournal.recover(directory);
+        assertEquals(500, recovery.getLastSequence());
+        assertEquals(atm.getAtmBalance(), recovery.getCash());
+        assertLedgersEqual(atm.getLedger(), recovery.getLedger());
+        
+        //The journal carries on from where it was recovered
+        Atm restarted = createAtm(directory, 0, 7);
+        assertEquals(atm.getAtmBalance(), restarted.getAtmBalance());
+        runWithdrawals(restarted, 50);
+        restarted.getLedger().getJournal().close();
+        
+        recovery = WithdrawalJournal.recover(directory);
+        assertEquals(550, recovery.getLastSequence());
+        assertEquals(restarted.getAtmBalance(), recovery.getCash());
+        assertLedgersEqual(restarted.getLedger(), recovery.getLedger());
+    }
+    
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Atm atm = createAtm(directory, 1000, 0);
+        runWithdrawals(atm, 10);
+        atm.getLedger().getJournal().awaitDurable();
+        
+        //Half a record, as left by a crash in the middle of a write
+        Path segment = null;
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "journal-*.log");
+        for (Path path : stream){
+            segment = path;
+        }
+        stream.close();
+        FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channel.write(ByteBuffer.wrap(new byte[WithdrawalJournal.RECORD_SIZE / 2]));
+        channel.close();
+        
+        WithdrawalJournal.Recovery recovery = WithdrawalJournal.recover(directory);
+        assertEquals(10, recovery.getLastSequence());
+        assertEquals(atm.getAtmBalance(), recovery.getCash());
+    }
+    
+    @Test
+    public void testTornFirstRecordOfSegment() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Atm atm = createAtm(directory, 1000, 0);
+        runWithdrawals(atm, 10);
+        atm.getLedger().getJournal().close();
+        
+        //The restarted journal crashes part way through its first record, so
+        //the torn record is at the start of the file the journal carries on in
+        Atm restarted = createAtm(directory, 0, 0);
+        Path segment = directory.resolve(String.format("journal-%020d.log", 11));
+        assertTrue(Files.exists(segment));
+        FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channel.write(ByteBuffer.wrap(new byte[WithdrawalJournal.RECORD_SIZE / 2]));
+        channel.close();
+        
+        //The withdrawals made after the next restart survive the next recovery
+        restarted = createAtm(directory, 0, 0);
+        assertEquals(990, restarted.getAtmBalance());
+        runWithdrawals(restarted, 5);
+        restarted.getLedger().getJournal().awaitDurable();
+        WithdrawalJournal.Recovery recovery = WithdrawalJournal.recover(directory);
+        assertEquals(15, recovery.getLastSequence());
+        assertEquals(985, recovery.getCash());
+        assertEquals(restarted.getAtmBalance(), recovery.getCash());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testCassettesAreNotJournaled() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Atm.main(new String[]{"--journal", directory.toString(), "--cassettes", "20x500"});
+    }
+    
+    @Test
+    public void testEmptyDirectoryHasNothingToRecover() throws Exception {
+        assertNull(WithdrawalJournal.recover(Files.createTempDirectory("journal")));
+    }
+    
+    private Atm createAtm(Path directory, long cash, long snapshotEvery) throws Exception {
+        Atm atm = new Atm();
+        atm.setAtmBalance(cash);
+        atm.setLedger(new AccountLedger());
+        WithdrawalJournal.Recovery recovery = WithdrawalJournal.recover(directory);
+        long lastSequence = 0;
+        if (recovery != null){
+            atm.setAtmBalance(recovery.getCash());
+            atm.setLedger(recovery.getLedger());
+            lastSequence = recovery.getLastSequence();
+        }
+        WithdrawalJournal journal = new WithdrawalJournal(directory, atm.getLedger(), 
+                atm.getAtmBalance(), lastSequence, snapshotEvery);
+        atm.getLedger().setJournal(journal);
+        return atm;
+    }
+    
+    /**
+     * Runs the given number of successful one pound withdrawals over ten accounts
+     */
+    private void runWithdrawals(Atm atm, int count){
+        for (int i = 0; i < count; i++){
+            Session session = new Session();
+            session.setAccountNumber(Integer.toString(10000000 + i % 10));
+            session.setExpectedPin("1234");
+            session.setEnteredPin("1234");
+            session.setBalance(100);
+            session.setOverdraft(1000);
+            assertTrue(atm.openSession(session));
+            assertFalse(Outcome.isError(atm.withdraw(session, Action.createWithdrawal(1))));
+        }
+    }
+    
+    private void assertLedgersEqual(AccountLedger expected, AccountLedger actual){
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < 10; i++){
+            Session a = createSession(Integer.toString(10000000 + i));
+            Session b = createSession(Integer.toString(10000000 + i));
+            expected.refresh(a);
+            actual.refresh(b);
+            assertEquals(a.getBalance(), b.getBalance());
+            assertEquals(a.getOverdraft(), b.getOverdraft());
+        }
+    }
+    
+    private Session createSession(String accountNumber){
+        Session session = new Session();
+        session.setAccountNumber(accountNumber);
+        return session;
+    }
+}
@@ -0,0 +1,84 @@
+package com.akqa.test.henrikpettersen;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class WorkloadGeneratorTest {
+
+    @Test
+    public void testSameSeedWritesSameFile() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setSessions(WorkloadGenerator.CHUNK_SESSIONS * 2 + 100);
+        generator.setSkew(1.2);
+        
+        Path single = Files.createTempFile("workload", ".txt");
+        Path parallel = Files.createTempFile("workload", ".txt");
+        generator.generate(single, 1);
+        generator.generate(parallel, 4);
+        assertTrue(Arrays.equals(Files.readAllBytes(single), Files.readAllBytes(parallel)));
+        
+        generator.setSeed(2);
+        generator.generate(parallel, 4);
+        assertFalse(Arrays.equals(Files.readAllBytes(single), Files.readAllBytes(parallel)));
+        
+        Files.delete(single);
+        Files.delete(parallel);
+    }
+    
+    @Test
+    public void testLoadShape() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setSessions(10000);
+        generator.setMinActions(2);
+        generator.setMaxActions(2);
+        generator.setBalanceShare(0);
+        generator.setWrongPinRate(0);
+        generator.setOverdrawShare(0.5);
+        generator.setExhaustAt(0.5);
+        Path path = Files.createTempFile("workload", ".txt");
+        long cash = generator.generate(path, 2);
+        
+        Atm atm = new Atm();
+        SessionSource sessions = MappedSessionReader.open(path);
+        int overdrawn = 0;
+        try {
+            assertEquals(cash, sessions.getAtmBalance());
+            atm.setAtmBalance(sessions.getAtmBalance());
+            for (int i = 0; i < 10000; i++){
+                Session session = sessions.next();
+                assertEquals(2, session.getActions().size());
+                CollectingResultSink results = new CollectingResultSink();
+                atm.performActions(session, results);
+                List<String> lines = results.getResults();
+                assertFalse(lines.contains("ACCOUNT_ERR"));
+                if (i < 5000){
+                    //Withdrawals that overdraw the account may also be more
+                    //than is left in the ATM
+                    overdrawn += (lines.contains("FUNDS_ERR") || lines.contains("ATM_ERR")) ? 1 : 0;
+                }
+                
+                //The ATM runs out exactly when half the sessions are done
+                if (i == 4998){
+                    assertTrue(atm.getAtmBalance() > 0);
+                }
+                if (i == 4999){
+                    assertEquals(0, atm.getAtmBalance());
+                }
+            }
+            assertFalse(sessions.hasNext());
+        } finally {
+            sessions.close();
+            Files.delete(path);
+        }
+        assertEquals(0, atm.getAtmBalance());
+        
+        //Three sessions in four have at least one of their two withdrawals declined
+        assertEquals(3750, overdrawn, 250);
+    }
+}